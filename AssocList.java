@@ -19,6 +19,16 @@ public abstract class AssocList<K,V> extends FMap<K,V> {
             return new NonEmptyMap<K,V>(this, key, value);
         }
 
+        // Add the value at the given key in a cell owned by the given edit
+        FMap<K,V> add(K key, V value, Object edit) {
+            return new NonEmptyMap<K,V>(this, key, value, edit);
+        }
+
+        // There is nothing to remove from an empty FMap
+        public FMap<K,V> remove(K key) {
+            return this;
+        }
+
         // The size of an empty FMap is 0
         public int size() {
             return 0;
@@ -103,10 +113,24 @@ public abstract class AssocList<K,V> extends FMap<K,V> {
         private K       key;
         // The value
         private V     value;
+        // The edit token of the Builder that may change this cell in
+        // place, or null
+        private Object edit;
+        // The number of distinct keys in this FMap once computed, or -1
+        private int count;
+        // The hash code of this FMap once hashed is true. hashed is written
+        // after hash, so a thread that reads it true sees the hash
+        private int hash;
+        private volatile boolean hashed;
         NonEmptyMap(FMap<K,V> f, K key, V value)  {  
+            this(f, key, value, null);
+        }
+        NonEmptyMap(FMap<K,V> f, K key, V value, Object edit)  {  
             this.f = f;
             this.key = key;
             this.value = value;
+            this.edit = edit;
+            this.count = -1;
         }
 
         // A non empty FMap is never empty
@@ -117,44 +141,90 @@ public abstract class AssocList<K,V> extends FMap<K,V> {
         /* Add the given value to this FMap under the given key to this FMap
        If this FMap all ready contains the given key return this FMap */
         public FMap<K,V> add(K key, V value) {
-            return new NonEmptyMap<K,V>(this, key, value);
+            return this.derive(new NonEmptyMap<K,V>(this, key, value), key);
 
         }
 
-        // Compute the size of this non empty FMap
-        public int size() {
-            if (this.f.containsKey(this.key)) {
-                return this.f.size();
-            } else {
-                return 1 + this.f.size();
+        /* Add the given value under the given key on behalf of the Builder
+       owning the given edit. If the cell that currently holds the key is
+       owned by the edit overwrite its value, otherwise add a new cell */
+        @SuppressWarnings(value = "unchecked")
+        FMap<K,V> add(K key, V value, Object edit) {
+            FMap<K,V> m = this;
+            while (m instanceof NonEmptyMap<?,?>) {
+                NonEmptyMap<K,V> cell = (NonEmptyMap<K,V>) m;
+                if (cell.key.equals(key)) {
+                    if (edit != null && cell.edit == edit) {
+                        cell.value = value;
+                        return this;
+                    }
+                    break;
+                }
+                m = cell.f;
             }
+            return new NonEmptyMap<K,V>(this, key, value, edit);
         }
 
-        // Determine if this FMap contains the given key
-        public boolean containsKey(K key) {
-            // If this key is the key we are searching for return true
+        // Remove every cell holding the given key, sharing the cells
+        // below the last one that does
+        public FMap<K,V> remove(K key) {
+            FMap<K,V> rest = this.f.remove(key);
             if (this.key.equals(key)) {
-                return true;
+                return this.derive(rest, key);
+            } else if (rest == this.f) {
+                return this;
             } else {
-                // Otherwise search the rest of this map for the key
-                return this.f.containsKey(key);
+                return this.derive(new NonEmptyMap<K,V>(rest, this.key, this.value), key);
             }
         }
 
+        // Compute the size of this non empty FMap by counting the cells
+        // whose keys are not shadowed by a cell above, once
+        @SuppressWarnings(value = "unchecked")
+        public int size() {
+            int n = this.count;
+            if (n < 0) {
+                n = 0;
+                Set<K> seen = new HashSet<K>();
+                for (FMap<K,V> m = this; m instanceof NonEmptyMap<?,?>;
+                     m = ((NonEmptyMap<K,V>) m).f) {
+                    if (seen.add(((NonEmptyMap<K,V>) m).key)) {
+                        n++;
+                    }
+                }
+                this.count = n;
+            }
+            return n;
+        }
+
+        // Determine if this FMap contains the given key
+        public boolean containsKey(K key) {
+            return this.cell(key) != null;
+        }
+
         // Get the value at the given key from this FMap
         public V get(K key) {
+            NonEmptyMap<K,V> cell = this.cell(key);
             // If this map does not contain the key throw an exception
-            if (!this.containsKey(key)) {
+            if (cell == null) {
                 throw new RuntimeException
                 ("This FMap does not contain the specified key");
+            }
+            return cell.value;
+        }
 
-                // If this key is the one we are searching for return this value
-            } else if (this.key.equals(key)) {
-                return this.value;
-            } else {
-                // Otherwise search the rest of the map for the key
-                return this.f.get(key);
+        // Find the first cell holding the given key, or return null.
+        // Walks the cells once, without recursion
+        @SuppressWarnings(value = "unchecked")
+        private NonEmptyMap<K,V> cell(K key) {
+            for (FMap<K,V> m = this; m instanceof NonEmptyMap<?,?>;
+                 m = ((NonEmptyMap<K,V>) m).f) {
+                NonEmptyMap<K,V> cell = (NonEmptyMap<K,V>) m;
+                if (cell.key.equals(key)) {
+                    return cell;
+                }
             }
+            return null;
         }
 
         // Compute a string representation of this FMap
@@ -162,16 +232,39 @@ public abstract class AssocList<K,V> extends FMap<K,V> {
             return "{...(" + this.size() + " entries)...}";
         }
 
-        // Compute the hash code for this FMap
+        // Compute the hash code for this FMap once. If the rest of this
+        // FMap has its hash code already, this cell's pair takes the place
+        // of the pair of the cell it shadows in it, if any
+        @SuppressWarnings(value = "unchecked")
         public int hashCode() {
+            if (this.hashed) {
+                return this.hash;
+            }
             int hashcode = 0;
-
-            // The hash code for an FMap is the hash code of all
-            // it's values * 31 ^ the key associated with it summed up
-            for (K key: this.getKeys()) {
-                hashcode += (this.get(key).hashCode() * 31) ^ key.hashCode();
+            if (this.f.isEmpty()) {
+                hashcode = FMap.entryHash(this.key, this.value);
+            } else if (this.f instanceof NonEmptyMap<?,?> && ((NonEmptyMap<K,V>) this.f).hashed) {
+                NonEmptyMap<K,V> rest = (NonEmptyMap<K,V>) this.f;
+                NonEmptyMap<K,V> shadowed = rest.cell(this.key);
+                hashcode = rest.hash + FMap.entryHash(this.key, this.value);
+                if (shadowed != null) {
+                    hashcode -= FMap.entryHash(shadowed.key, shadowed.value);
+                }
+            } else {
+                Set<K> seen = new HashSet<K>();
+
+                // The hash code for an FMap is the hash code of all
+                // it's values * 31 ^ the key associated with it summed up
+                for (FMap<K,V> m = this; m instanceof NonEmptyMap<?,?>;
+                     m = ((NonEmptyMap<K,V>) m).f) {
+                    NonEmptyMap<K,V> cell = (NonEmptyMap<K,V>) m;
+                    if (seen.add(cell.key)) {
+                        hashcode += FMap.entryHash(cell.key, cell.value);
+                    }
+                }
             }
-
+            this.hash = hashcode;
+            this.hashed = true;
             return hashcode;
         }
 
@@ -200,10 +293,16 @@ public abstract class AssocList<K,V> extends FMap<K,V> {
 
         // Determine if every value at the keys of this FMap are the same as 
         // all the values of the given FMap at the same key
+        @SuppressWarnings(value = "unchecked")
         boolean allKeysSame(FMap<K,V> f2) {
-
-            for (K key : this.getKeys()) {
-                if (!this.get(key).equals(f2.get(key))) {
+            Set<K> seen = new HashSet<K>();
+
+            // Only the first cell holding a key counts
+            for (FMap<K,V> m = this; m instanceof NonEmptyMap<?,?>;
+                 m = ((NonEmptyMap<K,V>) m).f) {
+                NonEmptyMap<K,V> cell = (NonEmptyMap<K,V>) m;
+                if (seen.add(cell.key) &&
+                    !Objects.equals(cell.value, f2.get(cell.key))) {
                     return false;
                 }
             }
@@ -223,18 +322,22 @@ public abstract class AssocList<K,V> extends FMap<K,V> {
                 FMap<K,V> f2 = (FMap<K,V>) x;
                 FMap<K,V> f1 = this;
 
-                // A NonEmpty FMap cannot be equal to an empty FMap
-                if (f2.isEmpty()) {
+                // A NonEmpty FMap cannot be equal to an empty FMap, nor
+                // to one of another size or hash code
+                if (f1 == f2) {
+                    return true;
+                }
+                if (f2.isEmpty() || f2.size() != f1.size() ||
+                    f2.hashCode() != f1.hashCode()) {
                     return false;
                 }
 
 
                 /* Make sure both FMaps contain the same
-               keys and the same values at all of these keys */
+               keys and the same values at all of these keys. Both have
+               the same number of keys so checking one way is enough */
                 if (!(f1.containsAllKeys(f2) &&
-                        (f2.containsAllKeys(f1)) &&
-                        (f1.allKeysSame(f2)) &&
-                        (f2.allKeysSame(f1)))) {
+                        (f1.allKeysSame(f2)))) {
                     return false;
                 }                
             }
@@ -251,20 +354,23 @@ public abstract class AssocList<K,V> extends FMap<K,V> {
 
         // Return an iterator representing this FMap sorted by a given comparator
         public Iterator<K> iterator(java.util.Comparator<? super K> c) {
-            ArrayList<K> keys = new ArrayList<K>(this.getKeys());
-            Collections.sort(keys , c);
-            Collections.reverse(keys);
-            Iterator<K> it = new FMapIterator<K>(keys, this.size());
-            return it;
+            return this.sortedIterator(c);
         }
 
         // Accept the given visitor and visit each key / value
-        // pair in this FMap and return an FMap with these new values
+        // pair in this FMap and return an FMap with these new values.
+        // The cells are walked once; the first cell of each key holds
+        // its value and the cells below it with the same key are skipped
+        @SuppressWarnings(value = "unchecked")
         public FMap<K,V> accept(Visitor<K,V> vis) {
             FMap<K,V> m2 = FMap.emptyMap();
-            for (K k : this) {
-                V v = vis.visit (k, this.get (k));
-                m2 = m2.add (k, v);
+            Set<K> seen = new HashSet<K>();
+            for (FMap<K,V> m = this; m instanceof NonEmptyMap<?,?>;
+                 m = ((NonEmptyMap<K,V>) m).f) {
+                NonEmptyMap<K,V> cell = (NonEmptyMap<K,V>) m;
+                if (seen.add(cell.key)) {
+                    m2 = m2.add (cell.key, vis.visit (cell.key, cell.value));
+                }
             }
             return m2;
         }
@@ -0,0 +1,741 @@
+import java.util.*;
+
+/* An immutable B+-tree implementation of FMap ordered by a comparator
+   The pairs sit in leaves of up to MAX keys and values kept in sorted
+   arrays, and an inner node holds up to MAX children with the least key
+   of every child but the first to steer by. A tree of 10^7 keys is 5 or
+   6 nodes deep instead of the 24 or so Nodes of an FTree, so a lookup
+   touches a handful of arrays and an iterator walks the leaves array
+   by array. An entry costs two array slots, about 10 bytes with
+   compressed references, instead of a 40 byte Node.
+   add and remove copy the path from the root to the leaf, splitting a
+   full node in two and merging or evening out a node left less than
+   half full with a sibling. A Builder's nodes are made with room for
+   MAX slots and changed in place while they are its own, as FTree's
+   EditNodes are.
+   INVARIANT: The keys of a leaf, and the steering keys of an inner
+   node, are in ascending order of the comparator
+   INVARIANT: The keys below the child i of an inner node are at least
+   its steering key i - 1 and less than its steering key i
+   INVARIANT: Every leaf is at the same depth
+   INVARIANT: Every node but the root has at least MIN and at most MAX
+   keys or children. The root is a leaf, empty iff the tree is, or an
+   inner node with at least two children */
+
+public class BTree<K,V> extends FMap<K,V> {
+
+    // The most keys of a leaf and the most children of an inner node
+    private static final int MAX = 32;
+    // The fewest keys or children of a node other than the root
+    private static final int MIN = MAX / 2;
+    // Stands for no value where an add finds the key absent
+    private static final Object NOT_FOUND = new Object();
+
+    // The empty leaf every empty BTree has as its root
+    private static final Leaf<Object,Object> EMPTY =
+        new Leaf<Object,Object>(null, new Object[0], new Object[0], 0);
+
+    // The comparator that this tree is ordered by
+    private final Comparator<? super K> c;
+    // The root of the tree
+    private final Node<K,V> root;
+    // The number of keys in this tree
+    private final int size;
+    // The hash code of this tree, kept up to date by add and remove
+    private final int hash;
+    // The keys of this BTree sorted by the comparators it was iterated by,
+    // or the FMap it was made from, once either is needed; null before
+    private volatile Orderings<K> orderings;
+    BTree(Comparator<? super K> c, Node<K,V> root, int size, int hash) {
+        this.c = c;
+        this.root = root;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    // Create an empty BTree
+    @SuppressWarnings(value="unchecked")
+    public static <K,V> BTree<K,V> empty(Comparator<? super K> c) {
+        return new BTree<K,V>(c, (Node<K,V>) EMPTY, 0, 0);
+    }
+
+    // A new array with the first n elements of the given one, and room
+    // for MAX elements if it is for a node of a Builder
+    private static Object[] copy(Object edit, Object[] array, int n) {
+        return Arrays.copyOf(array, (edit == null) ? n : Math.max(n, MAX));
+    }
+
+    // A new array with the elements from to to of the given one, and room
+    // for MAX elements if it is for a node of a Builder
+    private static Object[] slice(Object edit, Object[] array, int from, int to) {
+        Object[] result = new Object[(edit == null) ? to - from : MAX];
+        System.arraycopy(array, from, result, 0, to - from);
+        return result;
+    }
+
+    // A new array with the first n elements of the given one and x put
+    // in at i, with room for at least cap elements
+    private static Object[] insert(Object[] array, int n, int i, Object x, int cap) {
+        Object[] result = new Object[Math.max(n + 1, cap)];
+        System.arraycopy(array, 0, result, 0, i);
+        result[i] = x;
+        System.arraycopy(array, i, result, i + 1, n - i);
+        return result;
+    }
+
+    // Put x in at i of the first n elements of the given array, which
+    // has room for it
+    private static void insertInPlace(Object[] array, int n, int i, Object x) {
+        System.arraycopy(array, i, array, i + 1, n - i);
+        array[i] = x;
+    }
+
+    // A new array with the first n elements of the given one but the one
+    // at i
+    private static Object[] delete(Object[] array, int n, int i) {
+        Object[] result = new Object[n - 1];
+        System.arraycopy(array, 0, result, 0, i);
+        System.arraycopy(array, i + 1, result, i, n - i - 1);
+        return result;
+    }
+
+    // A new array with the first m elements of a, then x if it is not
+    // NOT_FOUND, then the first n elements of b
+    private static Object[] concat(Object[] a, int m, Object x, Object[] b, int n) {
+        int mid = (x == NOT_FOUND) ? m : m + 1;
+        Object[] result = new Object[mid + n];
+        System.arraycopy(a, 0, result, 0, m);
+        if (x != NOT_FOUND) {
+            result[m] = x;
+        }
+        System.arraycopy(b, 0, result, mid, n);
+        return result;
+    }
+
+    // Find the given key among the first n keys, which are sorted.
+    // Return its index, or -(i + 1) where i is the index it would go at
+    @SuppressWarnings(value="unchecked")
+    private static <K> int search(Comparator<? super K> c, Object[] keys, int n, K key) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int comp = c.compare((K) keys[mid], key);
+            if (comp < 0) {
+                lo = mid + 1;
+            } else if (comp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    // A BTree is empty iff its root is an empty leaf
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // The size of a BTree is kept at the top
+    public int size() {
+        return this.size;
+    }
+
+    // Add the given value to this BTree under the given key, replacing
+    // the value if the key is already present
+    public BTree<K,V> add(K key, V value) {
+        return this.add(key, value, null);
+    }
+
+    // Add the key / value pair on behalf of the Builder owning the edit
+    // (or none if it is null). A root that splits gets a new root above it
+    @SuppressWarnings(value="unchecked")
+    BTree<K,V> add(K key, V value, Object edit) {
+        Ins<K,V> ins = new Ins<K,V>();
+        Node<K,V> result = this.root.add(this.c, key, value, edit, ins);
+        if (ins.right != null) {
+            Object[] keys = BTree.copy(edit, new Object[] {ins.sep}, 1);
+            Object[] children = BTree.copy(edit, new Object[] {result, ins.right}, 2);
+            result = new Inner<K,V>(edit, keys, children, 2);
+        }
+        // The key was already there with the very same value
+        if (ins.old == value) {
+            return this;
+        }
+        int hash = this.hash + FMap.entryHash(key, value);
+        BTree<K,V> tree;
+        if (ins.old == NOT_FOUND) {
+            tree = new BTree<K,V>(this.c, result, this.size + 1, hash);
+        } else {
+            tree = new BTree<K,V>(this.c, result, this.size,
+                                  hash - FMap.entryHash(key, ins.old));
+        }
+        return (edit == null) ? this.derive(tree, key) : tree;
+    }
+
+    // Remove the given key from this BTree, or return this BTree if it
+    // does not contain the key. A root inner node left with one child is
+    // replaced by the child
+    @SuppressWarnings(value="unchecked")
+    public BTree<K,V> remove(K key) {
+        Ins<K,V> ins = new Ins<K,V>();
+        Node<K,V> result = this.root.remove(this.c, key, ins);
+        if (result == this.root) {
+            return this;
+        }
+        if (result.n == 0) {
+            return BTree.empty(this.c);
+        }
+        if (result instanceof Inner<?,?> && result.n == 1) {
+            result = (Node<K,V>) ((Inner<K,V>) result).children[0];
+        }
+        return this.derive(new BTree<K,V>(this.c, result, this.size - 1,
+                                          this.hash - FMap.entryHash(key, ins.old)), key);
+    }
+
+    // Find the value at the given key, or return NOT_FOUND. Steers down
+    // the inner nodes by binary search, then searches the leaf
+    @SuppressWarnings(value="unchecked")
+    private Object find(K key) {
+        Node<K,V> f = this.root;
+        while (f instanceof Inner<?,?>) {
+            Inner<K,V> in = (Inner<K,V>) f;
+            f = (Node<K,V>) in.children[in.childIndex(this.c, key)];
+        }
+        int i = BTree.search(this.c, f.keys, f.n, key);
+        return (i < 0) ? NOT_FOUND : ((Leaf<K,V>) f).values[i];
+    }
+
+    // Determine if this BTree contains the given key
+    public boolean containsKey(K key) {
+        return this.find(key) != NOT_FOUND;
+    }
+
+    // Get the value at the given key, throw an exception if this BTree
+    // does not contain the key
+    @SuppressWarnings(value="unchecked")
+    public V get(K key) {
+        Object result = this.find(key);
+        if (result == NOT_FOUND) {
+            throw new RuntimeException
+                ("This FMap does not contain the specified key");
+        }
+        return (V) result;
+    }
+
+    // Compute a string representation of this BTree
+    public String toString() {
+        return "{...(" + this.size() + " entries)...}";
+    }
+
+    // The hash code of a BTree is kept at the top
+    public int hashCode() {
+        return this.hash;
+    }
+
+    // Determine if this BTree equals the given object
+    @SuppressWarnings(value = "unchecked")
+    public boolean equals(Object x) {
+        // If x is not a FMap they are not equal
+        if (!(x instanceof FMap<?,?>)) {
+            return false;
+        }
+        FMap<K,V> f2 = (FMap<K,V>) x;
+        if (this == f2) {
+            return true;
+        }
+        // FMaps of different sizes or hash codes are not equal
+        if (this.size != f2.size() || this.hash != f2.hashCode()) {
+            return false;
+        }
+
+        // Another BTree in the same order is walked alongside this one
+        if (f2 instanceof BTree<?,?> && ((BTree<K,V>) f2).c.equals(this.c)) {
+            LeafIterator<K,V> it2 = new LeafIterator<K,V>(((BTree<K,V>) f2).root, false);
+            for (LeafIterator<K,V> it = new LeafIterator<K,V>(this.root, false);
+                 it.hasNext();) {
+                if (this.c.compare(it.next(), it2.next()) != 0 ||
+                    !Objects.equals(it.value(), it2.value())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Both FMaps have the same number of keys, so if every key of this
+        // one is in f2 with the same value the two have the same keys
+        return this.containsAllKeys(f2) && this.allKeysSame(f2);
+    }
+
+    // Determine if all the keys in this BTree are contained in the given FMap
+    boolean containsAllKeys(FMap<K,V> f2) {
+        for (LeafIterator<K,V> it = new LeafIterator<K,V>(this.root, false); it.hasNext();) {
+            if (!f2.containsKey(it.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Determine if every value at the keys of this BTree is the same as
+    // the value of the given FMap at the same key
+    boolean allKeysSame(FMap<K,V> f2) {
+        for (LeafIterator<K,V> it = new LeafIterator<K,V>(this.root, false); it.hasNext();) {
+            K key = it.next();
+            if (!Objects.equals(it.value(), f2.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Get all the keys from this BTree
+    Set<K> getKeys() {
+        Set<K> keys = new HashSet<K>();
+        for (K key : this) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    // Return an iterator that walks the keys of this BTree in ascending
+    // order, leaf by leaf, without copying them
+    public Iterator<K> iterator() {
+        return new LeafIterator<K,V>(this.root, false);
+    }
+
+    // Return an iterator over the keys of this BTree sorted by the given
+    // comparator
+    public Iterator<K> iterator(Comparator<? super K> c) {
+        // The tree is already sorted by its own comparator or,
+        // walked backwards, by the reverse of it
+        if (c.equals(this.c)) {
+            return new LeafIterator<K,V>(this.root, false);
+        }
+        if (c.equals(Collections.reverseOrder(this.c)) ||
+            this.c.equals(Collections.reverseOrder(c))) {
+            return new LeafIterator<K,V>(this.root, true);
+        }
+
+        return this.sortedIterator(c);
+    }
+
+    // Get the Orderings of this BTree, or null
+    Orderings<K> getOrderings() {
+        return this.orderings;
+    }
+
+    // Keep the given Orderings for this BTree
+    void setOrderings(Orderings<K> o) {
+        this.orderings = o;
+    }
+
+    // Accept the given visitor and visit each key / value
+    // pair in this FMap and return an FMap with these new values
+    // The result has the same shape as this tree
+    public BTree<K,V> accept(Visitor<K,V> vis) {
+        Node<K,V> result = this.root.accept(vis);
+        int hash = 0;
+        for (LeafIterator<K,V> it = new LeafIterator<K,V>(result, false); it.hasNext();) {
+            K key = it.next();
+            hash += FMap.entryHash(key, it.value());
+        }
+        return new BTree<K,V>(this.c, result, this.size, hash);
+    }
+
+    // Return a Spliterator over the key / value pairs of this BTree in
+    // ascending order that reads the values from the leaves
+    Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        final LeafIterator<K,V> keys = new LeafIterator<K,V>(this.root, false);
+        Iterator<Map.Entry<K,V>> entries = new Iterator<Map.Entry<K,V>>() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public Map.Entry<K,V> next() {
+                K key = keys.next();
+                return new AbstractMap.SimpleImmutableEntry<K,V>(key, keys.value());
+            }
+        };
+        return Spliterators.spliterator(entries, this.size,
+                                        Spliterator.IMMUTABLE | Spliterator.ORDERED);
+    }
+
+    // What an add or remove below a node reports to the node above it:
+    // the value the key had, and for an add the node split off to the
+    // right of the result with its least key, if the node split
+    private static final class Ins<K,V> {
+        Object old = NOT_FOUND;
+        Node<K,V> right;
+        Object sep;
+    }
+
+    // A node of a BTree
+    abstract static class Node<K,V> {
+        // The edit token of the Builder that may change this node in
+        // place, or null
+        final Object edit;
+        // The keys of a leaf, or the steering keys of an inner node
+        final Object[] keys;
+        // The number of keys of a leaf or children of an inner node
+        int n;
+        Node(Object edit, Object[] keys, int n) {
+            this.edit = edit;
+            this.keys = keys;
+            this.n = n;
+        }
+
+        // Determine if the Builder owning the given edit may change this
+        // node in place
+        final boolean editable(Object edit) {
+            return edit != null && this.edit == edit;
+        }
+
+        // Add the key / value pair below this node on behalf of the Builder
+        // owning the given edit, setting ins.old to the value replaced. If
+        // the node overflows return its left half and set ins.right and
+        // ins.sep to the right half and its least key
+        abstract Node<K,V> add(Comparator<? super K> c, K key, V value,
+                               Object edit, Ins<K,V> ins);
+
+        // Remove the key from below this node and set ins.old to its value.
+        // Return this node if the key is not there. The result may have
+        // fewer than MIN keys or children
+        abstract Node<K,V> remove(Comparator<? super K> c, K key, Ins<K,V> ins);
+
+        // Join this node, the given steering key and a node at the same
+        // depth whose keys are all greater. The result may be too big
+        abstract Node<K,V> join(Object sep, Node<K,V> right);
+
+        // Cut this node, which holds more than MAX, in two halves. Return
+        // the left half and set ins.right and ins.sep to the right half
+        // and its least key
+        abstract Node<K,V> split(Object edit, Ins<K,V> ins);
+
+        // Visit every key / value pair below this node and return a node
+        // of the same shape with the new values
+        abstract Node<K,V> accept(Visitor<K,V> vis);
+    }
+
+    // A node holding key / value pairs
+    static final class Leaf<K,V> extends Node<K,V> {
+        // The values of the keys
+        final Object[] values;
+        Leaf(Object edit, Object[] keys, Object[] values, int n) {
+            super(edit, keys, n);
+            this.values = values;
+        }
+
+        // Put the pair at its place in this leaf, in place if this leaf
+        // belongs to the Builder and has room
+        Node<K,V> add(Comparator<? super K> c, K key, V value,
+                      Object edit, Ins<K,V> ins) {
+            int i = BTree.search(c, this.keys, this.n, key);
+            if (i >= 0) {
+                ins.old = this.values[i];
+                if (this.values[i] == value) {
+                    return this;
+                }
+                if (this.editable(edit)) {
+                    this.values[i] = value;
+                    return this;
+                }
+                Object[] values = BTree.copy(edit, this.values, this.n);
+                values[i] = value;
+                Object[] keys = (edit == null) ? this.keys : BTree.copy(edit, this.keys, this.n);
+                return new Leaf<K,V>(edit, keys, values, this.n);
+            }
+            i = -(i + 1);
+            if (this.editable(edit) && this.n < this.keys.length) {
+                BTree.insertInPlace(this.keys, this.n, i, key);
+                BTree.insertInPlace(this.values, this.n, i, value);
+                this.n++;
+                return this;
+            }
+            int cap = (edit == null) ? 0 : MAX;
+            Leaf<K,V> result = new Leaf<K,V>(edit, BTree.insert(this.keys, this.n, i, key, cap),
+                                             BTree.insert(this.values, this.n, i, value, cap),
+                                             this.n + 1);
+            return (result.n > MAX) ? result.split(edit, ins) : result;
+        }
+
+        // Copy this leaf without the key
+        Node<K,V> remove(Comparator<? super K> c, K key, Ins<K,V> ins) {
+            int i = BTree.search(c, this.keys, this.n, key);
+            if (i < 0) {
+                return this;
+            }
+            ins.old = this.values[i];
+            return new Leaf<K,V>(null, BTree.delete(this.keys, this.n, i),
+                                 BTree.delete(this.values, this.n, i), this.n - 1);
+        }
+
+        // Put the pairs of both leaves in one; a leaf needs no steering key
+        @SuppressWarnings(value="unchecked")
+        Node<K,V> join(Object sep, Node<K,V> right) {
+            Leaf<K,V> r = (Leaf<K,V>) right;
+            return new Leaf<K,V>(null, BTree.concat(this.keys, this.n, NOT_FOUND, r.keys, r.n),
+                                 BTree.concat(this.values, this.n, NOT_FOUND, r.values, r.n),
+                                 this.n + r.n);
+        }
+
+        // Cut this leaf in two halves of its pairs
+        Node<K,V> split(Object edit, Ins<K,V> ins) {
+            int half = this.n / 2;
+            ins.right = new Leaf<K,V>(edit, BTree.slice(edit, this.keys, half, this.n),
+                                      BTree.slice(edit, this.values, half, this.n),
+                                      this.n - half);
+            ins.sep = this.keys[half];
+            return new Leaf<K,V>(edit, BTree.slice(edit, this.keys, 0, half),
+                                 BTree.slice(edit, this.values, 0, half), half);
+        }
+
+        // Visit the pairs, sharing the keys unless a Builder may change them
+        @SuppressWarnings(value="unchecked")
+        Node<K,V> accept(Visitor<K,V> vis) {
+            Object[] values = new Object[this.n];
+            for (int i = 0; i < this.n; i++) {
+                values[i] = vis.visit((K) this.keys[i], (V) this.values[i]);
+            }
+            Object[] keys = (this.edit == null) ? this.keys : Arrays.copyOf(this.keys, this.n);
+            return new Leaf<K,V>(null, keys, values, this.n);
+        }
+    }
+
+    // A node steering to its children by the least keys of all but the
+    // first of them
+    static final class Inner<K,V> extends Node<K,V> {
+        // The children, in ascending order of their keys
+        final Object[] children;
+        Inner(Object edit, Object[] keys, Object[] children, int n) {
+            super(edit, keys, n);
+            this.children = children;
+        }
+
+        // The index of the child whose keys may hold the given key: the
+        // number of steering keys less than or equal to it
+        @SuppressWarnings(value="unchecked")
+        int childIndex(Comparator<? super K> c, K key) {
+            int lo = 0;
+            int hi = this.n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (c.compare((K) this.keys[mid], key) <= 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        // Add the pair to the child it belongs to, then take in the right
+        // half of the child if it split
+        @SuppressWarnings(value="unchecked")
+        Node<K,V> add(Comparator<? super K> c, K key, V value,
+                      Object edit, Ins<K,V> ins) {
+            int i = this.childIndex(c, key);
+            Node<K,V> child = (Node<K,V>) this.children[i];
+            Node<K,V> result = child.add(c, key, value, edit, ins);
+            Node<K,V> right = ins.right;
+            if (right == null) {
+                if (result == child) {
+                    return this;
+                }
+                if (this.editable(edit)) {
+                    this.children[i] = result;
+                    return this;
+                }
+                Object[] children = BTree.copy(edit, this.children, this.n);
+                children[i] = result;
+                Object[] keys = (edit == null) ? this.keys : BTree.copy(edit, this.keys, this.n - 1);
+                return new Inner<K,V>(edit, keys, children, this.n);
+            }
+            Object sep = ins.sep;
+            ins.right = null;
+            ins.sep = null;
+            if (this.editable(edit) && this.n < this.children.length) {
+                this.children[i] = result;
+                BTree.insertInPlace(this.keys, this.n - 1, i, sep);
+                BTree.insertInPlace(this.children, this.n, i + 1, right);
+                this.n++;
+                return this;
+            }
+            int cap = (edit == null) ? 0 : MAX;
+            Object[] children = BTree.insert(this.children, this.n, i + 1, right, cap);
+            children[i] = result;
+            Inner<K,V> inner = new Inner<K,V>(edit, BTree.insert(this.keys, this.n - 1, i, sep, cap),
+                                              children, this.n + 1);
+            return (inner.n > MAX) ? inner.split(edit, ins) : inner;
+        }
+
+        // Remove the key from the child it belongs to, then join a child
+        // left with fewer than MIN keys or children with a sibling, cutting
+        // them in two again if they hold more than MAX together
+        @SuppressWarnings(value="unchecked")
+        Node<K,V> remove(Comparator<? super K> c, K key, Ins<K,V> ins) {
+            int i = this.childIndex(c, key);
+            Node<K,V> child = (Node<K,V>) this.children[i];
+            Node<K,V> result = child.remove(c, key, ins);
+            if (result == child) {
+                return this;
+            }
+            if (result.n >= MIN) {
+                Object[] children = BTree.copy(null, this.children, this.n);
+                children[i] = result;
+                return new Inner<K,V>(null, BTree.copy(null, this.keys, this.n - 1),
+                                      children, this.n);
+            }
+            // Join with the sibling on the left, or on the right for the first
+            int l = (i > 0) ? i - 1 : i;
+            Node<K,V> left = (l == i) ? result : (Node<K,V>) this.children[l];
+            Node<K,V> right = (l == i) ? (Node<K,V>) this.children[i + 1] : result;
+            Node<K,V> joined = left.join(this.keys[l], right);
+            Object[] keys;
+            Object[] children;
+            if (joined.n <= MAX) {
+                keys = BTree.delete(this.keys, this.n - 1, l);
+                children = BTree.delete(this.children, this.n, l + 1);
+                children[l] = joined;
+            } else {
+                Ins<K,V> halves = new Ins<K,V>();
+                keys = BTree.copy(null, this.keys, this.n - 1);
+                children = BTree.copy(null, this.children, this.n);
+                children[l] = joined.split(null, halves);
+                children[l + 1] = halves.right;
+                keys[l] = halves.sep;
+            }
+            return new Inner<K,V>(null, keys, children, children.length);
+        }
+
+        // Put the children of both nodes in one, steering to those of the
+        // right one by sep
+        @SuppressWarnings(value="unchecked")
+        Node<K,V> join(Object sep, Node<K,V> right) {
+            Inner<K,V> r = (Inner<K,V>) right;
+            return new Inner<K,V>(null, BTree.concat(this.keys, this.n - 1, sep, r.keys, r.n - 1),
+                                  BTree.concat(this.children, this.n, NOT_FOUND, r.children, r.n),
+                                  this.n + r.n);
+        }
+
+        // Cut this node in two halves of its children. The steering key
+        // between them moves up
+        Node<K,V> split(Object edit, Ins<K,V> ins) {
+            int half = this.n / 2;
+            ins.right = new Inner<K,V>(edit, BTree.slice(edit, this.keys, half, this.n - 1),
+                                       BTree.slice(edit, this.children, half, this.n),
+                                       this.n - half);
+            ins.sep = this.keys[half - 1];
+            return new Inner<K,V>(edit, BTree.slice(edit, this.keys, 0, half - 1),
+                                  BTree.slice(edit, this.children, 0, half), half);
+        }
+
+        // Visit the children, sharing the steering keys unless a Builder
+        // may change them
+        @SuppressWarnings(value="unchecked")
+        Node<K,V> accept(Visitor<K,V> vis) {
+            Object[] children = new Object[this.n];
+            for (int i = 0; i < this.n; i++) {
+                children[i] = ((Node<K,V>) this.children[i]).accept(vis);
+            }
+            Object[] keys = (this.edit == null) ? this.keys : Arrays.copyOf(this.keys, this.n - 1);
+            return new Inner<K,V>(null, keys, children, this.n);
+        }
+    }
+
+    // An Iterator<K> that walks the leaves of a BTree in ascending order,
+    // or descending if asked, keeping only the path from the root
+    static final class LeafIterator<K,V> implements Iterator<K> {
+        // True iff the keys are walked in descending order
+        private final boolean descending;
+        // The inner nodes on the path to the current leaf
+        private final Inner<?,?>[] path;
+        // The index of the next child to walk in each node of the path
+        private final int[] next;
+        // The number of inner nodes on the path
+        private int depth;
+        // The current leaf, null once the walk is done
+        private Leaf<K,V> leaf;
+        // The index of the next key in the leaf
+        private int i;
+        // The value at the key last returned by next
+        private V value;
+        LeafIterator(Node<K,V> root, boolean descending) {
+            this.descending = descending;
+            int height = 0;
+            for (Node<?,?> f = root; f instanceof Inner<?,?>;
+                 f = (Node<?,?>) ((Inner<?,?>) f).children[0]) {
+                height++;
+            }
+            this.path = new Inner<?,?>[height];
+            this.next = new int[height];
+            if (root.n != 0) {
+                this.descend(root);
+            }
+        }
+
+        // Go down from the given node to its first leaf in walking order
+        @SuppressWarnings(value="unchecked")
+        private void descend(Node<K,V> f) {
+            while (f instanceof Inner<?,?>) {
+                Inner<K,V> in = (Inner<K,V>) f;
+                int first = this.descending ? in.n - 1 : 0;
+                this.path[this.depth] = in;
+                this.next[this.depth] = this.descending ? first - 1 : first + 1;
+                this.depth++;
+                f = (Node<K,V>) in.children[first];
+            }
+            this.leaf = (Leaf<K,V>) f;
+            this.i = this.descending ? f.n - 1 : 0;
+        }
+
+        // Move to the next leaf, climbing out of the inner nodes whose
+        // children are all walked
+        @SuppressWarnings(value="unchecked")
+        private void advance() {
+            while (this.depth > 0) {
+                Inner<K,V> in = (Inner<K,V>) this.path[this.depth - 1];
+                int j = this.next[this.depth - 1];
+                if (j >= 0 && j < in.n) {
+                    this.next[this.depth - 1] = this.descending ? j - 1 : j + 1;
+                    this.descend((Node<K,V>) in.children[j]);
+                    return;
+                }
+                this.path[--this.depth] = null;
+            }
+            this.leaf = null;
+        }
+
+        // The iterator has next until the walk is done
+        public boolean hasNext() {
+            return this.leaf != null;
+        }
+
+        // Return the next key and move past it
+        @SuppressWarnings(value="unchecked")
+        public K next() {
+            if (this.leaf == null) {
+                throw new NoSuchElementException();
+            }
+            Leaf<K,V> f = this.leaf;
+            int j = this.i;
+            this.value = (V) f.values[j];
+            this.i = this.descending ? j - 1 : j + 1;
+            if (this.i < 0 || this.i >= f.n) {
+                this.advance();
+            }
+            return (K) f.keys[j];
+        }
+
+        // The value at the key last returned by next
+        V value() {
+            return this.value;
+        }
+
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
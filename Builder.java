@@ -0,0 +1,61 @@
+// A transient FMap for applying many additions in a row
+
+/* A Builder owns a fresh edit token. FMap implementations that support
+   it tag the nodes they create for a Builder with its token and change
+   those nodes in place on later additions instead of copying them.
+   Nodes that existed before the Builder are never changed, so every
+   FMap obtained earlier keeps its value. persistent() retires the token
+   in O(1); after that the Builder cannot be used any more.
+   A Builder must not be shared between threads. */
+
+public class Builder<K,V> {
+    // The map built so far
+    private FMap<K,V> map;
+    // The token marking the nodes this Builder may change in place,
+    // null once persistent() has been called
+    private Object edit;
+    Builder(FMap<K,V> map) {
+        this.map = map;
+        this.edit = new Object();
+    }
+
+    // Throw an exception if persistent() has already been called
+    private void ensureEditable() {
+        if (this.edit == null) {
+            throw new RuntimeException("Builder used after persistent() call");
+        }
+    }
+
+    // Add the given value under the given key and return this Builder
+    public Builder<K,V> add(K key, V value) {
+        this.ensureEditable();
+        this.map = this.map.add(key, value, this.edit);
+        return this;
+    }
+
+    // Determine the number of keys added so far
+    public int size() {
+        this.ensureEditable();
+        return this.map.size();
+    }
+
+    // Determine if the given key has been added
+    public boolean containsKey(K key) {
+        this.ensureEditable();
+        return this.map.containsKey(key);
+    }
+
+    // Get the value at the given key
+    public V get(K key) {
+        this.ensureEditable();
+        return this.map.get(key);
+    }
+
+    // Return the built FMap and retire this Builder
+    public FMap<K,V> persistent() {
+        this.ensureEditable();
+        this.map = this.map.retire(this.edit);
+        this.edit = null;
+        return this.map;
+    }
+}
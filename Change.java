@@ -0,0 +1,90 @@
+import java.util.*;
+
+/* A change of one key between two FMaps, as returned by FMap.diff
+   An ADDED key has no old value, a REMOVED key has no new value, and
+   a CHANGED key has both */
+
+public final class Change<K,V> {
+
+    // The kinds of change
+    public enum Kind { ADDED, REMOVED, CHANGED }
+
+    // The kind of this change
+    private final Kind kind;
+    // The key
+    private final K key;
+    // The value before the change, null if the key was added
+    private final V oldValue;
+    // The value after the change, null if the key was removed
+    private final V newValue;
+    private Change(Kind kind, K key, V oldValue, V newValue) {
+        this.kind = kind;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    // The given key added with the given value
+    public static <K,V> Change<K,V> added(K key, V value) {
+        return new Change<K,V>(Kind.ADDED, key, null, value);
+    }
+
+    // The given key removed with the given value
+    public static <K,V> Change<K,V> removed(K key, V value) {
+        return new Change<K,V>(Kind.REMOVED, key, value, null);
+    }
+
+    // The value at the given key changed from oldValue to newValue
+    public static <K,V> Change<K,V> changed(K key, V oldValue, V newValue) {
+        return new Change<K,V>(Kind.CHANGED, key, oldValue, newValue);
+    }
+
+    // Get the kind of this change
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    // Get the key
+    public K getKey() {
+        return this.key;
+    }
+
+    // Get the value before the change
+    public V getOldValue() {
+        return this.oldValue;
+    }
+
+    // Get the value after the change
+    public V getNewValue() {
+        return this.newValue;
+    }
+
+    // Two changes are equal if they are of the same kind with equal keys
+    // and values
+    public boolean equals(Object x) {
+        if (!(x instanceof Change<?,?>)) {
+            return false;
+        }
+        Change<?,?> ch = (Change<?,?>) x;
+        return this.kind == ch.kind && this.key.equals(ch.key) &&
+            Objects.equals(this.oldValue, ch.oldValue) &&
+            Objects.equals(this.newValue, ch.newValue);
+    }
+
+    // Hash the kind, key and values
+    public int hashCode() {
+        return Objects.hash(this.kind, this.key, this.oldValue, this.newValue);
+    }
+
+    // Show the kind, the key and the values
+    public String toString() {
+        switch (this.kind) {
+        case ADDED:
+            return "+" + this.key + "=" + this.newValue;
+        case REMOVED:
+            return "-" + this.key + "=" + this.oldValue;
+        default:
+            return "~" + this.key + "=" + this.oldValue + "->" + this.newValue;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Codec interface for the keys and values of mapped FMaps
+
+public interface Codec<T> {
+
+    // Given a value, returns the bytes that stand for it.
+
+    public byte[] encode (T value);
+
+    // Given a buffer and the offset and length of the bytes of a value,
+    // returns the value. Only reads the buffer by absolute index.
+
+    public T decode (ByteBuffer buf, int offset, int length);
+
+    // Integers as four bytes
+    public static final Codec<Integer> INT = new Codec<Integer>() {
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(4).putInt(value).array();
+        }
+
+        public Integer decode(ByteBuffer buf, int offset, int length) {
+            return buf.getInt(offset);
+        }
+    };
+
+    // Longs as eight bytes
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        public byte[] encode(Long value) {
+            return ByteBuffer.allocate(8).putLong(value).array();
+        }
+
+        public Long decode(ByteBuffer buf, int offset, int length) {
+            return buf.getLong(offset);
+        }
+    };
+
+    // Strings as UTF-8 bytes
+    public static final Codec<String> UTF8 = new Codec<String>() {
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        public String decode(ByteBuffer buf, int offset, int length) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buf.get(offset + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
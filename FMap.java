@@ -1,11 +1,13 @@
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 // The immutable FMap ADT
 public abstract class FMap<K, V> implements Iterable<K> {
 
     // Crease an empty FMap
     public static <K,V> FMap<K,V> emptyMap() {
-        return AssocList.empty();
+        return HashTrie.empty();
     }
 
     // Create an empty FMap with a comparator
@@ -13,12 +15,28 @@ public abstract class FMap<K, V> implements Iterable<K> {
         return FTree.emptyTree(c);      
     }
 
+    // Create an empty FMap with a comparator that keeps its keys in the
+    // wide array nodes of a B+-tree, for large maps
+    public static <K,V> FMap<K,V> emptyBTree(java.util.Comparator<? super K> c) {
+        return BTree.empty(c);
+    }
+
+    // Create an empty FMap of CharSequence keys in lexicographic order,
+    // kept in an adaptive radix tree
+    public static <K extends CharSequence,V> FMap<K,V> emptyRadixTree() {
+        return RadixTree.empty();
+    }
+
     // Determine if this FMap is empty
     public abstract boolean isEmpty();
 
     // Add the given value to the FMap under the given key
     public abstract FMap<K,V> add(K key, V value);
 
+    // Remove the given key and its value from the FMap, or return
+    // this FMap if it does not contain the key
+    public abstract FMap<K,V> remove(K key);
+
     // Determine the size of this FMap
     public abstract int size();
 
@@ -31,8 +49,15 @@ public abstract class FMap<K, V> implements Iterable<K> {
     // Compute a string representation of this FMap
     public abstract String toString();
 
-    // Compute the hash code of this FMap
+    // Compute the hash code of this FMap, the sum of the entryHash
+    // of all its key / value pairs
     public abstract int hashCode();
+
+    // The hash code a key / value pair adds to the hash code of an FMap
+    static int entryHash(Object key, Object value) {
+        return (Objects.hashCode(value) * 31) ^ Objects.hashCode(key);
+    }
+
     // Determine if this FMap equals the given object
     public abstract boolean equals(Object x);
 
@@ -59,4 +84,223 @@ public abstract class FMap<K, V> implements Iterable<K> {
     // pair in this FMap and return an FMap with these new values
     public abstract FMap<K,V> accept(Visitor<K,V> v);
 
-}
\ No newline at end of file
+    // Get the keys of this FMap sorted by the comparators it was iterated
+    // by, or the FMap it was made from, once either is needed; null before.
+    // Only the types that stand for a whole map keep them, so a cell of an
+    // AssocList or a view over another FMap has none and sorts its keys
+    // each time
+    Orderings<K> getOrderings() {
+        return null;
+    }
+
+    // Keep the given Orderings for this FMap, if it is of a type that does
+    void setOrderings(Orderings<K> o) {
+    }
+
+    // Return an iterator over the keys of this FMap sorted by the given
+    // comparator, sharing the keys sorted by it the last time or patching
+    // those of an FMap this one was made from, and sorting them otherwise
+    Iterator<K> sortedIterator(java.util.Comparator<? super K> c) {
+        // Empty FMaps may be shared by all maps of a kind
+        if (this.isEmpty()) {
+            return Orderings.iterator(new Object[0]);
+        }
+        Orderings<K> o = this.getOrderings();
+        if (o == null) {
+            o = new Orderings<K>(null, null, 0);
+            this.setOrderings(o);
+        }
+        return Orderings.iterator(o.sorted(this, c));
+    }
+
+    // Return the given FMap, made from this one by adding or removing the
+    // given key, linked to the Orderings of this one if this one or an
+    // FMap it was made from a few changes before has sorted its keys, so
+    // that the given one can patch them rather than sort its own
+    <M extends FMap<K,V>> M derive(M result, K key) {
+        Orderings<K> o = this.getOrderings();
+        if (o != null && result != this && result.getOrderings() == null &&
+            !result.isEmpty()) {
+            result.setOrderings(o.derived(key));
+        }
+        return result;
+    }
+
+    // Return a view of this FMap with the values the given visitor returns
+    // for its values. Unlike accept, which visits every value at once, the
+    // view visits a value each time it is read
+    public LazyMap<K,V> mapValuesLazy(Visitor<K,V> vis) {
+        return new LazyMap<K,V>(this, vis, false);
+    }
+
+    // Return a view like mapValuesLazy(vis) that, if memoize is true,
+    // keeps every value it visits so that it is visited once
+    public LazyMap<K,V> mapValuesLazy(Visitor<K,V> vis, boolean memoize) {
+        return new LazyMap<K,V>(this, vis, memoize);
+    }
+
+    // Return a Spliterator over the keys of this FMap that knows its size
+    public Spliterator<K> spliterator() {
+        return Spliterators.spliterator(this.iterator(), this.size(),
+                                        Spliterator.IMMUTABLE);
+    }
+
+    // Return a sequential Stream of the key / value pairs of this FMap
+    public Stream<Map.Entry<K,V>> entryStream() {
+        return StreamSupport.stream(this.entrySpliterator(), false);
+    }
+
+    // Return a parallel Stream of the key / value pairs of this FMap
+    public Stream<Map.Entry<K,V>> parallelStream() {
+        return StreamSupport.stream(this.entrySpliterator(), true);
+    }
+
+    // Return a Spliterator over the key / value pairs of this FMap
+    Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        final Iterator<K> keys = this.iterator();
+        Iterator<Map.Entry<K,V>> entries = new Iterator<Map.Entry<K,V>>() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public Map.Entry<K,V> next() {
+                K key = keys.next();
+                return new AbstractMap.SimpleImmutableEntry<K,V>
+                    (key, FMap.this.get(key));
+            }
+        };
+        return Spliterators.spliterator(entries, this.size(), Spliterator.IMMUTABLE);
+    }
+
+    /* Return the changes that turn this FMap into the given one: the
+       keys only the given FMap has are ADDED, the keys only this one has
+       are REMOVED, and the keys whose values differ (by equals) are
+       CHANGED. This walks the keys of both FMaps; FTrees and HashTries
+       skip the parts that two versions of one map share, so the changes
+       between versions cost time in proportion to their number */
+    public Stream<Change<K,V>> diff(FMap<K,V> other) {
+        if (other == this) {
+            return Stream.empty();
+        }
+        return FMap.stream(new KeyDiff<K,V>(this, other), Spliterator.NONNULL);
+    }
+
+    /* Apply the given changes, as returned by diff, and return the
+       resulting FMap: the keys ADDED or CHANGED get their new values and
+       the keys REMOVED are removed. Applied to the FMap the changes were
+       taken from this returns one equal to the FMap they lead to. The
+       additions are made under one edit token, as a Builder would, so the
+       paths of several changes are copied once */
+    public FMap<K,V> applyDiff(Stream<Change<K,V>> changes) {
+        FMap<K,V> m = this;
+        Object edit = new Object();
+        for (Iterator<Change<K,V>> it = changes.iterator(); it.hasNext();) {
+            Change<K,V> ch = it.next();
+            if (ch.getKind() == Change.Kind.REMOVED) {
+                // remove makes untagged Nodes over the tagged ones, so the
+                // token is retired first and the adds after take a new one
+                m = m.retire(edit).remove(ch.getKey());
+                edit = new Object();
+            } else {
+                m = m.add(ch.getKey(), ch.getNewValue(), edit);
+            }
+        }
+        return m.retire(edit);
+    }
+
+    // A sequential Stream of the changes of the given iterator
+    static <K,V> Stream<Change<K,V>> stream(Iterator<Change<K,V>> changes,
+                                            int characteristics) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize
+                                    (changes, characteristics | Spliterator.IMMUTABLE),
+                                    false);
+    }
+
+    // Return a Builder that starts from the keys of this FMap
+    public Builder<K,V> transientCopy() {
+        return new Builder<K,V>(this);
+    }
+
+    // Add the given value under the given key on behalf of the Builder
+    // owning the given edit token. Nodes tagged with the token may be
+    // changed in place; by default nothing is and the key is just added
+    FMap<K,V> add(K key, V value, Object edit) {
+        return this.add(key, value);
+    }
+
+    // Return this FMap once the given edit token, or null for none, is
+    // retired and its Nodes will not change any more. By default that is
+    // this FMap
+    FMap<K,V> retire(Object edit) {
+        return this;
+    }
+
+    // The changes between two FMaps found by looking every key of each
+    // up in the other: first those of the keys of the first FMap, then
+    // the keys only the second one has
+    private static class KeyDiff<K,V> implements Iterator<Change<K,V>> {
+        // The FMaps before and after the changes
+        private final FMap<K,V> before;
+        private final FMap<K,V> after;
+        // The keys of before, then those of after
+        private Iterator<K> keys;
+        // True once the keys of after are walked
+        private boolean adding;
+        // The next change, null if there is none
+        private Change<K,V> next;
+        KeyDiff(FMap<K,V> before, FMap<K,V> after) {
+            this.before = before;
+            this.after = after;
+            this.keys = before.iterator();
+            this.next = this.advance();
+        }
+
+        // Find the next change
+        private Change<K,V> advance() {
+            while (true) {
+                if (!this.keys.hasNext()) {
+                    if (this.adding) {
+                        return null;
+                    }
+                    this.adding = true;
+                    this.keys = this.after.iterator();
+                } else if (this.adding) {
+                    K key = this.keys.next();
+                    if (!this.before.containsKey(key)) {
+                        return Change.added(key, this.after.get(key));
+                    }
+                } else {
+                    K key = this.keys.next();
+                    V value = this.before.get(key);
+                    if (!this.after.containsKey(key)) {
+                        return Change.removed(key, value);
+                    }
+                    V value2 = this.after.get(key);
+                    if (!Objects.equals(value, value2)) {
+                        return Change.changed(key, value, value2);
+                    }
+                }
+            }
+        }
+
+        // There is a next change until none is left
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        // Return the next change and find the one after it
+        public Change<K,V> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            Change<K,V> ch = this.next;
+            this.next = this.advance();
+            return ch;
+        }
+
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
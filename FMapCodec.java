@@ -0,0 +1,321 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/* A streaming binary format for FMaps, with Codecs for the keys and
+   the values
+     magic    4 bytes, "FMS1"
+     flags    1 byte, DELTA if the keys are longs written as differences
+     count    varint, the number of entries
+     entries  count times a key and then a value
+   A key is a varint length and the bytes its Codec encodes or, with
+   DELTA, the zigzag varint of its difference from the key before it
+   (0 before the first). A value is a varint length and its bytes. A
+   varint is 7 bits to a byte, low bits first, with the high bit set on
+   every byte but the last. Entries are written in the order of iterator(),
+   key order for an FTree, where differences between keys are smallest.
+   A Loader reads the format as it arrives, in pieces of any size, and
+   adds every entry to a Builder as soon as its last byte is in, holding
+   no more than the entry being read. Entries arriving in ascending order
+   for an empty FTree are appended in O(1) amortized time each, so an
+   FTree written by an FTree is loaded in O(n) */
+
+public class FMapCodec<K,V> {
+
+    // The first four bytes, "FMS1"
+    private static final int MAGIC = 0x464D5331;
+    // The flag of keys written as differences
+    private static final int DELTA = 1;
+    // The number of bytes before the count
+    private static final int HEADER = 5;
+
+    // The Codec of the keys, null if they are written as differences
+    private final Codec<K> keys;
+    // The Codec of the values
+    private final Codec<V> values;
+    // True iff the keys are longs written as differences
+    private final boolean delta;
+    public FMapCodec(Codec<K> keys, Codec<V> values) {
+        this(keys, values, false);
+    }
+
+    private FMapCodec(Codec<K> keys, Codec<V> values, boolean delta) {
+        this.keys = keys;
+        this.values = values;
+        this.delta = delta;
+    }
+
+    // Return a codec of FMaps with Long keys, writing every key as its
+    // difference from the key before it
+    public static <V> FMapCodec<Long,V> deltaKeys(Codec<V> values) {
+        return new FMapCodec<Long,V>(null, values, true);
+    }
+
+    // Write the given FMap to the given stream, which is flushed but not
+    // closed
+    public void write(FMap<K,V> map, OutputStream out) throws IOException {
+        OutputStream o = new BufferedOutputStream(out, 8192);
+        o.write(MAGIC >>> 24);
+        o.write(MAGIC >>> 16);
+        o.write(MAGIC >>> 8);
+        o.write(MAGIC);
+        o.write(this.delta ? DELTA : 0);
+        FMapCodec.writeVarint(o, map.size());
+        long prev = 0;
+        for (Iterator<Map.Entry<K,V>> it = map.entryStream().iterator(); it.hasNext();) {
+            Map.Entry<K,V> e = it.next();
+            if (this.delta) {
+                long key = (Long) e.getKey();
+                long d = key - prev;
+                FMapCodec.writeVarint(o, (d << 1) ^ (d >> 63));
+                prev = key;
+            } else {
+                FMapCodec.writeBytes(o, this.keys.encode(e.getKey()));
+            }
+            FMapCodec.writeBytes(o, this.values.encode(e.getValue()));
+        }
+        o.flush();
+    }
+
+    // Read an FMap from the given stream, adding its entries to the given
+    // FMap. Nothing past the end of the FMap is read, so the stream may go
+    // on with other data; it is read in small pieces, so a buffered stream
+    // is best
+    public FMap<K,V> read(InputStream in, FMap<K,V> into) throws IOException {
+        Loader loader = this.loader(into);
+        byte[] buf = new byte[8192];
+        while (!loader.isComplete()) {
+            int n = in.read(buf, 0, Math.min(buf.length, loader.needed()));
+            if (n == -1) {
+                throw new EOFException("The stream ends inside an FMap");
+            }
+            loader.feed(buf, 0, n);
+        }
+        return loader.result();
+    }
+
+    // Return a Loader adding the entries it reads to the given FMap
+    public Loader loader(FMap<K,V> into) {
+        return new Loader(into);
+    }
+
+    // Write the given number as a varint
+    private static void writeVarint(OutputStream o, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            o.write((int) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        o.write((int) n);
+    }
+
+    // Write the length of the given bytes as a varint and then the bytes
+    private static void writeBytes(OutputStream o, byte[] bytes) throws IOException {
+        FMapCodec.writeVarint(o, bytes.length);
+        o.write(bytes);
+    }
+
+    /* Reads the format from bytes fed to it in pieces as they arrive. It
+       keeps the bytes of the item it is reading (the header, a varint, or
+       the bytes of a key or a value) and decodes it once it is all in */
+    public class Loader {
+        // What the item being read is
+        private static final int MAGIC_AND_FLAGS = 0;
+        private static final int COUNT = 1;
+        private static final int KEY_LENGTH = 2;
+        private static final int KEY = 3;
+        private static final int VALUE_LENGTH = 4;
+        private static final int VALUE = 5;
+        private static final int DONE = 6;
+
+        // The item being read
+        private int state = MAGIC_AND_FLAGS;
+        // The bytes of the item read so far
+        private byte[] buf = new byte[16];
+        private int length;
+        // The length of a key or value item
+        private int want;
+        // The number of entries, and the number read
+        private int count;
+        private int loaded;
+        // The key read, and the key before it for differences
+        private K key;
+        private long prev;
+        // What the entries are added to: an Appender while they come in
+        // ascending order for an empty FTree, otherwise a Builder
+        private FTree.Appender<K,V> appender;
+        private Builder<K,V> builder;
+        // The FMap loaded once complete
+        private FMap<K,V> result;
+        Loader(FMap<K,V> into) {
+            if (into instanceof FTree<?,?> && into.isEmpty()) {
+                this.appender = ((FTree<K,V>) into).appender();
+            } else {
+                this.builder = into.transientCopy();
+            }
+        }
+
+        // Determine if the whole FMap has been read
+        public boolean isComplete() {
+            return this.state == DONE;
+        }
+
+        // The number of bytes that can be fed without going past the end
+        // of the FMap: the rest of a key or value, or else one byte
+        public int needed() {
+            switch (this.state) {
+            case MAGIC_AND_FLAGS:
+                return HEADER - this.length;
+            case KEY:
+            case VALUE:
+                return Math.max(1, this.want - this.length);
+            case DONE:
+                return 0;
+            default:
+                return 1;
+            }
+        }
+
+        // Read the given bytes, stopping at the end of the FMap. Return
+        // the number of bytes read
+        public int feed(byte[] b, int off, int n) {
+            int start = off;
+            int end = off + n;
+            while (off < end && this.state != DONE) {
+                if (this.state == MAGIC_AND_FLAGS || this.state == KEY ||
+                    this.state == VALUE) {
+                    int m = Math.min(end - off, this.needed());
+                    this.take(b, off, m);
+                    off += m;
+                    if (this.length == ((this.state == MAGIC_AND_FLAGS) ? HEADER : this.want)) {
+                        this.next();
+                    }
+                } else {
+                    this.take(b, off, 1);
+                    if ((b[off++] & 0x80) == 0) {
+                        this.next();
+                    } else if (this.length == 10) {
+                        throw new RuntimeException("A varint is too long");
+                    }
+                }
+            }
+            return off - start;
+        }
+
+        // Keep the given bytes of the item being read
+        private void take(byte[] b, int off, int n) {
+            if (this.length + n > this.buf.length) {
+                this.buf = Arrays.copyOf(this.buf, Math.max(2 * this.buf.length,
+                                                            this.length + n));
+            }
+            System.arraycopy(b, off, this.buf, this.length, n);
+            this.length += n;
+        }
+
+        // The varint that is the item just read
+        private long varint() {
+            long n = 0;
+            for (int i = 0; i < this.length; i++) {
+                n |= (long) (this.buf[i] & 0x7F) << (7 * i);
+            }
+            return n;
+        }
+
+        // The length of a key or value that is the item just read
+        private int varlength() {
+            long n = this.varint();
+            if (n < 0 || n > Integer.MAX_VALUE) {
+                throw new RuntimeException("A length is out of range");
+            }
+            return (int) n;
+        }
+
+        // Decode the item just read and move to the next one
+        @SuppressWarnings(value="unchecked")
+        private void next() {
+            FMapCodec<K,V> codec = FMapCodec.this;
+            switch (this.state) {
+            case MAGIC_AND_FLAGS:
+                ByteBuffer header = ByteBuffer.wrap(this.buf);
+                if (header.getInt(0) != MAGIC) {
+                    throw new RuntimeException("Not an FMap stream");
+                }
+                if ((header.get(4) & DELTA) != (codec.delta ? DELTA : 0)) {
+                    throw new RuntimeException("The keys are not encoded as this codec expects");
+                }
+                this.state = COUNT;
+                break;
+            case COUNT:
+                this.count = this.varlength();
+                this.state = (this.count == 0) ? this.finish() : KEY_LENGTH;
+                break;
+            case KEY_LENGTH:
+                if (codec.delta) {
+                    long z = this.varint();
+                    this.prev += (z >>> 1) ^ -(z & 1);
+                    this.key = (K) (Long) this.prev;
+                    this.state = VALUE_LENGTH;
+                } else {
+                    this.want = this.varlength();
+                    this.state = KEY;
+                }
+                break;
+            case KEY:
+                this.key = codec.keys.decode(ByteBuffer.wrap(this.buf), 0, this.want);
+                this.state = VALUE_LENGTH;
+                break;
+            case VALUE_LENGTH:
+                this.want = this.varlength();
+                this.state = VALUE;
+                break;
+            case VALUE:
+                this.add(this.key, codec.values.decode(ByteBuffer.wrap(this.buf), 0, this.want));
+                this.key = null;
+                this.loaded++;
+                this.state = (this.loaded == this.count) ? this.finish() : KEY_LENGTH;
+                break;
+            }
+            this.length = 0;
+            // A key or value with no bytes is read already
+            if ((this.state == KEY || this.state == VALUE) && this.want == 0) {
+                this.next();
+            }
+        }
+
+        // Add an entry, leaving the Appender for a Builder at the first key
+        // out of order
+        private void add(K key, V value) {
+            if (this.appender != null) {
+                if (this.appender.accepts(key)) {
+                    this.appender.append(key, value);
+                    return;
+                }
+                this.builder = this.appender.tree().transientCopy();
+                this.appender = null;
+            }
+            this.builder.add(key, value);
+        }
+
+        // Build the FMap loaded and return DONE
+        private int finish() {
+            this.result = (this.appender != null) ?
+                this.appender.tree() : this.builder.persistent();
+            this.appender = null;
+            this.builder = null;
+            this.buf = null;
+            return DONE;
+        }
+
+        // Get the number of entries read so far
+        public int loaded() {
+            return this.loaded;
+        }
+
+        // Get the FMap loaded, once the whole of it has been read
+        public FMap<K,V> result() {
+            if (this.state != DONE) {
+                throw new RuntimeException("The FMap has not been read to its end");
+            }
+            return this.result;
+        }
+    }
+}
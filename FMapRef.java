@@ -0,0 +1,205 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+/* A reference to an FMap shared by many threads
+   Reads take the current version with one volatile read, so they are
+   wait-free and always see an immutable FMap.
+   Writes use flat combining: a writer that finds no other thread
+   combining takes the combiner lock and applies its own operation and
+   the operations waiting on a queue (up to MAX_BATCH) to the current
+   version, publishing a single new version for the whole round.
+   Otherwise it puts its operation on the queue and waits for it to be
+   done, combining in turn if the lock comes free. A waiting writer
+   spins briefly, then parks until a combiner wakes it: the one that
+   applied its operation, or the one that let go of the lock with the
+   operation still queued. So writers do not rebuild paths that a failed
+   compare and set throws away, and, as with a Builder, the paths
+   several writers of one round share are copied once.
+   A null value stands for an absent key, so the map may not hold null
+   values. An exception thrown by a function is thrown again in the thread
+   that submitted it, and its operation changes nothing. An Error ends
+   the round instead: what was applied before it is published and it is
+   thrown in the combiner as well as in the thread that submitted it */
+
+public class FMapRef<K,V> {
+
+    // The most operations one combining round applies
+    private static final int MAX_BATCH = 1024;
+    // The times a waiting writer looks for its operation to be done
+    // before it parks
+    private static final int SPINS = 64;
+
+    // The current version
+    private volatile FMap<K,V> map;
+    // The operations waiting for a combiner
+    private final ConcurrentLinkedQueue<Op<K,V>> pending =
+        new ConcurrentLinkedQueue<Op<K,V>>();
+    // Held by the thread combining
+    private final ReentrantLock combiner = new ReentrantLock();
+
+    public FMapRef(FMap<K,V> map) {
+        this.map = map;
+    }
+
+    // Get the current version
+    public FMap<K,V> get() {
+        return this.map;
+    }
+
+    // Replace the value at the given key with f applied to it and return
+    // the new value, or return null and change nothing if the key is absent
+    public V update(K key, final UnaryOperator<V> f) {
+        return this.submit(new Op<K,V>(key, new BiFunction<K,V,V>() {
+                public V apply(K k, V old) {
+                    return (old == null) ? null : f.apply(old);
+                }
+            }, false));
+    }
+
+    // Add the given value at the given key if the key is absent. Return
+    // the value already there, or null if the value was added
+    public V putIfAbsent(K key, final V value) {
+        return this.submit(new Op<K,V>(key, new BiFunction<K,V,V>() {
+                public V apply(K k, V old) {
+                    return (old == null) ? value : old;
+                }
+            }, true));
+    }
+
+    // Replace the value at the given key with f applied to the key and its
+    // value (null if absent), removing the key if f returns null. Return
+    // the new value
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> f) {
+        return this.submit(new Op<K,V>(key, f, false));
+    }
+
+    // Apply the given operation in a round of this thread's own if no
+    // other thread is combining, otherwise publish it and wait until some
+    // combiner, maybe this thread, has applied it
+    private V submit(Op<K,V> op) {
+        if (this.combiner.tryLock()) {
+            try {
+                this.combine(op);
+            } finally {
+                this.release();
+            }
+        } else {
+            this.pending.add(op);
+        }
+        for (int spins = 0; !op.done; spins++) {
+            if (this.combiner.tryLock()) {
+                try {
+                    this.combine(null);
+                } finally {
+                    this.release();
+                }
+            } else if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        if (op.failure instanceof Error) {
+            throw (Error) op.failure;
+        } else if (op.failure != null) {
+            throw (RuntimeException) op.failure;
+        }
+        return op.result;
+    }
+
+    // Let go of the combiner lock and wake the writer of the first
+    // operation still waiting, if any, to combine it. A writer that queued
+    // its operation while this thread held the lock finds it here
+    private void release() {
+        this.combiner.unlock();
+        Op<K,V> next = this.pending.peek();
+        if (next != null) {
+            LockSupport.unpark(next.waiter);
+        }
+    }
+
+    // Apply the given operation, if any, and the waiting operations to the
+    // current version, publish the result, then mark the operations done
+    // and wake their writers.
+    // A RuntimeException an operation throws, from its function or from
+    // the map, is its own failure and the round goes on. An Error is the
+    // failure of its operation too, but ends the round.
+    // Like a Builder the round changes the nodes it has made in place,
+    // under an edit token it makes once it has a second operation and
+    // drops when it publishes
+    private void combine(Op<K,V> op) {
+        if (op == null) {
+            op = this.pending.poll();
+        }
+        FMap<K,V> m = this.map;
+        Object edit = null;
+        // The operations of this round, linked through next
+        Op<K,V> batch = null;
+        try {
+            for (int n = 0; op != null;
+                 op = (++n < MAX_BATCH) ? this.pending.poll() : null) {
+                op.next = batch;
+                batch = op;
+                if (n == 1) {
+                    edit = new Object();
+                }
+                try {
+                    V old = m.containsKey(op.key) ? m.get(op.key) : null;
+                    V value = op.f.apply(op.key, old);
+                    if (value == null) {
+                        if (old != null) {
+                            // remove makes untagged Nodes over the tagged
+                            // ones, so the token is retired and replaced
+                            m = m.retire(edit).remove(op.key);
+                            edit = (edit == null) ? null : new Object();
+                        }
+                    } else if (value != old) {
+                        m = m.add(op.key, value, edit);
+                    }
+                    op.result = op.returnsOld ? old : value;
+                } catch (RuntimeException e) {
+                    op.failure = e;
+                } catch (Error e) {
+                    op.failure = e;
+                    throw e;
+                }
+            }
+        } finally {
+            // Publish what was applied even if the round was cut short
+            this.map = m.retire(edit);
+            for (; batch != null; batch = batch.next) {
+                batch.done = true;
+                if (batch.waiter != Thread.currentThread()) {
+                    LockSupport.unpark(batch.waiter);
+                }
+            }
+        }
+    }
+
+    // An operation waiting to be combined
+    private static final class Op<K,V> {
+        // The key
+        final K key;
+        // The new value given the key and its value, null for none
+        final BiFunction<? super K, ? super V, ? extends V> f;
+        // True iff the result is the old value rather than the new one
+        final boolean returnsOld;
+        // The result and what was thrown, set before done
+        V result;
+        Throwable failure;
+        // The thread that submitted this operation, woken once it is done
+        final Thread waiter = Thread.currentThread();
+        // The operation combined before this one in its round
+        Op<K,V> next;
+        // Set once the version holding this operation is published
+        volatile boolean done;
+        Op(K key, BiFunction<? super K, ? super V, ? extends V> f, boolean returnsOld) {
+            this.key = key;
+            this.f = f;
+            this.returnsOld = returnsOld;
+        }
+    }
+}
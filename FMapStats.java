@@ -0,0 +1,254 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/* Counters of what the FMaps spend their time on, and a snapshot of them
+   Instrumentation is off unless the JVM is started with
+   -Dfmap.stats=true. ENABLED is a static final field, so with it false
+   the JIT folds every counting call away and the FMaps run as if it were
+   not there.
+   When on, FTrees count their comparator calls, the Nodes they allocate,
+   their adds and the four cases of balance, and every iterator(Comparator)
+   that has to collect and sort the keys counts itself and its keys. The
+   counters are shared by all maps and threads (LongAdders) and only grow
+   until reset.
+   A running Flight Recording gets an fmap.Stats event with the counters
+   every second and an fmap.IteratorSort event for every sort.
+   The depth and black height histograms describe the shape of one FTree
+   and are computed when a snapshot of it is taken, whether or not
+   instrumentation is on */
+
+public final class FMapStats {
+
+    // True iff instrumentation is on
+    public static final boolean ENABLED = Boolean.getBoolean("fmap.stats");
+
+    // The cases of FTree.balance: a black Node with a red child and a
+    // red grandchild below it on the given sides
+    public enum Rotation { LEFT_LEFT, LEFT_RIGHT, RIGHT_RIGHT, RIGHT_LEFT }
+
+    // The counters
+    private static final LongAdder COMPARISONS = new LongAdder();
+    private static final LongAdder NODES = new LongAdder();
+    private static final LongAdder ADDS = new LongAdder();
+    private static final LongAdder SORTS = new LongAdder();
+    private static final LongAdder SORTED_KEYS = new LongAdder();
+    private static final LongAdder[] ROTATIONS = new LongAdder[Rotation.values().length];
+    static {
+        for (int i = 0; i < ROTATIONS.length; i++) {
+            ROTATIONS[i] = new LongAdder();
+        }
+        if (ENABLED) {
+            FlightRecorder.addPeriodicEvent(StatsEvent.class, new Runnable() {
+                    public void run() {
+                        FMapStats.snapshot().event().commit();
+                    }
+                });
+        }
+    }
+
+    // The values of the counters when the snapshot was taken
+    private final long comparisons;
+    private final long nodes;
+    private final long adds;
+    private final long sorts;
+    private final long sortedKeys;
+    private final long[] rotations;
+    // The number of Nodes at each depth, and with each black height, of
+    // the FTree the snapshot was taken of, empty if none
+    private final long[] depths;
+    private final long[] blackHeights;
+    private FMapStats(long[] depths, long[] blackHeights) {
+        this.comparisons = COMPARISONS.sum();
+        this.nodes = NODES.sum();
+        this.adds = ADDS.sum();
+        this.sorts = SORTS.sum();
+        this.sortedKeys = SORTED_KEYS.sum();
+        this.rotations = new long[ROTATIONS.length];
+        for (int i = 0; i < ROTATIONS.length; i++) {
+            this.rotations[i] = ROTATIONS[i].sum();
+        }
+        this.depths = depths;
+        this.blackHeights = blackHeights;
+    }
+
+    // Take a snapshot of the counters
+    public static FMapStats snapshot() {
+        return new FMapStats(new long[0], new long[0]);
+    }
+
+    // Take a snapshot of the counters and of the shape of the given FTree
+    public static FMapStats snapshot(FTree<?,?> tree) {
+        long[][] shape = tree.shape();
+        return new FMapStats(shape[0], shape[1]);
+    }
+
+    // Set every counter back to zero
+    public static void reset() {
+        COMPARISONS.reset();
+        NODES.reset();
+        ADDS.reset();
+        SORTS.reset();
+        SORTED_KEYS.reset();
+        for (LongAdder a : ROTATIONS) {
+            a.reset();
+        }
+    }
+
+    // Count a call of the comparator of an FTree
+    static void compared() {
+        if (ENABLED) {
+            COMPARISONS.increment();
+        }
+    }
+
+    // Count a Node allocated
+    static void allocated() {
+        if (ENABLED) {
+            NODES.increment();
+        }
+    }
+
+    // Count an add to an FTree
+    static void added() {
+        if (ENABLED) {
+            ADDS.increment();
+        }
+    }
+
+    // Count a case of balance
+    static void rotated(Rotation r) {
+        if (ENABLED) {
+            ROTATIONS[r.ordinal()].increment();
+        }
+    }
+
+    // Count an iterator that collected and sorted the given number of keys
+    static void sorted(int keys) {
+        if (ENABLED) {
+            SORTS.increment();
+            SORTED_KEYS.add(keys);
+            SortEvent e = new SortEvent();
+            if (e.shouldCommit()) {
+                e.keys = keys;
+                e.commit();
+            }
+        }
+    }
+
+    // Get the number of comparator calls
+    public long getComparisons() {
+        return this.comparisons;
+    }
+
+    // Get the number of Nodes allocated, by adds or anything else
+    public long getNodesAllocated() {
+        return this.nodes;
+    }
+
+    // Get the number of adds
+    public long getAdds() {
+        return this.adds;
+    }
+
+    // Get the number of Nodes allocated per add
+    public double getNodesPerAdd() {
+        return (this.adds == 0) ? 0 : (double) this.nodes / this.adds;
+    }
+
+    // Get the number of times balance took the given case
+    public long getRotations(Rotation r) {
+        return this.rotations[r.ordinal()];
+    }
+
+    // Get the number of iterators that collected and sorted the keys
+    public long getIteratorSorts() {
+        return this.sorts;
+    }
+
+    // Get the number of keys those iterators sorted
+    public long getSortedKeys() {
+        return this.sortedKeys;
+    }
+
+    // Get the number of Nodes at each depth of the FTree, the root being
+    // at depth 0
+    public long[] getDepthHistogram() {
+        return this.depths.clone();
+    }
+
+    // Get the number of Nodes of the FTree with each black height
+    public long[] getBlackHeightHistogram() {
+        return this.blackHeights.clone();
+    }
+
+    // Show the counters and the histograms
+    public String toString() {
+        return "FMapStats[comparisons=" + this.comparisons +
+            ", nodes=" + this.nodes +
+            ", adds=" + this.adds +
+            ", rotations=" + Arrays.toString(this.rotations) +
+            ", iteratorSorts=" + this.sorts +
+            ", sortedKeys=" + this.sortedKeys +
+            ", depths=" + Arrays.toString(this.depths) +
+            ", blackHeights=" + Arrays.toString(this.blackHeights) + "]";
+    }
+
+    // The counters of this snapshot as a Flight Recorder event
+    private StatsEvent event() {
+        StatsEvent e = new StatsEvent();
+        e.comparisons = this.comparisons;
+        e.nodes = this.nodes;
+        e.adds = this.adds;
+        e.leftLeft = this.getRotations(Rotation.LEFT_LEFT);
+        e.leftRight = this.getRotations(Rotation.LEFT_RIGHT);
+        e.rightRight = this.getRotations(Rotation.RIGHT_RIGHT);
+        e.rightLeft = this.getRotations(Rotation.RIGHT_LEFT);
+        e.iteratorSorts = this.sorts;
+        e.sortedKeys = this.sortedKeys;
+        return e;
+    }
+
+    // The counters, recorded every second
+    @Name("fmap.Stats")
+    @Label("FMap Statistics")
+    @Category("FMap")
+    @Description("The FMap counters since start or reset")
+    @Period("1 s")
+    static class StatsEvent extends Event {
+        @Label("Comparisons")
+        long comparisons;
+        @Label("Nodes Allocated")
+        long nodes;
+        @Label("Adds")
+        long adds;
+        @Label("Left Left Rotations")
+        long leftLeft;
+        @Label("Left Right Rotations")
+        long leftRight;
+        @Label("Right Right Rotations")
+        long rightRight;
+        @Label("Right Left Rotations")
+        long rightLeft;
+        @Label("Iterator Sorts")
+        long iteratorSorts;
+        @Label("Sorted Keys")
+        long sortedKeys;
+    }
+
+    // An iterator that collected and sorted the keys of a map
+    @Name("fmap.IteratorSort")
+    @Label("FMap Iterator Sort")
+    @Category("FMap")
+    @Description("iterator(Comparator) collected and sorted the keys")
+    static class SortEvent extends Event {
+        @Label("Keys")
+        int keys;
+    }
+}
@@ -1,540 +1,2125 @@
 import java.util.*;
-import java.awt.Color;
-
-/* An immutable FTree class 
-   INVARIANT: FTree and the left and right children are 
-   binary search trees with a total order according to the comparator 
-   INVARIANT: The amount of black nodes in any path from root to tree 
-   is the same 
-   INVARIANT: No red node can have a red child */
-
-public abstract class FTree<K,V> extends FMap<K,V> {
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/* An immutable FTree class
+   An FTree holds the comparator its keys are ordered by and the root of
+   a red black tree of Nodes. The comparator is kept only here, so a Node
+   holds just its pair, its children, its size, its hash code, its black
+   height and one color bit, and every empty subtree of every FTree is
+   the one shared EMPTY Node. With compressed references a Node takes 40
+   bytes, the cost of an entry beyond its key and value
+   INVARIANT: The Nodes of an FTree form a binary search tree with a
+   total order according to the comparator
+   INVARIANT: The keys of the left child are less than the key of a
+   Node and the keys of the right child are greater, so an in-order
+   walk visits the keys in ascending order of the comparator
+   INVARIANT: The amount of black nodes in any path from root to tree
+   is the same
+   INVARIANT: No red node can have a red child
+   INVARIANT: The root of an FTree is black
+   Started with -Dfmap.fingerprints=true, every Node also carries a 64
+   bit fingerprint of its subtree, the sum of a hash of each of its
+   pairs. A sum does not depend on how the pairs are arranged, so two
+   FTrees with the same pairs have the same fingerprint whatever their
+   shapes, and so does any range of keys, found from the fingerprints of
+   the left children passed on the way down. Unequal fingerprints tell
+   two FTrees apart in O(1), and reconcile finds the changes between two
+   replicas by descending only into the ranges whose fingerprints differ.
+   By default a pair is hashed from the hashCodes of its key and value,
+   so a change to one with an equal hashCode does not change the
+   fingerprint; -Dfmap.pairhash names a better hash. The fingerprint
+   takes 8 bytes more per Node, so it is off by default.
+   Started with -Dfmap.intern=true, every Node is made through the
+   NodeInterner, so equal subtrees of the same shape are one Node in all
+   the FTrees that hold them, and equals passes over them by reference */
+
+public class FTree<K,V> extends FMap<K,V> {
+
+    // The colors of a Node
+    private static final boolean RED = true;
+    private static final boolean BLACK = false;
+
+    // True iff every Node carries the fingerprint of its subtree
+    public static final boolean FINGERPRINTS = Boolean.getBoolean("fmap.fingerprints");
+    // The hash of a pair the fingerprints are summed from: an instance of
+    // the class named by -Dfmap.pairhash, or null for the hash codes of
+    // the key and value mixed
+    private static final PairHash PAIR_HASH =
+        FTree.pairHash(System.getProperty("fmap.pairhash"));
+
+    // The empty subtree shared by all FTrees. It is black, has no keys
+    // and no children, and its black height and hash code are 0
+    private static final Node<Object,Object> EMPTY = new Node<Object,Object>();
+
+    // The comparator that this binary search tree is ordered by
+    private final Comparator<? super K> c;
+    // The root of the tree, EMPTY iff this FTree is empty
+    private final Node<K,V> root;
+    // The keys of this FTree sorted by the comparators it was iterated by,
+    // or the FMap it was made from, once either is needed; null before
+    private volatile Orderings<K> orderings;
+    FTree(Comparator<? super K> c, Node<K,V> root) {
+        this.c = c;
+        this.root = root;
+    }
 
     // Create an empty FTree
-    public static <K,V> FTree<K,V> 
+    public static <K,V> FTree<K,V>
     emptyTree(java.util.Comparator<? super K> c) {
-        return new EmptyTree<K,V>(c);
+        return new FTree<K,V>(c, FTree.<K,V>empty());
     }
 
-    // Create a node of an FTree
-    private static <K,V> Node<K,V>
-    node(K key, V value, FTree<K,V> f1, FTree<K,V> f2, Color color) {
-        return new Node<K,V>(key, value, f1, f2, color);
+    // The shared empty subtree
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Node<K,V> empty() {
+        return (Node<K,V>) EMPTY;
     }
 
-    // Add the key / value pair to the FTree
-    public abstract FTree<K,V> add(K key, V value);
+    // Return this FTree if the given root is its root, or a new FTree
+    // with the same comparator and the given root
+    private FTree<K,V> withRoot(Node<K,V> root) {
+        return (root == this.root) ? this : new FTree<K,V>(this.c, root);
+    }
 
-    // Insert the given key / value pair into the FTree
-    public abstract FTree<K,V> ins(K key, V value);
+    // Create an FTree holding the given entries, whose keys must come in
+    // ascending order of the comparator. If the same key comes more than
+    // once the last value wins. Runs in O(n) time
+    public static <K,V> FTree<K,V>
+    fromSorted(java.util.Comparator<? super K> c,
+               Iterator<? extends Map.Entry<K,V>> entries) {
+        ArrayList<K> keys = new ArrayList<K>();
+        ArrayList<V> values = new ArrayList<V>();
+
+        while (entries.hasNext()) {
+            Map.Entry<K,V> e = entries.next();
+            int last = keys.size() - 1;
+            if (last < 0 || FTree.compare(c, keys.get(last), e.getKey()) < 0) {
+                keys.add(e.getKey());
+                values.add(e.getValue());
+            } else if (FTree.compare(c, keys.get(last), e.getKey()) == 0) {
+                values.set(last, e.getValue());
+            } else {
+                throw new RuntimeException("The keys are not in ascending order");
+            }
+        }
 
-    // Accept the given visitor
-    public abstract FTree<K,V> accept(Visitor<K,V> vis);
+        return new FTree<K,V>(c, FTree.build(keys, values, 0, keys.size() - 1,
+                                             0, FTree.redLevel(keys.size())));
+    }
 
-    // Balance the given Node according to Red Black invariants
-    public static <K,V> Node<K,V> balance(Node<K,V> f) {   
-	// Check if f is black and it has a left child
-        if (!(f.isRed()) && !(f.left.isEmpty())) {
-            FTree<K,V> left = f.left;
-	    // Check if f.left and f.left.right are red
-            if (left.isRed()) {
-                if (!(left.getRight().isEmpty())) {
-                    if (left.getRight().isRed()) {
-                        FTree<K,V> lowRight = left.getRight();
-			// If true rearrange 
-                        return  FTree.node(lowRight.getKey(),lowRight.getValue(),
-					   FTree.node(left.getKey(), left.getValue(), left.getLeft(),
-						      lowRight.getLeft(), Color.BLACK),
-					   FTree.node(f.getKey(), f.getValue(), lowRight.getRight(),
-						      f.getRight(), Color.BLACK),
-					   Color.RED);
-                    }
-                } 
-		// We know f.left is res so check if f.left.left is red
-                if (!(left.getLeft().isEmpty())) {
-                    if (left.getLeft().isRed()) {
-                        FTree<K,V> lowLeft = left.getLeft();
-			// If true rearrange
-                        return  FTree.node(left.getKey(), left.getValue(),
-					   FTree.node(lowLeft.getKey(), lowLeft.getValue(), lowLeft.getLeft(),
-						      lowLeft.getRight(), Color.BLACK),
-					   FTree.node(f.getKey(), f.getValue(), left.getRight(), 
-						      f.getRight(), Color.BLACK),
-					   Color.RED);
+    // Return an Appender that builds an FTree ordered by the given
+    // comparator from entries given one at a time, fastest in ascending
+    // order
+    public static <K,V> Appender<K,V> appender(Comparator<? super K> c) {
+        return new Appender<K,V>(c, FTree.<K,V>empty());
+    }
 
-                    }
-                }
+    // Return an Appender that adds entries to this FTree, fastest for
+    // keys greater than all of its keys
+    public Appender<K,V> appender() {
+        return new Appender<K,V>(this.c, this.root);
+    }
 
-            } 
-        }
-	// Check if f is black and it has a right child
-        if (!(f.isRed()) && !(f.right.isEmpty())) {
-            FTree<K,V> right = f.right;
-	    // Check if f.right and f.right.right are red
-            if (right.isRed()) {
-                if (!(right.getRight().isEmpty())) {
-                    if (right.getRight().isRed()) {
-                        FTree<K,V> lowRight = right.getRight();
-			// If so rearrange
-                        return FTree.node(right.getKey(), right.getValue(),
-					  FTree.node(f.getKey(), f.getValue(), f.getLeft(), 
-						     right.getLeft(), Color.BLACK),
-					  FTree.node(lowRight.getKey(), lowRight.getValue(), lowRight.getLeft(), 
-						     lowRight.getRight(), Color.BLACK),
-					  Color.RED);
-                    }
-                }
-		// We know f.right is red so check f.right.left is red
-                if (!(right.getLeft().isEmpty())) {
-                    if (right.getLeft().isRed()) {
-                        FTree<K,V> lowLeft = right.getLeft();
-			// If true rearrange
-                        return FTree.node(lowLeft.getKey(), lowLeft.getValue(),
-					  FTree.node(f.getKey(), f.getValue(), f.getLeft(), 
-						     lowLeft.getLeft(), Color.BLACK),
-					  FTree.node(right.getKey(), right.getValue(),lowLeft.getRight(),
-						     right.getRight(), Color.BLACK),
-					  Color.RED);
-                    }
+    // Add the given entries, which are fastest in ascending order and
+    // after every key of this FTree: then they take O(1) amortized time
+    // each, rather than O(lg n) for add. If the same key comes more than
+    // once the last value wins
+    public FTree<K,V> addAll(Iterator<? extends Map.Entry<K,V>> entries) {
+        Appender<K,V> appender = this.appender();
+        while (entries.hasNext()) {
+            Map.Entry<K,V> e = entries.next();
+            appender.add(e.getKey(), e.getValue());
+        }
+        return appender.tree();
+    }
+
+    // Create an FTree holding the given entries in any order. If the same
+    // key comes more than once the last value wins. Runs in O(n lg n) time
+    public static <K,V> FTree<K,V>
+    fromEntries(java.util.Comparator<? super K> c,
+                Iterator<? extends Map.Entry<K,V>> entries) {
+        ArrayList<Map.Entry<K,V>> sorted = new ArrayList<Map.Entry<K,V>>();
+        while (entries.hasNext()) {
+            sorted.add(entries.next());
+        }
+        // The sort is stable so equal keys keep their order
+        // and the last one still wins
+        final Comparator<? super K> comp = c;
+        Collections.sort(sorted, new Comparator<Map.Entry<K,V>>() {
+                public int compare(Map.Entry<K,V> e1, Map.Entry<K,V> e2) {
+                    return comp.compare(e1.getKey(), e2.getKey());
                 }
-            }
+            });
+        return FTree.fromSorted(c, sorted.iterator());
+    }
+
+    // The depth at which the Nodes of a perfectly balanced tree of n
+    // keys stop filling complete levels. Those Nodes are colored red
+    // so every path from the root has the same number of black Nodes
+    private static int redLevel(int n) {
+        int level = 0;
+        for (int m = n - 1; m >= 0; m = m / 2 - 1) {
+            level++;
         }
-	
-	// If none of the cases are true return the given Node
-        return f;       
+        return level;
+    }
+
+    // Build the balanced tree of the keys and values from lo to hi
+    // whose root is at the given depth
+    private static <K,V> Node<K,V>
+    build(List<K> keys, List<V> values, int lo, int hi, int depth, int redLevel) {
+        if (lo > hi) {
+            return FTree.empty();
+        }
+        int mid = (lo + hi) >>> 1;
+        Node<K,V> left = FTree.build(keys, values, lo, mid - 1, depth + 1, redLevel);
+        Node<K,V> right = FTree.build(keys, values, mid + 1, hi, depth + 1, redLevel);
+        return FTree.node(keys.get(mid), values.get(mid), left, right,
+                          (depth == redLevel) ? RED : BLACK);
     }
 
-    // Return true iff the node is Red
-    abstract boolean isRed();
+    // Create a node of an FTree, or find an equal one when interning
+    private static <K,V> Node<K,V>
+    node(K key, V value, Node<K,V> f1, Node<K,V> f2, boolean red) {
+        if (NodeInterner.ENABLED && !(f1 instanceof EditNode) &&
+            !(f2 instanceof EditNode)) {
+            return FTree.intern(key, value, f1, f2, red);
+        }
+        if (FINGERPRINTS) {
+            return new PrintNode<K,V>(key, value, f1, f2, red);
+        }
+        return new Node<K,V>(key, value, f1, f2, red);
+    }
 
-    // Get the comparator for this FTree
-    abstract Comparator<? super K> getComp();
+    // Return the interned Node with the given pair, children and color,
+    // creating and interning it if there is none
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Node<K,V>
+    intern(K key, V value, Node<K,V> f1, Node<K,V> f2, boolean red) {
+        int hash = NodeInterner.hash(key, value, f1, f2, red);
+        Object found = NodeInterner.find(hash, key, value, f1, f2, red);
+        if (found != null) {
+            return (Node<K,V>) found;
+        }
+        Node<K,V> node = FINGERPRINTS ? new PrintNode<K,V>(key, value, f1, f2, red) :
+            new Node<K,V>(key, value, f1, f2, red);
+        return (Node<K,V>) NodeInterner.add(hash, node, key, value, f1, f2, red);
+    }
 
-    // Get the left child of this FTree, throw an exception if used on an
-    // empty FTree
-    abstract FTree<K,V> getLeft();
+    /* A 64 bit hash of a key / value pair for the fingerprints, named by
+       -Dfmap.pairhash and made with its no-argument constructor. Pairs
+       with the same hash look the same to reconcile and to the
+       fingerprints, so it should read the whole key and value */
+    public interface PairHash {
+        // Return the hash of the given key / value pair
+        long hash(Object key, Object value);
+    }
 
-    // Get the right child of this FTree, throw an exception if used on an
-    // empty FTree
-    abstract FTree<K,V> getRight();
+    // Make the PairHash of the class with the given name, or return null
+    // if there is none
+    private static PairHash pairHash(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return (PairHash) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new RuntimeException("Cannot make the PairHash " + name + ": " + e);
+        }
+    }
 
-    // Get the key of this FTree, throw an exception if used on an empty FTree
-    abstract K getKey();
+    // The fingerprint of a key / value pair: that of the PairHash, or else
+    // its two hash codes mixed into 64 bits by a bijection, so pairs whose
+    // hash codes differ have different fingerprints and pairs whose hash
+    // codes are the same have the same one
+    static long print(Object key, Object value) {
+        if (PAIR_HASH != null) {
+            return PAIR_HASH.hash(key, value);
+        }
+        long h = ((long) Objects.hashCode(key) << 32) |
+            (Objects.hashCode(value) & 0xFFFFFFFFL);
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
 
-    // Get the value of this FTree throw an exception if used on an empty FTree
-    abstract V getValue();
+    // Compare two keys with the given comparator, counting the call
+    private static <K> int compare(Comparator<? super K> c, K k1, K k2) {
+        FMapStats.compared();
+        return c.compare(k1, k2);
+    }
 
-    // Get the color of this FTree
-    abstract Color getColor();
+    // Create a node of an FTree on behalf of the Builder owning the given
+    // edit. If the edit owns the given Node, change it in place into
+    // the node instead of allocating a new one
+    private static <K,V> Node<K,V>
+    node(Object edit, Node<K,V> reuse, K key, V value,
+         Node<K,V> f1, Node<K,V> f2, boolean red) {
+        if (edit == null) {
+            return FTree.node(key, value, f1, f2, red);
+        }
+        if (!(reuse instanceof EditNode) || ((EditNode<K,V>) reuse).edit != edit) {
+            if (FINGERPRINTS) {
+                return new PrintEditNode<K,V>(key, value, f1, f2, red, edit);
+            }
+            return new EditNode<K,V>(key, value, f1, f2, red, edit);
+        }
+        reuse.set(key, value, f1, f2, red);
+        return reuse;
+    }
+
+    // Determine if this FTree is empty
+    public boolean isEmpty() {
+        return this.root.isEmpty();
+    }
 
-    // Add the key (if any) of the Node to the given map
-    abstract void addTo(Set<K> map);
+    // Return the size of this FTree
+    public int size() {
+        return this.root.size;
+    }
 
+    // Add the key / value pair to the FTree and color the root black
+    public FTree<K,V> add(K key, V value) {
+        return this.derive(this.add(key, value, null), key);
+    }
 
-    // An empty FTree
-    private static class EmptyTree<K,V> extends FTree<K,V> {
-        // The comparator that this binary search tree is ordered by
-        private Comparator<? super K> c;
-        private int size;
-        EmptyTree(Comparator<? super K> c) {
-            this.c = c;
-            this.size = 0;
+    // Return this FTree once the given edit token is retired. When
+    // interning, the Nodes tagged with it are made over from interned
+    // Nodes, so that a built FTree shares Nodes like one made by add
+    FTree<K,V> retire(Object edit) {
+        if (!NodeInterner.ENABLED || edit == null || !(this.root instanceof EditNode)) {
+            return this;
+        }
+        return new FTree<K,V>(this.c, FTree.retire(this.root, edit));
+    }
+
+    // Make the given subtree over from interned Nodes where it was made
+    // under the given edit token. Nodes made before the token hold no
+    // Nodes tagged with it, so only the tagged Nodes are walked
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Node<K,V> retire(Node<K,V> f, Object edit) {
+        if (!(f instanceof EditNode) || ((EditNode<K,V>) f).edit != edit) {
+            return f;
         }
+        return FTree.node(f.key, f.value, FTree.retire(f.left, edit),
+                          FTree.retire(f.right, edit), f.red);
+    }
 
-        // Create a Node containing the key value pair and two empty trees
-        // Color the result black
-        public Node<K,V> add(K key, V value) {
-            // The result is the same as inserting in the value
-            Node<K,V> result  = this.ins(key, value);
-            // Color the result black
-            result = 
-                    FTree.node(result.key, result.value, 
-                            result.left, result.right, 
-                            Color.BLACK);
+    // Add the key / value pair on behalf of the Builder owning the edit
+    FTree<K,V> add(K key, V value, Object edit) {
+        FMapStats.added();
+        Node<K,V> result = FTree.ins(this.c, this.root, key, value, edit);
+        return this.withRoot(FTree.blacken(result, edit));
+    }
 
-            return result;
+    // Insert the given key / value pair into the FTree without coloring
+    // the root black
+    public FTree<K,V> ins(K key, V value) {
+        FMapStats.added();
+        return this.withRoot(FTree.ins(this.c, this.root, key, value, null));
+    }
+
+    // Insert the given key value pair below the given Node on behalf of
+    // the Builder owning the given edit (or none if it is null),
+    // balancing as you go. Compares the key once per level
+    private static <K,V> Node<K,V>
+    ins(Comparator<? super K> c, Node<K,V> f, K key, V value, Object edit) {
+        if (f.isEmpty()) {
+            return FTree.node(edit, f, key, value, f, f, RED);
         }
+        int comp = FTree.compare(c, f.key, key);
+        if (comp == 0) {
+            return FTree.node(edit, f, key, value, f.left, f.right, f.red);
+        } else if (comp > 0) {
+            return FTree.balance(FTree.node
+                                 (edit, f, f.key, f.value,
+                                  FTree.ins(c, f.left, key, value, edit),
+                                  f.right, f.red), edit);
+        } else {
+            return FTree.balance(FTree.node
+                                 (edit, f, f.key, f.value, f.left,
+                                  FTree.ins(c, f.right, key, value, edit),
+                                  f.red), edit);
+        }
+    }
 
-        // Create a Node containing the key value pair and two empty trees
-        // Color the result red
-        public Node<K,V> ins(K key, V value) {
-            Node<K,V> result = FTree.node(key, value,
-                    new EmptyTree<K,V>(this.c), 
-                    new EmptyTree<K,V>(this.c), Color.RED);
-            result.c = this.c;
-            return result;
+    // Remove the key from the FTree, or return this FTree if it does
+    // not contain the key
+    public FTree<K,V> remove(K key) {
+        Node<K,V> result = FTree.del(this.c, this.root, key);
+        if (result == this.root) {
+            return this;
         }
+        return this.derive(new FTree<K,V>(this.c, FTree.blacken(result)), key);
+    }
 
-        // The empty tree contains no keys
-        public boolean containsKey(K key) {
-            return false;
+    // Delete the key from below the given Node, copying only the path
+    // to it and keeping every Node beside that path. The result may have
+    // a red root and is one black Node shorter than the given Node when
+    // that is black. Return the given Node if it does not hold the key
+    private static <K,V> Node<K,V> del(Comparator<? super K> c, Node<K,V> f, K key) {
+        if (f.isEmpty()) {
+            return f;
         }
+        int comp = FTree.compare(c, f.key, key);
+        if (comp > 0) {
+            Node<K,V> l = FTree.del(c, f.left, key);
+            if (l == f.left) {
+                return f;
+            } else if (FTree.isBlack(f.left)) {
+                return FTree.balLeft(f.key, f.value, l, f.right);
+            } else {
+                return FTree.node(f.key, f.value, l, f.right, RED);
+            }
+        } else if (comp < 0) {
+            Node<K,V> r = FTree.del(c, f.right, key);
+            if (r == f.right) {
+                return f;
+            } else if (FTree.isBlack(f.right)) {
+                return FTree.balRight(f.key, f.value, f.left, r);
+            } else {
+                return FTree.node(f.key, f.value, f.left, r, RED);
+            }
+        } else {
+            return FTree.fuse(f.left, f.right);
+        }
+    }
+
+    // Find the Node holding the given key, or return EMPTY.
+    // Compares the key once per level
+    private Node<K,V> find(K key) {
+        Node<K,V> f = this.root;
+        while (!f.isEmpty()) {
+            int comp = FTree.compare(this.c, f.key, key);
+            if (comp == 0) {
+                return f;
+            }
+            f = (comp > 0) ? f.left : f.right;
+        }
+        return f;
+    }
 
-        // Cannot get from an empty tree
-        public V get(K key) {
+    // Determine if this FTree contains the given Key
+    public boolean containsKey(K key) {
+        return !this.find(key).isEmpty();
+    }
+
+    // Get the value at the given key, throw an exception if it is not there
+    public V get(K key) {
+        Node<K,V> f = this.find(key);
+        if (f.isEmpty()) {
             throw new RuntimeException("Cannot get from an empty tree");
         }
+        return f.value;
+    }
 
-        // The size for an empty tree is 0
-        public int size() {
-            return this.size;
+    // Compute a string representation of this FTree
+    public String toString() {
+        return "{...(" + this.size() + " entries)...}";
+    }
+
+    // The hash code of an FTree is kept at its root
+    public int hashCode() {
+        return this.root.hash;
+    }
+
+    // Determine if this FTree equals the given object
+    @SuppressWarnings(value = "unchecked")
+    public boolean equals(Object x) {
+
+        // If x is not a FMap they are not equal
+        if (!(x instanceof FMap<?,?>)){
+            return false;
+        }
+        // x is an FMap so cast it to an FMap
+        FMap<K,V> f2 = (FMap<K,V>) x;
+        if (f2 == this) {
+            return true;
         }
 
-        // An empty tree is always empty
-        public boolean isEmpty() {
+        // FMaps of different sizes or hash codes are not equal
+        if (f2.size() != this.size() || f2.hashCode() != this.hashCode()) {
+            return false;
+        }
+        if (this.isEmpty()) {
             return true;
         }
+        // FTrees with different fingerprints are not equal
+        if (FINGERPRINTS && f2 instanceof FTree<?,?> &&
+            ((FTree<K,V>) f2).root.print() != this.root.print()) {
+            return false;
+        }
 
-        // Compute a string representation of this Empty FTree
-        public String toString() {
-            return "{...(" + this.size() + " entries)...}";
+        // Another FTree in the same order is walked alongside this one
+        if (f2 instanceof FTree<?,?> && ((FTree<K,V>) f2).c.equals(this.c)) {
+            return FTree.sameEntries(this.c, this.root, ((FTree<K,V>) f2).root);
         }
 
-        // Compute the hash code for this Empty FTree
-        public int hashCode() {
-            return 0;
+        /* Both FMaps have the same number of keys, so if all the keys
+           of this one are in f2 with the same values they are equal */
+        return this.containsAllKeys(f2) && this.allKeysSame(f2);
+    }
+
+    // Determine if all the keys in this FTree are contained in the given FMap
+    boolean containsAllKeys(FMap<K,V> f2) {
+        for (TreeIterator<K,V> it = new TreeIterator<K,V>(this.root, false);
+             it.hasNext();) {
+            if (!f2.containsKey(it.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Determine if every value at the keys of this FTree is the same as
+    // the value of the given FMap at the same key
+    boolean allKeysSame(FMap<K,V> f2) {
+        for (TreeIterator<K,V> it = new TreeIterator<K,V>(this.root, false);
+             it.hasNext();) {
+            Node<K,V> n = it.nextNode();
+            if (!Objects.equals(n.value, f2.get(n.key))) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        // There are no keys in an Empty FTree
-        Set<K> getKeys() {
-            return new HashSet<K>();
+    // Return the changes that turn this FTree into the given FMap. Another
+    // FTree in the same order is walked alongside this one in key order,
+    // passing over the subtrees both share
+    @SuppressWarnings(value="unchecked")
+    public Stream<Change<K,V>> diff(FMap<K,V> other) {
+        if (other instanceof FTree<?,?> && ((FTree<K,V>) other).c.equals(this.c)) {
+            if (((FTree<K,V>) other).root == this.root) {
+                return Stream.empty();
+            }
+            return FMap.stream(new DiffIterator<K,V>(this.c, this.root,
+                                                     ((FTree<K,V>) other).root),
+                               Spliterator.NONNULL | Spliterator.ORDERED);
         }
+        return super.diff(other);
+    }
 
-        // The given FTree always contains all the key5s (none) in this FMap
-        boolean containsAllKeys(FMap<K,V> f2) {
-            return true;
+    /* Return the changes from this FTree to the given FMap that the
+       fingerprints tell, like diff, but found by fingerprint so that it is
+       fast for two
+       replicas of a map that share no Nodes. Every subtree of this FTree
+       holds the keys between two keys of its ancestors; it is passed over
+       if the other FTree has as many keys in that range with the same
+       fingerprint, and otherwise its pair is compared and its children
+       are descended into. With d changes this takes O(d lg^2 n) time.
+       A change is missed if the pair hashes of the old and new pairs sum
+       the same, as they do by default for a value or key replaced by one
+       with the same hashCode ("Aa" and "BB", 0L and -1L). Unlike diff the
+       result is then only the changes the fingerprints can tell; give
+       -Dfmap.pairhash a 64 bit hash of the whole pair to make that rare.
+       Without fingerprints, or for an FMap that is not an FTree in the
+       same order, this is diff */
+    @SuppressWarnings(value="unchecked")
+    public Stream<Change<K,V>> reconcile(FMap<K,V> other) {
+        if (!FINGERPRINTS || !(other instanceof FTree<?,?>) ||
+            !((FTree<K,V>) other).c.equals(this.c)) {
+            return this.diff(other);
         }
+        List<Change<K,V>> changes = new ArrayList<Change<K,V>>();
+        this.reconcile(this.root, null, null, (FTree<K,V>) other, changes);
+        return changes.stream();
+    }
 
-        // Determine if all the keys in this FMap have the same
-        // values as the keys in the given FMap
-        boolean allKeysSame(FMap<K,V> f2) {
-            return true;
+    // Add the changes in the keys strictly between lo and hi, which are
+    // those of the given subtree of this FTree, to the given list in
+    // ascending order of their keys
+    private void reconcile(Node<K,V> f, K lo, K hi, FTree<K,V> other,
+                           List<Change<K,V>> changes) {
+        if (f.print() == other.printBetween(lo, hi) &&
+            f.size == other.countBetween(lo, hi)) {
+            return;
         }
+        if (f.isEmpty()) {
+            FTree.added(this.c, other.root, lo, hi, changes);
+            return;
+        }
+        this.reconcile(f.left, lo, f.key, other, changes);
+        Node<K,V> g = other.find(f.key);
+        if (g.isEmpty()) {
+            changes.add(Change.removed(f.key, f.value));
+        } else if (!Objects.equals(f.value, g.value)) {
+            changes.add(Change.changed(f.key, f.value, g.value));
+        }
+        this.reconcile(f.right, f.key, hi, other, changes);
+    }
 
+    // Add every pair below the given Node whose key lies strictly between
+    // lo and hi (null for no bound) to the given list as ADDED, in
+    // ascending order
+    private static <K,V> void added(Comparator<? super K> c, Node<K,V> f, K lo, K hi,
+                                    List<Change<K,V>> changes) {
+        if (f.isEmpty()) {
+            return;
+        }
+        boolean aboveLo = lo == null || FTree.compare(c, lo, f.key) < 0;
+        boolean belowHi = hi == null || FTree.compare(c, f.key, hi) < 0;
+        if (aboveLo) {
+            FTree.added(c, f.left, lo, hi, changes);
+        }
+        if (aboveLo && belowHi) {
+            changes.add(Change.added(f.key, f.value));
+        }
+        if (belowHi) {
+            FTree.added(c, f.right, lo, hi, changes);
+        }
+    }
 
-        // An empty FTree equals the given object if the object is an
-        // empty FMap
-        @SuppressWarnings(value="unchecked")
-        public boolean equals(Object f) {
-            if (!(f instanceof FMap<?,?>)) {
-                return false;
+    // The number of Nodes of this FTree at each depth, the root at 0,
+    // and the number with each black height
+    long[][] shape() {
+        if (this.isEmpty()) {
+            return new long[][] {new long[0], new long[0]};
+        }
+        // A red black tree of n keys is at most 2 lg (n + 1) deep
+        long[] depths = new long[2 * (32 - Integer.numberOfLeadingZeros(this.size() + 1))];
+        long[] blackHeights = new long[this.root.blackHeight + 1];
+        FTree.shape(this.root, 0, depths, blackHeights);
+        int n = depths.length;
+        while (depths[n - 1] == 0) {
+            n--;
+        }
+        return new long[][] {Arrays.copyOf(depths, n), blackHeights};
+    }
+
+    // Count the Nodes below the given one, at the given depth, by depth
+    // and by black height
+    private static <K,V> void shape(Node<K,V> f, int depth, long[] depths,
+                                    long[] blackHeights) {
+        if (f.isEmpty()) {
+            return;
+        }
+        depths[depth]++;
+        blackHeights[f.blackHeight]++;
+        FTree.shape(f.left, depth + 1, depths, blackHeights);
+        FTree.shape(f.right, depth + 1, depths, blackHeights);
+    }
+
+    // Get all the keys from this FTree
+    Set<K> getKeys() {
+        Set<K> keys = new HashSet<K>();
+        for (K key : this) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    // Return an iterator<K> that walks the keys of this FTree in
+    // ascending order without copying them
+    public Iterator<K> iterator() {
+        return new TreeIterator<K,V>(this.root, false);
+    }
+
+    // Return an iterator<K> that iterates over the keys of this FTree
+    // sorted by the given comparator
+    public Iterator<K> iterator(Comparator<? super K> c) {
+        // The tree is already sorted by its own comparator or,
+        // walked backwards, by the reverse of it
+        if (c.equals(this.c)) {
+            return new TreeIterator<K,V>(this.root, false);
+        }
+        if (c.equals(Collections.reverseOrder(this.c)) ||
+            this.c.equals(Collections.reverseOrder(c))) {
+            return new TreeIterator<K,V>(this.root, true);
+        }
+
+        return this.sortedIterator(c);
+    }
+
+    // Get the Orderings of this FTree, or null
+    Orderings<K> getOrderings() {
+        return this.orderings;
+    }
+
+    // Keep the given Orderings for this FTree
+    void setOrderings(Orderings<K> o) {
+        this.orderings = o;
+    }
+
+    // Accept the given visitor and visit each key / value
+    // pair in this FMap and return an FMap with these new values
+    public FTree<K,V> accept(Visitor<K,V> vis) {
+        return new FTree<K,V>(this.c, FTree.accept(this.root, vis));
+    }
+
+    // Visit every pair below the given Node, keeping its shape
+    private static <K,V> Node<K,V> accept(Node<K,V> f, Visitor<K,V> vis) {
+        if (f.isEmpty()) {
+            return f;
+        }
+        V value = vis.visit(f.key, f.value);
+        return FTree.node(f.key, value, FTree.accept(f.left, vis),
+                          FTree.accept(f.right, vis), f.red);
+    }
+
+    // Get the least key of this FTree, throw an exception if it is empty
+    public K firstKey() {
+        if (this.isEmpty()) {
+            throw new RuntimeException("An empty FTree has no first key");
+        }
+        Node<K,V> f = this.root;
+        while (!f.left.isEmpty()) {
+            f = f.left;
+        }
+        return f.key;
+    }
+
+    // Get the greatest key of this FTree, throw an exception if it is empty
+    public K lastKey() {
+        if (this.isEmpty()) {
+            throw new RuntimeException("An empty FTree has no last key");
+        }
+        Node<K,V> f = this.root;
+        while (!f.right.isEmpty()) {
+            f = f.right;
+        }
+        return f.key;
+    }
+
+    // Get the greatest key less than or equal to the given key, or null
+    public K floorKey(K key) {
+        return this.nearest(key, true, true);
+    }
+
+    // Get the greatest key strictly less than the given key, or null
+    public K lowerKey(K key) {
+        return this.nearest(key, true, false);
+    }
+
+    // Get the least key greater than or equal to the given key, or null
+    public K ceilingKey(K key) {
+        return this.nearest(key, false, true);
+    }
+
+    // Get the least key strictly greater than the given key, or null
+    public K higherKey(K key) {
+        return this.nearest(key, false, false);
+    }
+
+    // Find the key nearest to the given key below it (or above it if below
+    // is false), allowing the key itself if inclusive is true, or null
+    private K nearest(K key, boolean below, boolean inclusive) {
+        K result = null;
+        Node<K,V> f = this.root;
+        while (!f.isEmpty()) {
+            int comp = FTree.compare(this.c, f.key, key);
+            if (comp == 0 && inclusive) {
+                return f.key;
+            } else if (below ? comp < 0 : comp > 0) {
+                // This key qualifies, look for a nearer one beyond it
+                result = f.key;
+                f = below ? f.right : f.left;
             } else {
-                FMap<K,V> x = (FMap<K,V>) f;
-                return x.isEmpty();
+                f = below ? f.left : f.right;
             }
         }
+        return result;
+    }
 
-        // Return an empty iterator
-        public Iterator<K> iterator() {
-            return new FMapIterator<K>(new ArrayList<K>(), 0);
+    // Count the keys less than the given key, or less than or equal to it
+    // if inclusive is true, adding up the sizes of the left children
+    // passed on the way down
+    int countBelow(K key, boolean inclusive) {
+        int n = 0;
+        Node<K,V> f = this.root;
+        while (!f.isEmpty()) {
+            int comp = FTree.compare(this.c, f.key, key);
+            if (comp < 0 || (comp == 0 && inclusive)) {
+                n += f.left.size + 1;
+                f = f.right;
+            } else {
+                f = f.left;
+            }
         }
+        return n;
+    }
 
-        // You cannot sort the keys because there are none so return
-        // this empty iterator
-        public Iterator<K> iterator(java.util.Comparator<? super K> c) {
-            return new FMapIterator<K>(new ArrayList<K>(), 0);
-        }
+    // Count the keys of this FTree less than the given key in O(lg n)
+    public int rank(K key) {
+        return this.countBelow(key, false);
+    }
 
+    // Get the key at the given index in ascending order, throw an exception
+    // if there is none. Steers by the sizes of the left children in O(lg n)
+    public K select(int i) {
+        return this.nodeAt(i).key;
+    }
 
+    // Get the key / value pair at the given index in ascending order
+    public Map.Entry<K,V> selectEntry(int i) {
+        Node<K,V> n = this.nodeAt(i);
+        return new AbstractMap.SimpleImmutableEntry<K,V>(n.key, n.value);
+    }
 
-        // Return the comparator of this Empty Tree
-        Comparator<? super K> getComp() {
-            return this.c;
+    // Get at most count key / value pairs in ascending order starting at
+    // the given index, in O(lg n + count)
+    public List<Map.Entry<K,V>> entriesFromIndex(int i, int count) {
+        if (i < 0 || i > this.size() || count < 0) {
+            throw new RuntimeException("Index " + i + " is out of range");
+        }
+        int n = Math.min(count, this.size() - i);
+        List<Map.Entry<K,V>> entries = new ArrayList<Map.Entry<K,V>>(n);
+        if (n > 0) {
+            TreeIterator<K,V> it = new TreeIterator<K,V>(this.root, false);
+            it.seek(i);
+            while (entries.size() < n) {
+                Node<K,V> node = it.nextNode();
+                entries.add(new AbstractMap.SimpleImmutableEntry<K,V>(node.key, node.value));
+            }
         }
+        return entries;
+    }
 
-        // Accept the given visitor and visit each key / value
-        // pair in this FMap and return an FMap with these new values
-        public FTree<K,V> accept(Visitor<K,V> vis) {
-            return this;
+    // Find the Node at the given index in ascending order
+    private Node<K,V> nodeAt(int i) {
+        if (i < 0 || i >= this.size()) {
+            throw new RuntimeException("Index " + i + " is out of range");
         }
+        Node<K,V> n = this.root;
+        while (true) {
+            int l = n.left.size;
+            if (i < l) {
+                n = n.left;
+            } else if (i == l) {
+                return n;
+            } else {
+                i -= l + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    // Throw an exception if from comes after to
+    private void checkRange(K from, K to) {
+        if (FTree.compare(this.c, from, to) > 0) {
+            throw new RuntimeException("The range starts after it ends");
+        }
+    }
+
+    // Count the keys from from (inclusive) to to (exclusive) in O(lg n)
+    public int count(K from, K to) {
+        this.checkRange(from, to);
+        return this.countBelow(to, false) - this.countBelow(from, false);
+    }
 
-        // Throw an exception because a empty FTree has no left child
-        FTree<K,V> getLeft() {
-            throw new RuntimeException("An empty FTree has no left child");
+    // Throw an exception if the Nodes carry no fingerprints
+    private static void checkFingerprints() {
+        if (!FINGERPRINTS) {
+            throw new RuntimeException("Fingerprints are off; start the JVM" +
+                                       " with -Dfmap.fingerprints=true");
         }
+    }
+
+    // Get the fingerprint of this FTree, the same for any FTree with the
+    // same pairs
+    public long fingerprint() {
+        FTree.checkFingerprints();
+        return this.root.print();
+    }
+
+    // Get the fingerprint of the keys from from (inclusive) to to
+    // (exclusive) and their values in O(lg n), the same for any FTree
+    // with the same pairs in that range
+    public long fingerprint(K from, K to) {
+        FTree.checkFingerprints();
+        this.checkRange(from, to);
+        return this.printBelow(to, false) - this.printBelow(from, false);
+    }
+
+    // Sum the fingerprints of the pairs whose keys are less than the given
+    // key, or less than or equal to it if inclusive is true, adding up those
+    // of the left children passed on the way down
+    private long printBelow(K key, boolean inclusive) {
+        long print = 0;
+        Node<K,V> f = this.root;
+        while (!f.isEmpty()) {
+            int comp = FTree.compare(this.c, f.key, key);
+            if (comp < 0 || (comp == 0 && inclusive)) {
+                print += f.left.print() + FTree.print(f.key, f.value);
+                f = f.right;
+            } else {
+                f = f.left;
+            }
+        }
+        return print;
+    }
+
+    // Sum the fingerprints of the pairs whose keys lie strictly between lo
+    // and hi, where null stands for no bound
+    private long printBetween(K lo, K hi) {
+        return ((hi == null) ? this.root.print() : this.printBelow(hi, false)) -
+            ((lo == null) ? 0 : this.printBelow(lo, true));
+    }
+
+    // Count the keys strictly between lo and hi, where null stands for no
+    // bound
+    private int countBetween(K lo, K hi) {
+        return ((hi == null) ? this.size() : this.countBelow(hi, false)) -
+            ((lo == null) ? 0 : this.countBelow(lo, true));
+    }
 
-        // Throw an exception because an empty FTree has no right child
-        FTree<K,V> getRight() {
-            throw new RuntimeException("An empty FTree has no right child");
+    /* The range views below are cut out of this FTree with split, so they
+       take O(lg n) time to build, share every subtree of this FTree that
+       lies inside the range, and are FTrees themselves: walking one
+       takes O(k) for its k keys */
+
+    // Get the keys from from (inclusive) to to (exclusive) and their values
+    public FTree<K,V> subMap(K from, K to) {
+        this.checkRange(from, to);
+        return this.tailMap(from).headMap(to);
+    }
+
+    // Get the keys less than to and their values
+    public FTree<K,V> headMap(K to) {
+        return this.withRoot(FTree.blacken(FTree.split(this.c, this.root, to).left));
+    }
+
+    // Get the keys greater than or equal to from and their values
+    public FTree<K,V> tailMap(K from) {
+        Split<K,V> s = FTree.split(this.c, this.root, from);
+        if (!s.found) {
+            return this.withRoot(FTree.blacken(s.right));
         }
+        return this.withRoot(FTree.blacken(FTree.join(FTree.<K,V>empty(),
+                                                      s.key, s.value, s.right)));
+    }
 
-        // Throw an exception because an empty FTree has no key
-        K getKey() {
-            throw new RuntimeException("An empty FTree has no key");           
+    // Return a Spliterator over the keys of this FTree in ascending order
+    // that splits at the Nodes nearest the root
+    public Spliterator<K> spliterator() {
+        if (this.isEmpty()) {
+            return Spliterators.emptySpliterator();
         }
+        return new TreeSpliterator<K,V,K>(this.c, this.root, 0, this.size(), false);
+    }
 
-        // Throw an exception because an empty FTree has no value
-        V getValue() {
-            throw new RuntimeException("An empty FTree has no valye");
+    // Return a Spliterator over the key / value pairs of this FTree in
+    // ascending order that splits at the Nodes nearest the root
+    Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        if (this.isEmpty()) {
+            return Spliterators.emptySpliterator();
         }
+        return new TreeSpliterator<K,V,Map.Entry<K,V>>
+            (this.c, this.root, 0, this.size(), true);
+    }
 
-        // Throw an exception because an empty FTree has no color
-        Color getColor() {
-            throw new RuntimeException("An empty FTree ha no color");
+    // Accept the given visitor like accept, visiting the two children of
+    // every subtree above the cutoff as separate tasks on the given pool
+    public FTree<K,V> acceptParallel(Visitor<K,V> vis, ForkJoinPool pool) {
+        return new FTree<K,V>(this.c, pool.invoke(new AcceptTask<K,V>(this.root, vis)));
+    }
+
+    // Accept the given visitor, forking the left child above the cutoff
+    private static <K,V> Node<K,V> acceptParallel(Node<K,V> f, Visitor<K,V> vis) {
+        if (f.size <= PARALLEL_CUTOFF) {
+            return FTree.accept(f, vis);
         }
+        AcceptTask<K,V> left = new AcceptTask<K,V>(f.left, vis);
+        left.fork();
+        Node<K,V> right = FTree.acceptParallel(f.right, vis);
+        V value = vis.visit(f.key, f.value);
+        return FTree.node(f.key, value, left.join(), right, f.red);
+    }
 
-        // An empty Tree contains to key to add
-        void addTo(Set<K> set) {        
+    // Accepting a visitor run as a fork join task
+    private static class AcceptTask<K,V> extends RecursiveTask<Node<K,V>> {
+        private static final long serialVersionUID = 1L;
+        // The subtree to visit
+        private final Node<K,V> f;
+        // The visitor
+        private final Visitor<K,V> vis;
+        AcceptTask(Node<K,V> f, Visitor<K,V> vis) {
+            this.f = f;
+            this.vis = vis;
         }
 
-        // An empty Tree is not red
-        boolean isRed() {
-            return false;
+        // Visit the subtree, forking again below
+        protected Node<K,V> compute() {
+            return FTree.acceptParallel(this.f, this.vis);
         }
+    }
 
+    // The subtree sizes above which acceptParallel and the set operations
+    // below hand one half of their work to another fork join worker
+    private static final int PARALLEL_CUTOFF = 1 << 12;
+
+    // The set operations that combine FTrees
+    private static final int UNION = 0;
+    private static final int INTERSECTION = 1;
+    private static final int DIFFERENCE = 2;
+    private static final int FILTER = 3;
+
+    // Return an FTree with the keys of both this FTree and the given FMap.
+    // The values of keys in both are merge(this value, other value)
+    public FTree<K,V> union(FMap<K,V> other, BinaryOperator<V> merge) {
+        return this.withRoot(FTree.blacken(FTree.combine
+                                           (UNION, this.c, this.root,
+                                            this.sameOrder(other), merge, false)));
     }
 
-    // A Node in an FTree
-    private static class Node<K,V> extends FTree<K,V> {
-        // The key 
-        private K key;
-        // The Value
-        private V value;
-        // The children of this FTree
-        private FTree<K,V> left;
-        private FTree<K,V> right;
-        // The comparator that this binary search tree is ordered by
-        private Comparator<? super K> c;
-        // The size of the FTree
-        private int size;
-        // The color of this node either Red or Black
-        private Color color;
-        Node(K key, V value, FTree<K,V> left, FTree<K,V> right, Color color) {
+    // Compute the union, forking above the cutoff on the given pool
+    public FTree<K,V> union(FMap<K,V> other, BinaryOperator<V> merge,
+                            ForkJoinPool pool) {
+        return this.withRoot(FTree.blacken(pool.invoke(new SetOperation<K,V>
+                                                       (UNION, this.c, this.root,
+                                                        this.sameOrder(other),
+                                                        merge, null))));
+    }
+
+    // Return an FTree with the keys in both this FTree and the given FMap.
+    // Their values are merge(this value, other value)
+    public FTree<K,V> intersection(FMap<K,V> other, BinaryOperator<V> merge) {
+        return this.withRoot(FTree.blacken(FTree.combine
+                                           (INTERSECTION, this.c, this.root,
+                                            this.sameOrder(other), merge, false)));
+    }
+
+    // Compute the intersection, forking above the cutoff on the given pool
+    public FTree<K,V> intersection(FMap<K,V> other, BinaryOperator<V> merge,
+                                   ForkJoinPool pool) {
+        return this.withRoot(FTree.blacken(pool.invoke(new SetOperation<K,V>
+                                                       (INTERSECTION, this.c, this.root,
+                                                        this.sameOrder(other),
+                                                        merge, null))));
+    }
+
+    // Return an FTree with the keys of this FTree that are not in the
+    // given FMap, and their values
+    public FTree<K,V> difference(FMap<K,V> other) {
+        return this.withRoot(FTree.blacken(FTree.combine
+                                           (DIFFERENCE, this.c, this.root,
+                                            this.sameOrder(other), null, false)));
+    }
+
+    // Compute the difference, forking above the cutoff on the given pool
+    public FTree<K,V> difference(FMap<K,V> other, ForkJoinPool pool) {
+        return this.withRoot(FTree.blacken(pool.invoke(new SetOperation<K,V>
+                                                       (DIFFERENCE, this.c, this.root,
+                                                        this.sameOrder(other),
+                                                        null, null))));
+    }
+
+    // Return an FTree with the keys of this FTree that satisfy the
+    // given predicate, and their values
+    public FTree<K,V> filterKeys(Predicate<? super K> keep) {
+        return this.withRoot(FTree.blacken(FTree.filter(this.root, keep, false)));
+    }
+
+    // Filter the keys, forking above the cutoff on the given pool
+    public FTree<K,V> filterKeys(Predicate<? super K> keep, ForkJoinPool pool) {
+        return this.withRoot(FTree.blacken(pool.invoke(new SetOperation<K,V>
+                                                       (FILTER, this.c, this.root,
+                                                        null, null, keep))));
+    }
+
+    // Return the root of the given FMap as an FTree ordered by the
+    // comparator of this FTree, rebuilding it if it is not one already
+    @SuppressWarnings(value="unchecked")
+    private Node<K,V> sameOrder(FMap<K,V> other) {
+        if (other instanceof FTree<?,?> &&
+            ((FTree<K,V>) other).c.equals(this.c)) {
+            return ((FTree<K,V>) other).root;
+        }
+        ArrayList<Map.Entry<K,V>> entries = new ArrayList<Map.Entry<K,V>>(other.size());
+        for (K key : other) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<K,V>(key, other.get(key)));
+        }
+        return FTree.fromEntries(this.c, entries.iterator()).root;
+    }
+
+    /* The set operations follow Blelloch, Ferizovic and Sun, "Just Join
+       for Parallel Ordered Sets". join puts two trees and a key between
+       them together in time proportional to the difference of their
+       black heights, split cuts a tree at a key, and the operations
+       recur on both halves, which gives O(m lg(n/m + 1)) work for trees
+       of sizes m <= n. The two recursive calls share nothing, so above
+       the cutoff one of them is forked */
+
+    // The pieces of a tree cut at a key: the keys less than it, the
+    // pair at it if it was there, and the keys greater than it
+    private static class Split<K,V> {
+        Node<K,V> left;
+        boolean found;
+        K key;
+        V value;
+        Node<K,V> right;
+        Split(Node<K,V> left, boolean found, K key, V value, Node<K,V> right) {
+            this.left = left;
+            this.found = found;
             this.key = key;
             this.value = value;
-            this.left = left;
             this.right = right;
-            this.size = 1 + this.left.size() +
-                    this.right.size();
-            this.c = this.left.getComp();
-            this.color = color;
         }
+    }
 
-        // Add the key value pair to this FTree
-        // Color the result black
-        public Node<K,V> add(K key, V value) {
-            // The result is the same as inserting the key / value
-            Node<K,V> result = this.ins(key, value);
+    // Color the given Node black
+    private static <K,V> Node<K,V> blacken(Node<K,V> f) {
+        return FTree.blacken(f, null);
+    }
 
-            // Color the result black
-            result = 
-                    FTree.node(result.key, result.value, 
-                            result.left, result.right, Color.BLACK);
+    // Color the given Node black on behalf of the Builder owning the edit
+    private static <K,V> Node<K,V> blacken(Node<K,V> f, Object edit) {
+        if (!f.red) {
+            return f;
+        }
+        return FTree.node(edit, f, f.key, f.value, f.left, f.right, BLACK);
+    }
 
+    // Join l, the key / value pair and r, where every key of l is less
+    // than the key and every key of r is greater
+    private static <K,V> Node<K,V> join(Node<K,V> l, K key, V value, Node<K,V> r) {
+        int hl = l.blackHeight;
+        int hr = r.blackHeight;
+        if (hl > hr) {
+            Node<K,V> result = FTree.joinRight(l, key, value, r, hr);
+            if (result.red && result.right.red) {
+                return FTree.paint(result, BLACK);
+            }
             return result;
+        } else if (hr > hl) {
+            Node<K,V> result = FTree.joinLeft(l, key, value, r, hl);
+            if (result.red && result.left.red) {
+                return FTree.paint(result, BLACK);
+            }
+            return result;
+        } else if (!l.red && !r.red) {
+            return FTree.node(key, value, l, r, RED);
+        } else {
+            return FTree.node(key, value, l, r, BLACK);
+        }
+    }
+
+    // Join down the right spine of l until reaching the black subtree as
+    // high as r, whose black height is hr
+    private static <K,V> Node<K,V>
+    joinRight(Node<K,V> l, K key, V value, Node<K,V> r, int hr) {
+        if (!l.red && l.blackHeight == hr) {
+            return FTree.node(key, value, l, r, RED);
+        }
+        Node<K,V> right = FTree.joinRight(l.right, key, value, r, hr);
+        // A red right child with a red right child of its own is
+        // rotated up with its child colored black
+        if (!l.red && right.red && right.right.red) {
+            return FTree.node(right.key, right.value,
+                              FTree.node(l.key, l.value, l.left, right.left, BLACK),
+                              FTree.paint(right.right, BLACK),
+                              RED);
+        }
+        return FTree.node(l.key, l.value, l.left, right, l.red);
+    }
+
+    // Join down the left spine of r until reaching the black subtree as
+    // high as l, whose black height is hl
+    private static <K,V> Node<K,V>
+    joinLeft(Node<K,V> l, K key, V value, Node<K,V> r, int hl) {
+        if (!r.red && r.blackHeight == hl) {
+            return FTree.node(key, value, l, r, RED);
+        }
+        Node<K,V> left = FTree.joinLeft(l, key, value, r.left, hl);
+        // A red left child with a red left child of its own is
+        // rotated up with its child colored black
+        if (!r.red && left.red && left.left.red) {
+            return FTree.node(left.key, left.value,
+                              FTree.paint(left.left, BLACK),
+                              FTree.node(r.key, r.value, left.right, r.right, BLACK),
+                              RED);
+        }
+        return FTree.node(r.key, r.value, left, r.right, r.red);
+    }
+
+    // Join l and r, where every key of l is less than every key of r
+    private static <K,V> Node<K,V> join2(Node<K,V> l, Node<K,V> r) {
+        if (l.isEmpty()) {
+            return r;
+        } else if (r.isEmpty()) {
+            return l;
+        }
+        Split<K,V> last = FTree.splitLast(l);
+        return FTree.join(last.left, last.key, last.value, r);
+    }
 
+    // Cut the given non empty tree into its greatest key / value pair
+    // and the rest of its keys
+    private static <K,V> Split<K,V> splitLast(Node<K,V> f) {
+        if (f.right.isEmpty()) {
+            return new Split<K,V>(f.left, true, f.key, f.value, f.right);
         }
+        Split<K,V> result = FTree.splitLast(f.right);
+        result.left = FTree.join(f.left, f.key, f.value, result.left);
+        return result;
+    }
+
+    // Cut the given tree at the given key
+    private static <K,V> Split<K,V> split(Comparator<? super K> c, Node<K,V> f, K key) {
+        if (f.isEmpty()) {
+            return new Split<K,V>(f, false, null, null, f);
+        }
+        int comp = FTree.compare(c, f.key, key);
+        if (comp == 0) {
+            return new Split<K,V>(f.left, true, f.key, f.value, f.right);
+        } else if (comp > 0) {
+            Split<K,V> result = FTree.split(c, f.left, key);
+            result.right = FTree.join(result.right, f.key, f.value, f.right);
+            return result;
+        } else {
+            Split<K,V> result = FTree.split(c, f.right, key);
+            result.left = FTree.join(f.left, f.key, f.value, result.left);
+            return result;
+        }
+    }
 
-        // Insert the given key value pair into the FTree
-        // balancing as you go
-        public Node<K,V> ins(K key, V value) {
-            if (c.compare(this.key, key) == 0) {
-                return  FTree.node(key, value, this.left, 
-				   this.right, this.color);
-            } else if (c.compare(this.key, key) < 0) {
-                return FTree.balance(FTree.node
-				     (this.key, this.value,
-				      this.left.ins(key, value), 
-				      this.right, this.color));
+    // Compute the union, intersection or difference of f1 and f2, forking
+    // one half of the work above the cutoff if parallel is true
+    private static <K,V> Node<K,V>
+    combine(int op, Comparator<? super K> c, Node<K,V> f1, Node<K,V> f2,
+            BinaryOperator<V> merge, boolean parallel) {
+        if (f1.isEmpty() || f2.isEmpty()) {
+            if (op == UNION) {
+                return f1.isEmpty() ? f2 : f1;
+            } else if (op == INTERSECTION) {
+                return f1.isEmpty() ? f1 : f2;
             } else {
-                return FTree.balance(FTree.node
-				     (this.key, this.value, 
-				      this.left, this.right.ins(key, value), 
-				      this.color));
+                return f1;
             }
         }
+        // A subtree shared by both has nothing left after the difference
+        if (op == DIFFERENCE && f1 == f2) {
+            return FTree.empty();
+        }
 
-        // Return the size of this FTree
-        public int size() {
-            return this.size;
+        Split<K,V> s = FTree.split(c, f1, f2.key);
+        Node<K,V> l;
+        Node<K,V> r;
+        if (parallel && f1.size + f2.size > PARALLEL_CUTOFF) {
+            SetOperation<K,V> task = new SetOperation<K,V>
+                (op, c, s.left, f2.left, merge, null);
+            task.fork();
+            r = FTree.combine(op, c, s.right, f2.right, merge, true);
+            l = task.join();
+        } else {
+            l = FTree.combine(op, c, s.left, f2.left, merge, parallel);
+            r = FTree.combine(op, c, s.right, f2.right, merge, parallel);
         }
 
-        // Determine if this FTree contains the given Key
-        public boolean containsKey(K key) {
-            if (this.c.compare(this.key, key) == 0) {
-                return true;
-            } else if (this.c.compare(this.key, key) < 0) {
-                return this.left.containsKey(key);
-            } else {
-                return this.right.containsKey(key);
+        if (op == UNION) {
+            V value = s.found ? merge.apply(s.value, f2.value) : f2.value;
+            return FTree.join(l, f2.key, value, r);
+        } else if (op == INTERSECTION && s.found) {
+            return FTree.join(l, f2.key, merge.apply(s.value, f2.value), r);
+        } else {
+            return FTree.join2(l, r);
+        }
+    }
+
+    // Keep the keys of f that satisfy the predicate, forking one half of
+    // the work above the cutoff if parallel is true
+    private static <K,V> Node<K,V>
+    filter(Node<K,V> f, Predicate<? super K> keep, boolean parallel) {
+        if (f.isEmpty()) {
+            return f;
+        }
+
+        Node<K,V> l;
+        Node<K,V> r;
+        if (parallel && f.size > PARALLEL_CUTOFF) {
+            SetOperation<K,V> task = new SetOperation<K,V>
+                (FILTER, null, f.left, null, null, keep);
+            task.fork();
+            r = FTree.filter(f.right, keep, true);
+            l = task.join();
+        } else {
+            l = FTree.filter(f.left, keep, parallel);
+            r = FTree.filter(f.right, keep, parallel);
+        }
+
+        if (!keep.test(f.key)) {
+            return FTree.join2(l, r);
+        } else if (l == f.left && r == f.right) {
+            // Nothing below was dropped so keep this subtree as it is
+            return f;
+        } else {
+            return FTree.join(l, f.key, f.value, r);
+        }
+    }
+
+    // A set operation on trees run as a fork join task
+    private static class SetOperation<K,V> extends RecursiveTask<Node<K,V>> {
+        private static final long serialVersionUID = 1L;
+        // UNION, INTERSECTION, DIFFERENCE or FILTER
+        private final int op;
+        // The comparator both trees are ordered by
+        private final Comparator<? super K> c;
+        // The trees to combine, f2 is null for FILTER
+        private final Node<K,V> f1;
+        private final Node<K,V> f2;
+        // How to merge the values of shared keys
+        private final BinaryOperator<V> merge;
+        // The keys to keep for FILTER
+        private final Predicate<? super K> keep;
+        SetOperation(int op, Comparator<? super K> c, Node<K,V> f1, Node<K,V> f2,
+                     BinaryOperator<V> merge, Predicate<? super K> keep) {
+            this.op = op;
+            this.c = c;
+            this.f1 = f1;
+            this.f2 = f2;
+            this.merge = merge;
+            this.keep = keep;
+        }
+
+        // Run the operation, forking again below
+        protected Node<K,V> compute() {
+            if (this.op == FILTER) {
+                return FTree.filter(this.f1, this.keep, true);
             }
+            return FTree.combine(this.op, this.c, this.f1, this.f2, this.merge, true);
         }
+    }
 
-        // Get the value at the given key
-        public V get(K key) {
-            if (this.c.compare(this.key, key) == 0) {
-                return this.value;
-            } else if (this.c.compare(this.key, key) < 0) {
-                return this.left.get(key);
-            } else {
-                return this.right.get(key);
+    // Balance the given Node according to Red Black invariants
+    public static <K,V> Node<K,V> balance(Node<K,V> f) {
+        return FTree.balance(f, null);
+    }
+
+    // Balance the given Node according to Red Black invariants on behalf
+    // of the Builder owning the given edit, reusing the Nodes it owns.
+    // Every field a case reads is read before the Node is reused.
+    // A red Node is never EMPTY, so its children can always be read
+    private static <K,V> Node<K,V> balance(Node<K,V> f, Object edit) {
+	// Check if f is black and its left child is red
+        if (!f.red && f.left.red) {
+            Node<K,V> left = f.left;
+	    // Check if f.left.right is red
+            if (left.right.red) {
+                Node<K,V> lowRight = left.right;
+                FMapStats.rotated(FMapStats.Rotation.LEFT_RIGHT);
+		// If true rearrange
+                return  FTree.node(edit, lowRight,
+				   lowRight.key, lowRight.value,
+				   FTree.node(edit, left, left.key, left.value, left.left,
+					      lowRight.left, BLACK),
+				   FTree.node(edit, f, f.key, f.value, lowRight.right,
+					      f.right, BLACK),
+				   RED);
+            }
+	    // Check if f.left.left is red
+            if (left.left.red) {
+                Node<K,V> lowLeft = left.left;
+                FMapStats.rotated(FMapStats.Rotation.LEFT_LEFT);
+		// If true rearrange
+                return  FTree.node(edit, left,
+				   left.key, left.value,
+				   FTree.node(edit, lowLeft, lowLeft.key, lowLeft.value, lowLeft.left,
+					      lowLeft.right, BLACK),
+				   FTree.node(edit, f, f.key, f.value, left.right,
+					      f.right, BLACK),
+				   RED);
+            }
+        }
+	// Check if f is black and its right child is red
+        if (!f.red && f.right.red) {
+            Node<K,V> right = f.right;
+	    // Check if f.right.right is red
+            if (right.right.red) {
+                Node<K,V> lowRight = right.right;
+                FMapStats.rotated(FMapStats.Rotation.RIGHT_RIGHT);
+		// If so rearrange
+                return FTree.node(edit, right,
+				  right.key, right.value,
+				  FTree.node(edit, f, f.key, f.value, f.left,
+					     right.left, BLACK),
+				  FTree.node(edit, lowRight, lowRight.key, lowRight.value, lowRight.left,
+					     lowRight.right, BLACK),
+				  RED);
+            }
+	    // Check if f.right.left is red
+            if (right.left.red) {
+                Node<K,V> lowLeft = right.left;
+                FMapStats.rotated(FMapStats.Rotation.RIGHT_LEFT);
+		// If true rearrange
+                return FTree.node(edit, lowLeft,
+				  lowLeft.key, lowLeft.value,
+				  FTree.node(edit, f, f.key, f.value, f.left,
+					     lowLeft.left, BLACK),
+				  FTree.node(edit, right, right.key, right.value, lowLeft.right,
+					     right.right, BLACK),
+				  RED);
             }
         }
 
-        // A Node is never empty
-        public boolean isEmpty() {
-            return false;
+	// If none of the cases are true return the given Node
+        return f;
+    }
+
+    /* Deletion follows Kahrs' functional red black deletion. When the
+       Node deleted from a subtree is black, the subtree comes back one
+       black Node short (double black) and balLeft / balRight restore the
+       black height by borrowing from the sibling, while fuse joins the two
+       children of a deleted Node */
+
+    // Determine if the given Node is black and not EMPTY
+    private static boolean isBlack(Node<?,?> f) {
+        return !f.isEmpty() && !f.red;
+    }
+
+    // Copy the given Node with the given color
+    private static <K,V> Node<K,V> paint(Node<K,V> f, boolean red) {
+        return FTree.node(f.key, f.value, f.left, f.right, red);
+    }
+
+    // Copy the given black Node colored red
+    private static <K,V> Node<K,V> sub1(Node<K,V> f) {
+        if (!FTree.isBlack(f)) {
+            throw new RuntimeException("Red black invariant violated");
         }
+        return FTree.paint(f, RED);
+    }
 
-        // Compute a string representation of this Node
-        public String toString() {
-            return "{...(" + this.size() + " entries)...}";
+    // Create the Node with the given key / value pair and children where
+    // one child may be a red Node with a red child, balancing the result
+    private static <K,V> Node<K,V>
+    rebalance(K key, V value, Node<K,V> l, Node<K,V> r) {
+        if (l.red && r.red) {
+            return FTree.node(key, value, FTree.paint(l, BLACK),
+                              FTree.paint(r, BLACK), RED);
+        } else if (l.red && l.left.red) {
+            return FTree.node(l.key, l.value,
+                              FTree.paint(l.left, BLACK),
+                              FTree.node(key, value, l.right, r, BLACK),
+                              RED);
+        } else if (l.red && l.right.red) {
+            Node<K,V> lowRight = l.right;
+            return FTree.node(lowRight.key, lowRight.value,
+                              FTree.node(l.key, l.value, l.left, lowRight.left, BLACK),
+                              FTree.node(key, value, lowRight.right, r, BLACK),
+                              RED);
+        } else if (r.red && r.right.red) {
+            return FTree.node(r.key, r.value,
+                              FTree.node(key, value, l, r.left, BLACK),
+                              FTree.paint(r.right, BLACK),
+                              RED);
+        } else if (r.red && r.left.red) {
+            Node<K,V> lowLeft = r.left;
+            return FTree.node(lowLeft.key, lowLeft.value,
+                              FTree.node(key, value, l, lowLeft.left, BLACK),
+                              FTree.node(r.key, r.value, lowLeft.right, r.right, BLACK),
+                              RED);
+        } else {
+            return FTree.node(key, value, l, r, BLACK);
         }
+    }
 
-        // Compute the hash code for this Node
-        public int hashCode() {
-            int hash = 0;
+    // Create the Node with the given key / value pair and children where
+    // the left child is one black Node short
+    private static <K,V> Node<K,V>
+    balLeft(K key, V value, Node<K,V> l, Node<K,V> r) {
+        if (l.red) {
+            return FTree.node(key, value, FTree.paint(l, BLACK), r, RED);
+        } else if (FTree.isBlack(r)) {
+            return FTree.rebalance(key, value, l, FTree.paint(r, RED));
+        } else if (r.red && FTree.isBlack(r.left)) {
+            Node<K,V> lowLeft = r.left;
+            return FTree.node(lowLeft.key, lowLeft.value,
+                              FTree.node(key, value, l, lowLeft.left, BLACK),
+                              FTree.rebalance(r.key, r.value, lowLeft.right,
+                                              FTree.sub1(r.right)),
+                              RED);
+        } else {
+            throw new RuntimeException("Red black invariant violated");
+        }
+    }
 
-            for (K key : this.getKeys()) {
-                hash += (this.get(key).hashCode() * 31) ^ key.hashCode();
-            }
+    // Create the Node with the given key / value pair and children where
+    // the right child is one black Node short
+    private static <K,V> Node<K,V>
+    balRight(K key, V value, Node<K,V> l, Node<K,V> r) {
+        if (r.red) {
+            return FTree.node(key, value, l, FTree.paint(r, BLACK), RED);
+        } else if (FTree.isBlack(l)) {
+            return FTree.rebalance(key, value, FTree.paint(l, RED), r);
+        } else if (l.red && FTree.isBlack(l.right)) {
+            Node<K,V> lowRight = l.right;
+            return FTree.node(lowRight.key, lowRight.value,
+                              FTree.rebalance(l.key, l.value,
+                                              FTree.sub1(l.left), lowRight.left),
+                              FTree.node(key, value, lowRight.right, r, BLACK),
+                              RED);
+        } else {
+            throw new RuntimeException("Red black invariant violated");
+        }
+    }
 
-            return hash;
+    // Join the two children of a deleted Node, all of whose keys in l
+    // are less than those in r
+    private static <K,V> Node<K,V> fuse(Node<K,V> l, Node<K,V> r) {
+        if (l.isEmpty()) {
+            return r;
+        } else if (r.isEmpty()) {
+            return l;
+        } else if (l.red && r.red) {
+            Node<K,V> middle = FTree.fuse(l.right, r.left);
+            if (middle.red) {
+                return FTree.node(middle.key, middle.value,
+                                  FTree.node(l.key, l.value, l.left, middle.left, RED),
+                                  FTree.node(r.key, r.value, middle.right, r.right, RED),
+                                  RED);
+            }
+            return FTree.node(l.key, l.value, l.left,
+                              FTree.node(r.key, r.value, middle, r.right, RED),
+                              RED);
+        } else if (!l.red && !r.red) {
+            Node<K,V> middle = FTree.fuse(l.right, r.left);
+            if (middle.red) {
+                return FTree.node(middle.key, middle.value,
+                                  FTree.node(l.key, l.value, l.left, middle.left, BLACK),
+                                  FTree.node(r.key, r.value, middle.right, r.right, BLACK),
+                                  RED);
+            }
+            return FTree.balLeft(l.key, l.value, l.left,
+                                 FTree.node(r.key, r.value, middle, r.right, BLACK));
+        } else if (r.red) {
+            return FTree.node(r.key, r.value, FTree.fuse(l, r.left), r.right, RED);
+        } else {
+            return FTree.node(l.key, l.value, l.left, FTree.fuse(l.right, r), RED);
         }
+    }
 
-        // Determine if all the keys in this 
-        // Node are contained in the given FMap
-        boolean containsAllKeys(FMap<K,V> f2) {
-            // Check if the given Node contains this key
-            if (!(f2.containsKey(this.key))) {
-                return false;   
+    // Determine if two trees ordered by the given comparator hold the same
+    // entries. Both are walked in order at once, always descending into
+    // the larger pending subtree first, so a subtree the two share at the
+    // same position is met by both walks at once and passed over whole
+    private static <K,V> boolean
+    sameEntries(Comparator<? super K> c, Node<K,V> f1, Node<K,V> f2) {
+        TreeIterator<K,V> it1 = new TreeIterator<K,V>(f1, false);
+        TreeIterator<K,V> it2 = new TreeIterator<K,V>(f2, false);
+
+        while (true) {
+            int s1 = it1.pendingSize();
+            int s2 = it2.pendingSize();
+            if (s1 > 0 && it1.next == it2.next) {
+                it1.skip();
+                it2.skip();
+            } else if (s1 > s2) {
+                it1.descend();
+            } else if (s2 > s1) {
+                it2.descend();
+            } else if (s1 > 0) {
+                it1.descend();
+                it2.descend();
+            } else if (!it1.hasNext() || !it2.hasNext()) {
+                return !it1.hasNext() && !it2.hasNext();
             } else {
-                // Check if it contains all the keys of the children
-                return this.left.containsAllKeys(f2) &&
-		       this.right.containsAllKeys(f2);
+                // Nothing is pending so compare the next two entries
+                Node<K,V> n1 = it1.pop();
+                Node<K,V> n2 = it2.pop();
+                if (FTree.compare(c, n1.key, n2.key) != 0 ||
+                    !Objects.equals(n1.value, n2.value)) {
+                    return false;
+                }
             }
         }
+    }
 
-        // Get all the keys from this FMap
-        Set<K> getKeys() {
-            Set<K> keys = new HashSet<K>();
 
-            // The keys of this Node is the set of this key
-            // and all the keys in the rest of this FTree
-            this.left.addTo(keys);
-            this.right.addTo(keys);
-            keys.add(this.key);
+    /* A Node of the red black tree below an FTree. Its fields are only
+       changed while a Builder owns it (see EditNode); otherwise a Node
+       never changes once it is made */
+    private static class Node<K,V> implements NodeInterner.Interned {
+        // The key
+        K key;
+        // The Value
+        V value;
+        // The children of this Node, EMPTY where there is none
+        Node<K,V> left;
+        Node<K,V> right;
+        // The number of keys in this subtree
+        int size;
+        // The hash code of this subtree, the sum of the hash codes of its
+        // children and of its own key / value pair
+        int hash;
+        // The number of black Nodes on every path from this Node down to
+        // EMPTY, counting this Node if it is black
+        byte blackHeight;
+        // The color of this Node, true iff it is red
+        boolean red;
+
+        // The EMPTY Node
+        Node() {
+        }
 
-            return keys;      
+        Node(K key, V value, Node<K,V> left, Node<K,V> right, boolean red) {
+            FMapStats.allocated();
+            this.set(key, value, left, right, red);
         }
 
-        // Determine if every value at the keys of this NOde are the same as 
-        // all the values of the given FMap at the same key
-        boolean allKeysSame(FMap<K,V> f2) {
-	    // For all keys in this FTree
-            for (K key : this.getKeys()) {
-		// See if the get of that key on both this and
-		// f2 are the same
-                if (!this.get(key).equals(f2.get(key))) {
-                    return false;
+        // Make this Node hold the given pair, children and color
+        final void set(K key, V value, Node<K,V> left, Node<K,V> right, boolean red) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + left.size + right.size;
+            this.hash = left.hash + right.hash + FMap.entryHash(key, value);
+            this.blackHeight = (byte) (left.blackHeight + (red ? 0 : 1));
+            this.red = red;
+            if (FINGERPRINTS) {
+                this.setPrint(key, value, left, right);
+            }
+        }
+
+        // Keep the fingerprint of this subtree, if this Node has one
+        void setPrint(K key, V value, Node<K,V> left, Node<K,V> right) {
+        }
+
+        // The fingerprint of this subtree, 0 for EMPTY
+        long print() {
+            return 0;
+        }
+
+        // Only EMPTY has no keys
+        final boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        // Determine if this Node holds the given pair, children and color
+        public final boolean holds(Object key, Object value, Object left, Object right,
+                                   boolean red) {
+            return this.left == left && this.right == right && this.red == red &&
+                Objects.equals(this.key, key) && Objects.equals(this.value, value);
+        }
+    }
+
+    // A Node made for a Builder, which may change it in place while the
+    // Builder holds the edit token it is tagged with. Only the Nodes of
+    // transient copies carry the extra field
+    private static class EditNode<K,V> extends Node<K,V> {
+        // The edit token of the Builder that may change this Node
+        private final Object edit;
+        EditNode(K key, V value, Node<K,V> left, Node<K,V> right, boolean red,
+                 Object edit) {
+            super(key, value, left, right, red);
+            this.edit = edit;
+        }
+    }
+
+    // A Node with the fingerprint of its subtree. It is set by the Node
+    // constructor, so it has no initializer
+    private static final class PrintNode<K,V> extends Node<K,V> {
+        // The sum of the fingerprints of the pairs of this subtree
+        private long print;
+        PrintNode(K key, V value, Node<K,V> left, Node<K,V> right, boolean red) {
+            super(key, value, left, right, red);
+        }
+
+        // Add up the fingerprints of the children and of the pair
+        void setPrint(K key, V value, Node<K,V> left, Node<K,V> right) {
+            this.print = left.print() + right.print() + FTree.print(key, value);
+        }
+
+        // The fingerprint of this subtree
+        long print() {
+            return this.print;
+        }
+    }
+
+    // An EditNode with the fingerprint of its subtree
+    private static final class PrintEditNode<K,V> extends EditNode<K,V> {
+        // The sum of the fingerprints of the pairs of this subtree
+        private long print;
+        PrintEditNode(K key, V value, Node<K,V> left, Node<K,V> right, boolean red,
+                      Object edit) {
+            super(key, value, left, right, red, edit);
+        }
+
+        // Add up the fingerprints of the children and of the pair
+        void setPrint(K key, V value, Node<K,V> left, Node<K,V> right) {
+            this.print = left.print() + right.print() + FTree.print(key, value);
+        }
+
+        // The fingerprint of this subtree
+        long print() {
+            return this.print;
+        }
+    }
+
+    // An Iterator<K> that walks a tree in order, keeping a stack of
+    // the Nodes whose keys are still to come on the path to the current
+    // one, so it starts in O(1) and holds O(lg n) Nodes at a time
+    private static class TreeIterator<K,V> implements Iterator<K> {
+        // The Nodes on the path whose keys have not been returned yet
+        private Node<K,V>[] stack;
+        // The number of Nodes on the stack
+        private int top;
+        // The subtree whose keys come before those on the stack,
+        // null if there is none
+        private Node<K,V> next;
+        // True iff the keys are walked in descending order
+        private boolean reverse;
+        @SuppressWarnings(value="unchecked")
+        TreeIterator(Node<K,V> root, boolean reverse) {
+            // A red black tree of n keys is at most 2 lg (n + 1) deep
+            int height = 2 * (32 - Integer.numberOfLeadingZeros(root.size + 1));
+            this.stack = (Node<K,V>[]) new Node<?,?>[height];
+            this.top = 0;
+            this.pend(root);
+            this.reverse = reverse;
+        }
+
+        // Make the given subtree the pending subtree
+        private void pend(Node<K,V> f) {
+            this.next = f.isEmpty() ? null : f;
+        }
+
+        // The iterator has next while a subtree or a stacked Node is left
+        public boolean hasNext() {
+            return this.next != null || this.top > 0;
+        }
+
+        // Stack the path to the first key of the pending subtree, then
+        // return the key on top of the stack and move to its other child
+        public K next() {
+            return this.nextNode().key;
+        }
+
+        // Move a fresh iterator to the key at the given index, stacking
+        // only the Nodes on the path to it that come after it
+        void seek(int i) {
+            while (this.next != null) {
+                Node<K,V> n = this.next;
+                Node<K,V> first = this.reverse ? n.right : n.left;
+                int l = first.size;
+                if (i <= l) {
+                    this.descend();
+                    if (i == l) {
+                        this.skip();
+                    }
+                } else {
+                    i -= l + 1;
+                    this.pend(this.reverse ? n.left : n.right);
                 }
             }
+        }
 
-            return true;
+        // Return the Node of the next key
+        Node<K,V> nextNode() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            while (this.next != null) {
+                this.descend();
+            }
+            return this.pop();
         }
 
-        // Determine if this Node equals the given object
-        @SuppressWarnings(value = "unchecked")
-        public boolean equals(Object x) {
+        // The number of keys in the pending subtree
+        int pendingSize() {
+            return (this.next == null) ? 0 : this.next.size;
+        }
 
-            // If x is not a FMap they are not equal
-            if (!(x instanceof FMap<?,?>)){
-                return false;
-            } else {
-                // x is an FMap so cast it to an FMap        
-                FMap<K,V> f2 = (FMap<K,V>) x;
-                FMap<K,V> f1 = this;
+        // Stack the pending subtree and make its first child pending
+        void descend() {
+            Node<K,V> n = this.next;
+            if (this.top == this.stack.length) {
+                this.stack = Arrays.copyOf(this.stack, 2 * this.top);
+            }
+            this.stack[this.top++] = n;
+            this.pend(this.reverse ? n.right : n.left);
+        }
 
-                // A Node is not equal to an empty FMap
-                if (f2.isEmpty()) {
-                    return false;
+        // The pending subtree, null if there is none
+        Node<K,V> pending() {
+            return this.next;
+        }
+
+        // The Node on top of the stack
+        Node<K,V> peek() {
+            return this.stack[this.top - 1];
+        }
+
+        // Pass over the pending subtree without walking it
+        void skip() {
+            this.next = null;
+        }
+
+        // Pop the Node on top of the stack, whose key comes next when
+        // nothing is pending, and make its other child pending
+        Node<K,V> pop() {
+            Node<K,V> n = this.stack[--this.top];
+            this.stack[this.top] = null;
+            this.pend(this.reverse ? n.left : n.right);
+            return n;
+        }
+
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /* Builds an FTree from entries given one at a time, in O(1) amortized
+       time per entry while they come in ascending order, as fromSorted
+       does but without holding them in a list. It counts in binary: level
+       i holds, if its bit is set, a tree of about 2^i - 1 keys followed
+       by one more key, and the levels hold the keys in order from the
+       highest down, after every key of the base tree it started from. A
+       new key greater than the last makes a unit of level 0; while its
+       level is taken, the unit there and the new one are joined (the key
+       of the older unit becomes the root over both trees) into a unit of
+       the next level. A key less than the last is the finger search: it
+       is found by walking the levels up from the lowest, and inserted
+       into the tree of the level that holds its place, in O(lg d) time
+       for the d keys of the levels it passes and that tree, or into the
+       base when it comes before every level. tree() joins the units from
+       the lowest level up and then the base, in O(lg n), without
+       disturbing them
+       INVARIANT: Every key of a level is greater than every key of the
+       levels above it and of the base */
+    public static final class Appender<K,V> {
+        // The comparator the keys are sorted by
+        private final Comparator<? super K> c;
+        // The tree the entries are added to, and its greatest key
+        private Node<K,V> base;
+        private final K baseLast;
+        // The tree and the key and value that follow it at every level
+        private final Node<K,V>[] trees;
+        private final Object[] keys;
+        private final Object[] values;
+        // The bit of every level in use
+        private int levels;
+        // The number of entries of the base and the levels
+        private int size;
+        @SuppressWarnings(value="unchecked")
+        Appender(Comparator<? super K> c, Node<K,V> base) {
+            this.c = c;
+            this.base = base;
+            Node<K,V> last = base;
+            while (!last.isEmpty() && !last.right.isEmpty()) {
+                last = last.right;
+            }
+            this.baseLast = last.key;
+            this.trees = (Node<K,V>[]) new Node<?,?>[32];
+            this.keys = new Object[32];
+            this.values = new Object[32];
+            this.size = base.size;
+        }
+
+        // The number of entries of the FTree being built
+        public int size() {
+            return this.size;
+        }
+
+        // The greatest key of the FTree being built, on the lowest level
+        // in use or else in the base, or null if it is empty
+        @SuppressWarnings(value="unchecked")
+        K lastKey() {
+            if (this.levels == 0) {
+                return this.baseLast;
+            }
+            return (K) this.keys[Integer.numberOfTrailingZeros(this.levels)];
+        }
+
+        // Determine if the given key can be appended, being no less than
+        // the last one
+        public boolean accepts(K key) {
+            return this.size == 0 || FTree.compare(this.c, this.lastKey(), key) <= 0;
+        }
+
+        // Append the given entry, whose key must be greater than the last
+        // one. If it is the same as the last one its value replaces the last
+        @SuppressWarnings(value="unchecked")
+        public Appender<K,V> append(K key, V value) {
+            if (this.size != 0) {
+                int comp = FTree.compare(this.c, this.lastKey(), key);
+                if (comp > 0) {
+                    throw new RuntimeException("The keys are not in ascending order");
+                } else if (comp == 0 && this.levels == 0) {
+                    this.base = this.insert(this.base, key, value);
+                    return this;
+                } else if (comp == 0) {
+                    this.values[Integer.numberOfTrailingZeros(this.levels)] = value;
+                    return this;
+                }
+            }
+            if (this.size == Integer.MAX_VALUE) {
+                throw new RuntimeException("An FTree cannot hold more entries");
+            }
+            Node<K,V> t = FTree.empty();
+            int i = 0;
+            for (; (this.levels & (1 << i)) != 0; i++) {
+                Node<K,V> l = this.trees[i];
+                // Units no key was inserted into are perfect black trees
+                // of the same height, put together in O(1)
+                if (!l.red && !t.red && l.blackHeight == t.blackHeight) {
+                    t = FTree.node((K) this.keys[i], (V) this.values[i], l, t, BLACK);
+                } else {
+                    t = FTree.join(l, (K) this.keys[i], (V) this.values[i], t);
                 }
+                this.trees[i] = null;
+                this.keys[i] = null;
+                this.values[i] = null;
+            }
+            this.trees[i] = t;
+            this.keys[i] = key;
+            this.values[i] = value;
+            this.levels += 1;
+            this.size++;
+            return this;
+        }
 
-                /* Make sure both FMaps contain the same
-               keys and the same values at all of these keys */
-                if (!(f1.containsAllKeys(f2) &&
-		      (f2.containsAllKeys(f1)) &&
-		      (f1.allKeysSame(f2)) &&
-		      (f2.allKeysSame(f1)))) {
-                    return false;
-                }                
+        // Add the given entry in any order, appending it if its key is
+        // greater than the last one. If the key is already there the
+        // value replaces its value
+        @SuppressWarnings(value="unchecked")
+        public Appender<K,V> add(K key, V value) {
+            if (this.accepts(key)) {
+                return this.append(key, value);
+            }
+            // The lowest level whose key is greater than the key
+            int below = -1;
+            for (int i = 0; i < 32; i++) {
+                if ((this.levels & (1 << i)) == 0) {
+                    continue;
+                }
+                int comp = FTree.compare(this.c, (K) this.keys[i], key);
+                if (comp == 0) {
+                    this.values[i] = value;
+                    return this;
+                } else if (comp < 0) {
+                    this.trees[below] = this.insert(this.trees[below], key, value);
+                    return this;
+                }
+                below = i;
+            }
+            if (below == -1 || (!this.base.isEmpty() &&
+                                FTree.compare(this.c, key, this.baseLast) <= 0)) {
+                this.base = this.insert(this.base, key, value);
+            } else {
+                this.trees[below] = this.insert(this.trees[below], key, value);
             }
+            return this;
+        }
 
-            return true;
+        // Insert the given entry into the given tree, counting it if it
+        // is new
+        private Node<K,V> insert(Node<K,V> t, K key, V value) {
+            Node<K,V> result = FTree.blacken(FTree.ins(this.c, t, key, value, null));
+            this.size += result.size - t.size;
+            return result;
+        }
+
+        // Return the FTree of the entries added so far
+        @SuppressWarnings(value="unchecked")
+        public FTree<K,V> tree() {
+            Node<K,V> result = FTree.empty();
+            for (int i = 0; i < 32; i++) {
+                if ((this.levels & (1 << i)) != 0) {
+                    result = FTree.join(this.trees[i], (K) this.keys[i],
+                                        (V) this.values[i], result);
+                }
+            }
+            return new FTree<K,V>(this.c, FTree.blacken(FTree.join2(this.base, result)));
         }
+    }
 
-        // Return an iterator<K> that iterates over the keys of this FTree
-        public Iterator<K> iterator() {
-            Iterator<K> it = new FMapIterator<K>(new ArrayList<K>(this.getKeys()), 
-						 this.size);
-            return it;
+    /* The changes that turn one Node into another, found by walking both
+       in key order. While a subtree is pending in both walks and it is the
+       same Node it is passed over in both, since the keys before it are
+       all walked and it holds the same keys and values either way.
+       Otherwise the bigger pending subtree is descended into, so two
+       versions of one map differing in d keys are walked in about
+       d lg n steps */
+    private static class DiffIterator<K,V> implements Iterator<Change<K,V>> {
+        // The comparator the keys are sorted by
+        private final Comparator<? super K> c;
+        // The walks of the Nodes before and after the changes
+        private final TreeIterator<K,V> before;
+        private final TreeIterator<K,V> after;
+        // The next change, null if there is none
+        private Change<K,V> next;
+        DiffIterator(Comparator<? super K> c, Node<K,V> before, Node<K,V> after) {
+            this.c = c;
+            this.before = new TreeIterator<K,V>(before, false);
+            this.after = new TreeIterator<K,V>(after, false);
+            this.next = this.advance();
         }
 
-        // Return an iterator<K> that iterates over the keys of this FTree
-        // sorted by the given comparator
-        public Iterator<K> iterator(Comparator<? super K> c) {            
-            ArrayList<K> keys = new ArrayList<K>(this.getKeys());
-            // Sort and reverse the keys to get proper functionality
-            Collections.sort(keys, c);
-            Collections.reverse(keys);
-            Iterator<K> it = new FMapIterator<K>(keys, this.size);
-            return it;
+        // Find the next change
+        private Change<K,V> advance() {
+            TreeIterator<K,V> a = this.before;
+            TreeIterator<K,V> b = this.after;
+            while (true) {
+                if (!a.hasNext()) {
+                    if (!b.hasNext()) {
+                        return null;
+                    }
+                    Node<K,V> n = b.nextNode();
+                    return Change.added(n.key, n.value);
+                }
+                if (!b.hasNext()) {
+                    Node<K,V> n = a.nextNode();
+                    return Change.removed(n.key, n.value);
+                }
+                Node<K,V> x = a.pending();
+                Node<K,V> y = b.pending();
+                if (x != null && x == y) {
+                    a.skip();
+                    b.skip();
+                } else if (x != null && (y == null || x.size >= y.size)) {
+                    a.descend();
+                } else if (y != null) {
+                    b.descend();
+                } else {
+                    x = a.peek();
+                    y = b.peek();
+                    int comp = FTree.compare(this.c, x.key, y.key);
+                    if (comp < 0) {
+                        a.pop();
+                        return Change.removed(x.key, x.value);
+                    } else if (comp > 0) {
+                        b.pop();
+                        return Change.added(y.key, y.value);
+                    }
+                    a.pop();
+                    b.pop();
+                    if (x.value != y.value && !Objects.equals(x.value, y.value)) {
+                        return Change.changed(x.key, x.value, y.value);
+                    }
+                }
+            }
+        }
 
+        // There is a next change until none is left
+        public boolean hasNext() {
+            return this.next != null;
         }
 
-        // Accept the given visitor and visit each key / value
-        // pair in this FMap and return an FMap with these new values
-        public FTree<K,V> accept(Visitor<K,V> vis) {
-            return FTree.node(this.key, vis.visit(this.key, this.value), 
-			      this.left.accept(vis), 
-			      this.right.accept(vis), 
-			      this.color);
+        // Return the next change and find the one after it
+        public Change<K,V> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            Change<K,V> ch = this.next;
+            this.next = this.advance();
+            return ch;
         }
 
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 
-        // Get the comparator for this Node2
-        Comparator<? super K> getComp() {
-            return this.c;
+    /* A Spliterator over the keys (or key / value pairs) of a Node with
+       indices from lo (inclusive) to hi (exclusive). It splits at the Node
+       nearest the root whose index lies inside its range, which halves the
+       range as evenly as the tree is balanced, and only starts walking,
+       with a TreeIterator moved to lo, when it is advanced */
+    private static class TreeSpliterator<K,V,T> implements Spliterator<T> {
+        // The comparator the keys are sorted by
+        private final Comparator<? super K> c;
+        // The Node whose keys are walked
+        private final Node<K,V> root;
+        // The index of the next key
+        private int lo;
+        // The index after the last key
+        private final int hi;
+        // True iff key / value pairs are returned instead of keys
+        private final boolean entries;
+        // The walk from lo, null until the first key is taken
+        private TreeIterator<K,V> it;
+        TreeSpliterator(Comparator<? super K> c, Node<K,V> root, int lo, int hi,
+                        boolean entries) {
+            this.c = c;
+            this.root = root;
+            this.lo = lo;
+            this.hi = hi;
+            this.entries = entries;
         }
 
-        // Get this nodes left child
-        FTree<K,V> getLeft() {
-            return this.left;
+        // Return the key or key / value pair of the given Node
+        @SuppressWarnings(value="unchecked")
+        private T element(Node<K,V> n) {
+            if (this.entries) {
+                return (T) new AbstractMap.SimpleImmutableEntry<K,V>(n.key, n.value);
+            }
+            return (T) n.key;
         }
 
-        // Get this nodes right child
-        FTree<K,V> getRight() {
-            return this.right;
+        // Hand the next element to the action, if there is one
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (this.lo >= this.hi) {
+                return false;
+            }
+            if (this.it == null) {
+                this.it = new TreeIterator<K,V>(this.root, false);
+                this.it.seek(this.lo);
+            }
+            this.lo++;
+            action.accept(this.element(this.it.nextNode()));
+            return true;
         }
 
-        // Get this node's key
-        K getKey() {
-            return this.key;
+        // Hand every remaining element to the action
+        public void forEachRemaining(Consumer<? super T> action) {
+            while (this.tryAdvance(action)) {
+            }
         }
 
-        // Get this node's value
-        V getValue() {
-            return this.value;
+        // Give away the keys before the Node nearest the root inside the
+        // range and keep the rest, or return null for fewer than two keys
+        public Spliterator<T> trySplit() {
+            if (this.hi - this.lo < 2) {
+                return null;
+            }
+            int offset = 0;
+            Node<K,V> n = this.root;
+            while (true) {
+                int index = offset + n.left.size;
+                if (index <= this.lo) {
+                    offset = index + 1;
+                    n = n.right;
+                } else if (index >= this.hi) {
+                    n = n.left;
+                } else {
+                    Spliterator<T> prefix = new TreeSpliterator<K,V,T>
+                        (this.c, this.root, this.lo, index, this.entries);
+                    this.lo = index;
+                    this.it = null;
+                    return prefix;
+                }
+            }
         }
 
-        // Get this node's color
-        Color getColor() {
-            return this.color;
+        // The number of elements left is known exactly
+        public long estimateSize() {
+            return this.hi - this.lo;
         }
 
-        // Add this Node's key to the given set and then 
-        // recur on it's children
-        void addTo(Set<K> set) {
-            set.add(this.key);
-            this.left.addTo(set);
-            this.right.addTo(set);
+        // Keys come sorted and distinct, and nothing can change under a walk
+        public int characteristics() {
+            int c = Spliterator.ORDERED | Spliterator.SIZED |
+                Spliterator.SUBSIZED | Spliterator.IMMUTABLE;
+            return this.entries ? c : c | Spliterator.SORTED | Spliterator.DISTINCT;
         }
 
-        // Return true iff the node's color is red
-        boolean isRed() {
-            return this.color == Color.RED;
+        // Keys are sorted by the comparator of the tree
+        @SuppressWarnings(value="unchecked")
+        public Comparator<? super T> getComparator() {
+            if (this.entries) {
+                throw new IllegalStateException();
+            }
+            return (Comparator<? super T>) this.c;
         }
-    }      
+    }
 }
 
 // An Iterator<K> for FMaps
@@ -0,0 +1,685 @@
+import java.util.*;
+import java.util.stream.Stream;
+
+/* An immutable hash array mapped trie implementation of FMap
+   Every level of the trie consumes 5 bits of the (spread) hash code
+   of a key, so a trie of n keys is at most 7 levels deep and
+   add / containsKey / get touch a constant number of nodes
+   INVARIANT: A BitmapNode holds one slot per set bit of its bitmap,
+   in bit order, and every slot is either a key / value pair or
+   a child node
+   INVARIANT: Two keys only share a CollisionNode if all 32 bits of
+   their hash codes are the same
+   INVARIANT: The size of a HashTrie is the number of distinct keys
+   in it */
+
+public class HashTrie<K,V> extends FMap<K,V> {
+
+    // The number of hash bits consumed by each level of the trie
+    private static final int BITS = 5;
+    // The mask selecting the hash bits of one level
+    private static final int MASK = (1 << BITS) - 1;
+    // Returned by find when a key is not in the trie
+    private static final Object NOT_FOUND = new Object();
+
+    // The only empty HashTrie
+    private static final HashTrie<Object,Object> EMPTY =
+        new HashTrie<Object,Object>(null, 0, 0);
+
+    // The root of this trie, null iff this trie is empty
+    private final TrieNode<K,V> root;
+    // The number of keys in this trie
+    private final int size;
+    // The hash code of this trie, kept up to date by add and remove
+    private final int hash;
+    // The keys of this HashTrie sorted by the comparators it was iterated by,
+    // or the FMap it was made from, once either is needed; null before
+    private volatile Orderings<K> orderings;
+    HashTrie(TrieNode<K,V> root, int size, int hash) {
+        this.root = root;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    // Create an empty Hash Trie implementation of FMap
+    @SuppressWarnings(value="unchecked")
+    public static <K,V> HashTrie<K,V> empty() {
+        return (HashTrie<K,V>) EMPTY;
+    }
+
+    // Spread the hash code of the given key so that its high bits
+    // also take part in the first levels of the trie
+    static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // The bit of a bitmap that the given hash selects at the given shift
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    // Copy the given array replacing the element at i
+    private static Object[] cloneAndSet(Object[] array, int i, Object a) {
+        Object[] result = array.clone();
+        result[i] = a;
+        return result;
+    }
+
+    // Copy the given array replacing the elements at i and j
+    private static Object[] cloneAndSet(Object[] array, int i, Object a,
+                                        int j, Object b) {
+        Object[] result = array.clone();
+        result[i] = a;
+        result[j] = b;
+        return result;
+    }
+
+    // Create the node holding two different keys one level below shift
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> TrieNode<K,V>
+    createNode(int shift, K k1, V v1, int h2, K k2, V v2) {
+        int h1 = HashTrie.hash(k1);
+        if (h1 == h2) {
+            return new CollisionNode<K,V>(h1, new Object[] {k1, v1, k2, v2});
+        } else {
+            Object[] old = new Object[1];
+            return BitmapNode.<K,V>empty()
+                .add(shift, h1, k1, v1, old)
+                .add(shift, h2, k2, v2, old);
+        }
+    }
+
+    // A HashTrie is empty iff it has no root
+    public boolean isEmpty() {
+        return this.root == null;
+    }
+
+    // Add the given value to this HashTrie under the given key
+    // replacing the value if the key is already present
+    public HashTrie<K,V> add(K key, V value) {
+        Object[] old = {NOT_FOUND};
+        TrieNode<K,V> node = (this.root == null) ? BitmapNode.<K,V>empty() : this.root;
+        TrieNode<K,V> result = node.add(0, HashTrie.hash(key), key, value, old);
+
+        // The key was already there with the very same value
+        if (result == this.root) {
+            return this;
+        }
+        int hash = this.hash + FMap.entryHash(key, value);
+        if (old[0] == NOT_FOUND) {
+            return this.derive(new HashTrie<K,V>(result, this.size + 1, hash), key);
+        }
+        return this.derive(new HashTrie<K,V>(result, this.size,
+                                             hash - FMap.entryHash(key, old[0])), key);
+    }
+
+    // Remove the given key from this HashTrie, copying only the path
+    // to the slot that held it
+    public HashTrie<K,V> remove(K key) {
+        if (this.root == null) {
+            return this;
+        }
+        Object[] old = new Object[1];
+        TrieNode<K,V> result = this.root.remove(0, HashTrie.hash(key), key, old);
+
+        // The key was not there
+        if (result == this.root) {
+            return this;
+        }
+        if (result == null) {
+            return HashTrie.empty();
+        }
+        return this.derive(new HashTrie<K,V>(result, this.size - 1,
+                                             this.hash - FMap.entryHash(key, old[0])), key);
+    }
+
+    // The size of a HashTrie is kept at its root
+    public int size() {
+        return this.size;
+    }
+
+    // Determine if this HashTrie contains the given key
+    public boolean containsKey(K key) {
+        return this.root != null &&
+            this.root.find(0, HashTrie.hash(key), key, NOT_FOUND) != NOT_FOUND;
+    }
+
+    // Get the value at the given key, throw an exception if this
+    // HashTrie does not contain the key
+    @SuppressWarnings(value="unchecked")
+    public V get(K key) {
+        Object result = (this.root == null) ? NOT_FOUND :
+            this.root.find(0, HashTrie.hash(key), key, NOT_FOUND);
+        if (result == NOT_FOUND) {
+            throw new RuntimeException
+                ("This FMap does not contain the specified key");
+        }
+        return (V) result;
+    }
+
+    // Compute a string representation of this HashTrie
+    public String toString() {
+        return "{...(" + this.size() + " entries)...}";
+    }
+
+    // The hash code for this HashTrie is kept at its root
+    public int hashCode() {
+        return this.hash;
+    }
+
+    // Compute the hash code of the pairs below the given root
+    private static <K,V> int hashOf(TrieNode<K,V> root) {
+        int hash = 0;
+
+        for (TrieIterator<K,V> it = new TrieIterator<K,V>(root); it.hasNext();) {
+            K key = it.next();
+            hash += FMap.entryHash(key, it.value());
+        }
+
+        return hash;
+    }
+
+    // Determine if this HashTrie equals the given object
+    @SuppressWarnings(value = "unchecked")
+    public boolean equals(Object x) {
+        // If x is not a FMap they are not equal
+        if (!(x instanceof FMap<?,?>)) {
+            return false;
+        }
+        FMap<K,V> f2 = (FMap<K,V>) x;
+        if (this == f2) {
+            return true;
+        }
+
+        // Both FMaps have the same number of keys, so if every key of this
+        // one is in f2 with the same value the two have the same keys
+        return this.size == f2.size() &&
+            this.hash == f2.hashCode() &&
+            this.containsAllKeys(f2) &&
+            this.allKeysSame(f2);
+    }
+
+    // Determine if all the keys in this HashTrie are contained in the given FMap
+    boolean containsAllKeys(FMap<K,V> f2) {
+        for (TrieIterator<K,V> it = new TrieIterator<K,V>(this.root); it.hasNext();) {
+            if (!f2.containsKey(it.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Determine if every value at the keys of this HashTrie is the same as
+    // the value of the given FMap at the same key
+    boolean allKeysSame(FMap<K,V> f2) {
+        for (TrieIterator<K,V> it = new TrieIterator<K,V>(this.root); it.hasNext();) {
+            K key = it.next();
+            if (!Objects.equals(it.value(), f2.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Return the changes that turn this HashTrie into the given FMap.
+    // Another HashTrie is walked alongside this one slot by slot, passing
+    // over the children both share
+    @SuppressWarnings(value="unchecked")
+    public Stream<Change<K,V>> diff(FMap<K,V> other) {
+        if (!(other instanceof HashTrie<?,?>)) {
+            return super.diff(other);
+        }
+        List<Change<K,V>> changes = new ArrayList<Change<K,V>>();
+        HashTrie.diff(this.root, ((HashTrie<K,V>) other).root, changes);
+        return changes.stream();
+    }
+
+    /* Add the changes that turn the node a into the node b (either null
+       for none) to the given list. A key takes the same path through
+       every trie, so two BitmapNodes at the same level are compared slot
+       by slot and a child is only descended into if it is not the same
+       node in both. Any other slots are compared key by key */
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> void diff(TrieNode<K,V> a, TrieNode<K,V> b,
+                                   List<Change<K,V>> changes) {
+        if (a == b) {
+            return;
+        }
+        if (!(a instanceof BitmapNode<?,?>) || !(b instanceof BitmapNode<?,?>)) {
+            HashTrie.diff(HashTrie.<K,V>entries(null, a),
+                          HashTrie.<K,V>entries(null, b), changes);
+            return;
+        }
+        BitmapNode<K,V> x = (BitmapNode<K,V>) a;
+        BitmapNode<K,V> y = (BitmapNode<K,V>) b;
+        for (int bits = x.bitmap | y.bitmap; bits != 0; bits &= bits - 1) {
+            int bit = Integer.lowestOneBit(bits);
+            Object k1 = null, v1 = null, k2 = null, v2 = null;
+            if ((x.bitmap & bit) != 0) {
+                k1 = x.array[x.index(bit)];
+                v1 = x.array[x.index(bit) + 1];
+            }
+            if ((y.bitmap & bit) != 0) {
+                k2 = y.array[y.index(bit)];
+                v2 = y.array[y.index(bit) + 1];
+            }
+            if (k1 == null && k2 == null && v1 != null && v2 != null) {
+                HashTrie.diff((TrieNode<K,V>) v1, (TrieNode<K,V>) v2, changes);
+            } else if (k1 != k2 || v1 != v2) {
+                HashTrie.diff(HashTrie.<K,V>entries(k1, v1),
+                              HashTrie.<K,V>entries(k2, v2), changes);
+            }
+        }
+    }
+
+    // Add the changes that turn the pairs of one map into those of
+    // another to the given list
+    private static <K,V> void diff(Map<K,V> before, Map<K,V> after,
+                                   List<Change<K,V>> changes) {
+        for (Map.Entry<K,V> e : before.entrySet()) {
+            K key = e.getKey();
+            if (!after.containsKey(key)) {
+                changes.add(Change.removed(key, e.getValue()));
+            } else if (!Objects.equals(e.getValue(), after.get(key))) {
+                changes.add(Change.changed(key, e.getValue(), after.get(key)));
+            }
+        }
+        for (Map.Entry<K,V> e : after.entrySet()) {
+            if (!before.containsKey(e.getKey())) {
+                changes.add(Change.added(e.getKey(), e.getValue()));
+            }
+        }
+    }
+
+    // The key / value pairs of a slot: a key and its value, null and a
+    // child node, or null and null for none
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Map<K,V> entries(Object key, Object value) {
+        Map<K,V> m = new HashMap<K,V>();
+        if (key != null) {
+            m.put((K) key, (V) value);
+        } else if (value != null) {
+            for (TrieIterator<K,V> it = new TrieIterator<K,V>((TrieNode<K,V>) value);
+                 it.hasNext();) {
+                K k = it.next();
+                m.put(k, it.value());
+            }
+        }
+        return m;
+    }
+
+    // Get all the keys from this HashTrie
+    Set<K> getKeys() {
+        Set<K> keys = new HashSet<K>();
+        for (K key : this) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    // Return an iterator that walks the trie without copying its keys
+    public Iterator<K> iterator() {
+        return new TrieIterator<K,V>(this.root);
+    }
+
+    // Return an iterator over the keys of this HashTrie sorted by
+    // the given comparator
+    public Iterator<K> iterator(java.util.Comparator<? super K> c) {
+        return this.sortedIterator(c);
+    }
+
+    // Get the Orderings of this HashTrie, or null
+    Orderings<K> getOrderings() {
+        return this.orderings;
+    }
+
+    // Keep the given Orderings for this HashTrie
+    void setOrderings(Orderings<K> o) {
+        this.orderings = o;
+    }
+
+    // Accept the given visitor and visit each key / value
+    // pair in this FMap and return an FMap with these new values
+    // The result has the same shape as this trie
+    public HashTrie<K,V> accept(Visitor<K,V> vis) {
+        if (this.root == null) {
+            return this;
+        }
+        TrieNode<K,V> result = this.root.accept(vis);
+        return new HashTrie<K,V>(result, this.size, HashTrie.hashOf(result));
+    }
+
+
+    // A node of a HashTrie
+    abstract static class TrieNode<K,V> {
+        // The slots of this node, two array elements per slot:
+        // a key and its value, or null and a child TrieNode
+        final Object[] array;
+        TrieNode(Object[] array) {
+            this.array = array;
+        }
+
+        // Add the key / value pair below this node, where shift is the
+        // number of hash bits consumed by the levels above this one
+        // Set old[0] to the value replaced if the key was already present
+        abstract TrieNode<K,V> add(int shift, int hash, K key, V value,
+                                   Object[] old);
+
+        // Remove the key from below this node and set old[0] to its value.
+        // Return this node if the key is not there, or null if no slot
+        // would be left
+        abstract TrieNode<K,V> remove(int shift, int hash, Object key,
+                                      Object[] old);
+
+        // Find the value at the given key below this node, or
+        // return notFound
+        abstract Object find(int shift, int hash, Object key, Object notFound);
+
+        // Create a node of the same kind as this one with the given slots
+        abstract TrieNode<K,V> withArray(Object[] array);
+
+        // Visit every key / value pair below this node and return
+        // a node of the same shape with the new values
+        @SuppressWarnings(value="unchecked")
+        TrieNode<K,V> accept(Visitor<K,V> vis) {
+            Object[] result = new Object[this.array.length];
+            for (int i = 0; i < this.array.length; i += 2) {
+                K key = (K) this.array[i];
+                if (key == null) {
+                    result[i + 1] = ((TrieNode<K,V>) this.array[i + 1]).accept(vis);
+                } else {
+                    result[i] = key;
+                    result[i + 1] = vis.visit(key, (V) this.array[i + 1]);
+                }
+            }
+            return this.withArray(result);
+        }
+    }
+
+    // A node that selects its slots with 5 bits of the hash code
+    private static final class BitmapNode<K,V> extends TrieNode<K,V> {
+        // The node without slots that every root starts from
+        private static final BitmapNode<Object,Object> EMPTY =
+            new BitmapNode<Object,Object>(0, new Object[0]);
+
+        // The set bits are the slots in use
+        private final int bitmap;
+        BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        // Return the node without slots
+        @SuppressWarnings(value="unchecked")
+        static <K,V> BitmapNode<K,V> empty() {
+            return (BitmapNode<K,V>) EMPTY;
+        }
+
+        // The position in the array of the slot for the given bit
+        private int index(int bit) {
+            return 2 * Integer.bitCount(this.bitmap & (bit - 1));
+        }
+
+        // Add the key / value pair into the slot chosen by the hash,
+        // copying only this node and the nodes below it that change
+        @SuppressWarnings(value="unchecked")
+        TrieNode<K,V> add(int shift, int hash, K key, V value, Object[] old) {
+            int bit = HashTrie.bitpos(hash, shift);
+            int idx = this.index(bit);
+
+            // The slot is free so open it for this key
+            if ((this.bitmap & bit) == 0) {
+                Object[] result = new Object[this.array.length + 2];
+                System.arraycopy(this.array, 0, result, 0, idx);
+                result[idx] = key;
+                result[idx + 1] = value;
+                System.arraycopy(this.array, idx, result, idx + 2,
+                                 this.array.length - idx);
+                return new BitmapNode<K,V>(this.bitmap | bit, result);
+            }
+
+            Object k = this.array[idx];
+            Object v = this.array[idx + 1];
+            // The slot holds a child so add to the child
+            if (k == null) {
+                TrieNode<K,V> child = ((TrieNode<K,V>) v)
+                    .add(shift + BITS, hash, key, value, old);
+                if (child == v) {
+                    return this;
+                }
+                return new BitmapNode<K,V>
+                    (this.bitmap, HashTrie.cloneAndSet(this.array, idx + 1, child));
+            }
+            // The slot holds this key so replace its value
+            if (key.equals(k)) {
+                if (value == v) {
+                    return this;
+                }
+                old[0] = v;
+                return new BitmapNode<K,V>
+                    (this.bitmap, HashTrie.cloneAndSet(this.array, idx + 1, value));
+            }
+            // The slot holds another key so push both one level down
+            TrieNode<K,V> child = HashTrie.createNode
+                (shift + BITS, (K) k, (V) v, hash, key, value);
+            return new BitmapNode<K,V>
+                (this.bitmap, HashTrie.cloneAndSet(this.array, idx, null, idx + 1, child));
+        }
+
+        // Remove the key from the slot chosen by the hash
+        @SuppressWarnings(value="unchecked")
+        TrieNode<K,V> remove(int shift, int hash, Object key, Object[] old) {
+            int bit = HashTrie.bitpos(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return this;
+            }
+
+            int idx = this.index(bit);
+            Object k = this.array[idx];
+            Object v = this.array[idx + 1];
+            if (k == null) {
+                TrieNode<K,V> child = ((TrieNode<K,V>) v)
+                    .remove(shift + BITS, hash, key, old);
+                if (child == v) {
+                    return this;
+                } else if (child == null) {
+                    return this.without(bit, idx);
+                } else if (child.array.length == 2 && child.array[0] != null) {
+                    // A child left with one key / value pair is pulled up
+                    return new BitmapNode<K,V>
+                        (this.bitmap, HashTrie.cloneAndSet(this.array, idx, child.array[0],
+                                                           idx + 1, child.array[1]));
+                } else {
+                    return new BitmapNode<K,V>
+                        (this.bitmap, HashTrie.cloneAndSet(this.array, idx + 1, child));
+                }
+            } else if (key.equals(k)) {
+                old[0] = v;
+                return this.without(bit, idx);
+            } else {
+                return this;
+            }
+        }
+
+        // Copy this node without the slot for the given bit
+        private TrieNode<K,V> without(int bit, int idx) {
+            if (this.bitmap == bit) {
+                return null;
+            }
+            Object[] result = new Object[this.array.length - 2];
+            System.arraycopy(this.array, 0, result, 0, idx);
+            System.arraycopy(this.array, idx + 2, result, idx,
+                             this.array.length - idx - 2);
+            return new BitmapNode<K,V>(this.bitmap ^ bit, result);
+        }
+
+        // Follow the slot chosen by the hash
+        @SuppressWarnings(value="unchecked")
+        Object find(int shift, int hash, Object key, Object notFound) {
+            int bit = HashTrie.bitpos(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return notFound;
+            }
+            int idx = this.index(bit);
+            Object k = this.array[idx];
+            Object v = this.array[idx + 1];
+            if (k == null) {
+                return ((TrieNode<K,V>) v).find(shift + BITS, hash, key, notFound);
+            } else if (key.equals(k)) {
+                return v;
+            } else {
+                return notFound;
+            }
+        }
+
+        // Create a BitmapNode with the same bitmap
+        TrieNode<K,V> withArray(Object[] array) {
+            return new BitmapNode<K,V>(this.bitmap, array);
+        }
+    }
+
+    // A node holding keys whose hash codes are all the same
+    private static final class CollisionNode<K,V> extends TrieNode<K,V> {
+        // The hash code shared by all the keys
+        private final int hash;
+        CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        // The position in the array of the given key, or -1
+        private int indexOf(Object key) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                if (key.equals(this.array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Add the key / value pair to this node if its hash is the same,
+        // otherwise put this node and the key below a new BitmapNode
+        TrieNode<K,V> add(int shift, int hash, K key, V value, Object[] old) {
+            if (hash != this.hash) {
+                return new BitmapNode<K,V>
+                    (HashTrie.bitpos(this.hash, shift), new Object[] {null, this})
+                    .add(shift, hash, key, value, old);
+            }
+
+            int idx = this.indexOf(key);
+            if (idx != -1) {
+                if (this.array[idx + 1] == value) {
+                    return this;
+                }
+                old[0] = this.array[idx + 1];
+                return new CollisionNode<K,V>
+                    (hash, HashTrie.cloneAndSet(this.array, idx + 1, value));
+            }
+            Object[] result = Arrays.copyOf(this.array, this.array.length + 2);
+            result[this.array.length] = key;
+            result[this.array.length + 1] = value;
+            return new CollisionNode<K,V>(hash, result);
+        }
+
+        // Remove the key if it is one of the colliding keys
+        TrieNode<K,V> remove(int shift, int hash, Object key, Object[] old) {
+            int idx = (hash == this.hash) ? this.indexOf(key) : -1;
+            if (idx == -1) {
+                return this;
+            }
+            old[0] = this.array[idx + 1];
+            if (this.array.length == 2) {
+                return null;
+            }
+            Object[] result = new Object[this.array.length - 2];
+            System.arraycopy(this.array, 0, result, 0, idx);
+            System.arraycopy(this.array, idx + 2, result, idx,
+                             this.array.length - idx - 2);
+            return new CollisionNode<K,V>(this.hash, result);
+        }
+
+        // Search the keys one by one
+        Object find(int shift, int hash, Object key, Object notFound) {
+            int idx = (hash == this.hash) ? this.indexOf(key) : -1;
+            return (idx == -1) ? notFound : this.array[idx + 1];
+        }
+
+        // Create a CollisionNode with the same hash
+        TrieNode<K,V> withArray(Object[] array) {
+            return new CollisionNode<K,V>(this.hash, array);
+        }
+    }
+
+    // An Iterator<K> that walks the slots of a HashTrie depth first
+    // keeping only the path from the root to the current slot
+    static final class TrieIterator<K,V> implements Iterator<K> {
+        // One level for each 5 bits of the hash and one for collisions
+        private static final int DEPTH = 8;
+        // The slots of the nodes on the current path
+        private final Object[][] arrays = new Object[DEPTH][];
+        // The position of the current slot in each node of the path
+        private final int[] positions = new int[DEPTH];
+        // The level of the current node, -1 once the walk is done
+        private int depth;
+        // The value at the key last returned by next
+        private V value;
+        TrieIterator(TrieNode<K,V> root) {
+            if (root == null) {
+                this.depth = -1;
+            } else {
+                this.arrays[0] = root.array;
+                this.depth = 0;
+                this.advance();
+            }
+        }
+
+        // Move to the next slot holding a key, descending into children
+        // and climbing out of finished nodes
+        private void advance() {
+            while (this.depth >= 0) {
+                Object[] a = this.arrays[this.depth];
+                int p = this.positions[this.depth];
+                if (p >= a.length) {
+                    this.depth--;
+                } else if (a[p] == null) {
+                    this.positions[this.depth] = p + 2;
+                    this.depth++;
+                    this.arrays[this.depth] = ((TrieNode<?,?>) a[p + 1]).array;
+                    this.positions[this.depth] = 0;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        // The iterator has next until the walk is done
+        public boolean hasNext() {
+            return this.depth >= 0;
+        }
+
+        // Return the next key and move past it
+        @SuppressWarnings(value="unchecked")
+        public K next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Object[] a = this.arrays[this.depth];
+            int p = this.positions[this.depth];
+            this.value = (V) a[p + 1];
+            this.positions[this.depth] = p + 2;
+            this.advance();
+            return (K) a[p];
+        }
+
+        // The value at the key last returned by next
+        V value() {
+            return this.value;
+        }
+
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
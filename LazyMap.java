@@ -0,0 +1,258 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/* A view of an FMap with the values a Visitor returns for its values,
+   as returned by FMap.mapValuesLazy
+   A value is only visited when it is read, by get or by walking the
+   entries, so mapping an FMap and reading a few keys costs a few visits
+   instead of the rebuild of the whole map accept makes. With
+   memoization every value visited is kept, in a table the views derived
+   from this one share, so each is visited about once; without it a value
+   is visited every time it is read. force() builds the mapped FMap once
+   the view is read often enough to be worth it, and the view reads
+   from it from then on.
+   Adding or removing a key makes a new view: the key is removed from the
+   underlying FMap and, if added, kept with the value given in an overlay
+   whose keys come after the underlying ones
+   INVARIANT: The underlying FMap and the overlay have no key in common */
+
+public class LazyMap<K,V> extends FMap<K,V> {
+
+    // Stands for a null value in the memo table
+    private static final Object NULL = new Object();
+
+    // The FMap whose values are visited
+    private final FMap<K,V> base;
+    // The visitor
+    private final Visitor<K,V> vis;
+    // The values visited so far, or null if they are not kept
+    private final Map<K,Object> memo;
+    // The keys added to this view with their values
+    private final FMap<K,V> added;
+    // The mapped FMap once forced, or null
+    private volatile FMap<K,V> forced;
+    // The hash code of this view, computed when first asked for. hashed
+    // is written after hash, so a thread that reads it true sees the hash
+    private int hash;
+    private volatile boolean hashed;
+    LazyMap(FMap<K,V> base, Visitor<K,V> vis, boolean memoize) {
+        this(base, vis, memoize ? new ConcurrentHashMap<K,Object>() : null,
+             FMap.<K,V>emptyMap());
+    }
+
+    private LazyMap(FMap<K,V> base, Visitor<K,V> vis, Map<K,Object> memo,
+                    FMap<K,V> added) {
+        this.base = base;
+        this.vis = vis;
+        this.memo = memo;
+        this.added = added;
+    }
+
+    // Visit the value at the given key of the underlying FMap, or look
+    // up the value visited before
+    @SuppressWarnings(value="unchecked")
+    private V mapped(K key, V value) {
+        if (this.memo == null) {
+            return this.vis.visit(key, value);
+        }
+        Object m = this.memo.get(key);
+        if (m == null) {
+            V result = this.vis.visit(key, value);
+            this.memo.put(key, (result == null) ? NULL : result);
+            return result;
+        }
+        return (m == NULL) ? null : (V) m;
+    }
+
+    // Build the mapped FMap, the same kind of FMap as the underlying one,
+    // once, and return it
+    public FMap<K,V> force() {
+        FMap<K,V> f = this.forced;
+        if (f == null) {
+            f = this.base.accept(new Visitor<K,V>() {
+                    public V visit(K k, V v) {
+                        return LazyMap.this.mapped(k, v);
+                    }
+                });
+            if (!this.added.isEmpty()) {
+                Builder<K,V> b = f.transientCopy();
+                for (K key : this.added) {
+                    b.add(key, this.added.get(key));
+                }
+                f = b.persistent();
+            }
+            this.forced = f;
+        }
+        return f;
+    }
+
+    // Determine if this view is empty
+    public boolean isEmpty() {
+        return this.base.isEmpty() && this.added.isEmpty();
+    }
+
+    // Add the given value under the given key to a new view
+    public LazyMap<K,V> add(K key, V value) {
+        return this.derive(new LazyMap<K,V>(this.base.remove(key), this.vis, this.memo,
+                                            this.added.add(key, value)), key);
+    }
+
+    // Remove the given key from a new view, or return this view if it
+    // does not contain the key
+    public LazyMap<K,V> remove(K key) {
+        if (!this.containsKey(key)) {
+            return this;
+        }
+        return this.derive(new LazyMap<K,V>(this.base.remove(key), this.vis, this.memo,
+                                            this.added.remove(key)), key);
+    }
+
+    // The keys of the underlying FMap and the overlay
+    public int size() {
+        return this.base.size() + this.added.size();
+    }
+
+    // Determine if the underlying FMap or the overlay has the given key
+    public boolean containsKey(K key) {
+        return this.added.containsKey(key) || this.base.containsKey(key);
+    }
+
+    // Get the value at the given key, visiting it if need be
+    public V get(K key) {
+        FMap<K,V> f = this.forced;
+        if (f != null) {
+            return f.get(key);
+        }
+        if (this.added.containsKey(key)) {
+            return this.added.get(key);
+        }
+        return this.mapped(key, this.base.get(key));
+    }
+
+    // Compute a string representation of this view
+    public String toString() {
+        return "{...(" + this.size() + " entries)...}";
+    }
+
+    // Compute the hash code of this view once, visiting every value
+    public int hashCode() {
+        if (this.hashed) {
+            return this.hash;
+        }
+        int hash = 0;
+        for (K key : this) {
+            hash += FMap.entryHash(key, this.get(key));
+        }
+        this.hash = hash;
+        this.hashed = true;
+        return hash;
+    }
+
+    // Determine if the given object is an FMap with the same keys and
+    // the same values
+    @SuppressWarnings(value="unchecked")
+    public boolean equals(Object x) {
+        if (!(x instanceof FMap<?,?>)) {
+            return false;
+        }
+        FMap<K,V> f2 = (FMap<K,V>) x;
+        if (this == f2) {
+            return true;
+        }
+        // Both FMaps have the same number of keys, so if all the keys
+        // of this one are in f2 with the same values they are equal
+        return this.size() == f2.size() &&
+            this.containsAllKeys(f2) &&
+            this.allKeysSame(f2);
+    }
+
+    // Determine if all the keys of this view are contained in the given FMap
+    boolean containsAllKeys(FMap<K,V> f2) {
+        for (K key : this) {
+            if (!f2.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Determine if every value of this view is the same as the value of
+    // the given FMap at the same key
+    boolean allKeysSame(FMap<K,V> f2) {
+        for (K key : this) {
+            if (!Objects.equals(this.get(key), f2.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Get all the keys of this view
+    Set<K> getKeys() {
+        Set<K> keys = new HashSet<K>();
+        for (K key : this) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    // Return an iterator over the keys of the underlying FMap, then those
+    // of the overlay
+    public Iterator<K> iterator() {
+        if (this.added.isEmpty()) {
+            return this.base.iterator();
+        }
+        final Iterator<K> first = this.base.iterator();
+        final Iterator<K> second = this.added.iterator();
+        return new Iterator<K>() {
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            public K next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Return an iterator over the keys of this view sorted by the given
+    // comparator
+    public Iterator<K> iterator(Comparator<? super K> c) {
+        if (this.added.isEmpty()) {
+            return this.base.iterator(c);
+        }
+        return this.sortedIterator(c);
+    }
+
+    // Accept the given visitor on the mapped FMap
+    public FMap<K,V> accept(Visitor<K,V> v) {
+        return this.force().accept(v);
+    }
+
+    // Return a Spliterator over the entries of the underlying FMap with
+    // their values visited as they are reached, then those of the
+    // overlay. It splits as the underlying FMap does
+    Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        FMap<K,V> f = this.forced;
+        if (f != null) {
+            return f.entrySpliterator();
+        }
+        Stream<Map.Entry<K,V>> entries = this.base.entryStream()
+            .map(new Function<Map.Entry<K,V>,Map.Entry<K,V>>() {
+                    public Map.Entry<K,V> apply(Map.Entry<K,V> e) {
+                        return new AbstractMap.SimpleImmutableEntry<K,V>
+                            (e.getKey(), LazyMap.this.mapped(e.getKey(), e.getValue()));
+                    }
+                });
+        if (!this.added.isEmpty()) {
+            entries = Stream.concat(entries, this.added.entryStream());
+        }
+        return entries.spliterator();
+    }
+}
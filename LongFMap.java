@@ -0,0 +1,530 @@
+import java.util.*;
+
+/* An immutable map from primitive long keys, built as a big-endian
+   Patricia trie (Okasaki and Gill, "Fast Mergeable Integer Maps")
+   Keys are never boxed: add / get / containsKey / remove walk the trie
+   by testing single bits of the key. Every key is first biased by
+   flipping its sign bit so that the unsigned bit order of the trie is
+   the signed order of the keys, and keys come out in ascending order
+   INVARIANT: A Branch holds keys that all agree with its prefix on the
+   bits above its branching bit; the keys with a zero at the branching
+   bit are in its left child and the others in its right child
+   INVARIANT: Neither child of a Branch is empty
+   INVARIANT: The size and hash code of a Branch are those of its
+   two children added together */
+
+public abstract class LongFMap<V> {
+
+    // The only empty LongFMap
+    private static final LongFMap<Object> EMPTY = new Empty<Object>();
+
+    // Create an empty LongFMap
+    @SuppressWarnings(value="unchecked")
+    public static <V> LongFMap<V> empty() {
+        return (LongFMap<V>) EMPTY;
+    }
+
+    // The key with its sign bit flipped, so unsigned order is signed order
+    private static long bias(long key) {
+        return key ^ Long.MIN_VALUE;
+    }
+
+    // The bits of the biased key above the given branching bit
+    private static long mask(long u, long bit) {
+        return u & (~(bit - 1) ^ bit);
+    }
+
+    // Determine if the biased key has a zero at the given branching bit
+    private static boolean zero(long u, long bit) {
+        return (u & bit) == 0;
+    }
+
+    // The hash code a key / value pair adds to the hash code of a
+    // LongFMap, the same as FMap.entryHash of the boxed key
+    private static int entryHash(long key, Object value) {
+        return (Objects.hashCode(value) * 31) ^ Long.hashCode(key);
+    }
+
+    // Join two non empty tries whose biased prefixes p1 and p2 differ
+    private static <V> LongFMap<V> join(long p1, LongFMap<V> t1,
+                                        long p2, LongFMap<V> t2) {
+        long bit = Long.highestOneBit(p1 ^ p2);
+        if (zero(p1, bit)) {
+            return new Branch<V>(mask(p1, bit), bit, t1, t2);
+        }
+        return new Branch<V>(mask(p1, bit), bit, t2, t1);
+    }
+
+    // Determine if this LongFMap is empty
+    public abstract boolean isEmpty();
+
+    // Determine the number of keys in this LongFMap
+    public abstract int size();
+
+    // Add the given value to the LongFMap under the given key
+    public LongFMap<V> add(long key, V value) {
+        return this.ins(key, bias(key), value);
+    }
+
+    // Add the given value under the key whose biased form is u
+    abstract LongFMap<V> ins(long key, long u, V value);
+
+    // Remove the given key and its value from the LongFMap, or return
+    // this LongFMap if it does not contain the key
+    public LongFMap<V> remove(long key) {
+        return this.del(key, bias(key));
+    }
+
+    // Remove the key whose biased form is u
+    abstract LongFMap<V> del(long key, long u);
+
+    // Determine if this LongFMap contains the given key
+    public boolean containsKey(long key) {
+        return this.leaf(key) != null;
+    }
+
+    // Get the value located at the given key in this LongFMap
+    public V get(long key) {
+        Leaf<V> leaf = this.leaf(key);
+        // If this map does not contain the key throw an exception
+        if (leaf == null) {
+            throw new RuntimeException
+            ("This FMap does not contain the specified key");
+        }
+        return leaf.value;
+    }
+
+    // Find the Leaf holding the given key, or return null. The Branches
+    // on the way are chosen by one bit each and their prefixes are not
+    // checked; the key of the Leaf reached decides
+    private Leaf<V> leaf(long key) {
+        long u = bias(key);
+        LongFMap<V> t = this;
+        while (t instanceof Branch) {
+            Branch<V> b = (Branch<V>) t;
+            t = zero(u, b.bit) ? b.left : b.right;
+        }
+        if (t instanceof Leaf && ((Leaf<V>) t).key == key) {
+            return (Leaf<V>) t;
+        }
+        return null;
+    }
+
+    // Accept the given visitor and visit each key / value pair in this
+    // LongFMap and return a LongFMap with these new values
+    // The result has the same shape as this trie
+    public abstract LongFMap<V> accept(LongVisitor<V> vis);
+
+    // Return an iterator over the keys of this LongFMap in ascending order
+    public PrimitiveIterator.OfLong keyIterator() {
+        final LeafIterator<V> it = new LeafIterator<V>(this);
+        return new PrimitiveIterator.OfLong() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public long nextLong() {
+                return it.next().key;
+            }
+        };
+    }
+
+    // Return an FMap<Long,V> backed by this LongFMap. Its keys are boxed
+    // on the way in and out, but the trie below stores primitive keys
+    public FMap<Long,V> asFMap() {
+        return new Boxed<V>(this);
+    }
+
+    // Compute a string representation of this LongFMap
+    public String toString() {
+        return "{...(" + this.size() + " entries)...}";
+    }
+
+    // Compute the hash code of this LongFMap, equal to the hash code of
+    // an FMap with the same (boxed) keys and values
+    public abstract int hashCode();
+
+    // Determine if this LongFMap has the same keys and values as the given
+    // object. Tries of the same keys have the same shape, so two
+    // LongFMaps are compared Branch by Branch
+    public boolean equals(Object x) {
+        if (this == x) {
+            return true;
+        }
+        if (!(x instanceof LongFMap)) {
+            return false;
+        }
+        LongFMap<?> other = (LongFMap<?>) x;
+        return this.size() == other.size() &&
+            this.hashCode() == other.hashCode() &&
+            this.sameAs(other);
+    }
+
+    // Determine if this trie and the given trie of the same size hold
+    // the same keys and values
+    abstract boolean sameAs(LongFMap<?> other);
+
+
+    // The empty LongFMap
+    private static class Empty<V> extends LongFMap<V> {
+
+        // An empty LongFMap is empty
+        public boolean isEmpty() {
+            return true;
+        }
+
+        // An empty LongFMap has no keys
+        public int size() {
+            return 0;
+        }
+
+        // Adding to an empty LongFMap gives a single Leaf
+        LongFMap<V> ins(long key, long u, V value) {
+            return new Leaf<V>(key, value);
+        }
+
+        // There is nothing to remove
+        LongFMap<V> del(long key, long u) {
+            return this;
+        }
+
+        // There is nothing to visit
+        public LongFMap<V> accept(LongVisitor<V> vis) {
+            return this;
+        }
+
+        // An empty LongFMap has no pairs to add up
+        public int hashCode() {
+            return 0;
+        }
+
+        // Every empty LongFMap is the same
+        boolean sameAs(LongFMap<?> other) {
+            return other.isEmpty();
+        }
+    }
+
+    // A LongFMap of a single key / value pair
+    private static class Leaf<V> extends LongFMap<V> {
+        // The key
+        private final long key;
+        // The value
+        private final V value;
+        Leaf(long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        // A Leaf is not empty
+        public boolean isEmpty() {
+            return false;
+        }
+
+        // A Leaf has one key
+        public int size() {
+            return 1;
+        }
+
+        // Replace the value of this Leaf, or join it with a new Leaf
+        LongFMap<V> ins(long key, long u, V value) {
+            if (key == this.key) {
+                return value == this.value ? this : new Leaf<V>(key, value);
+            }
+            return join(u, new Leaf<V>(key, value), bias(this.key), this);
+        }
+
+        // Remove this Leaf if it holds the key
+        LongFMap<V> del(long key, long u) {
+            return key == this.key ? LongFMap.<V>empty() : this;
+        }
+
+        // Visit the pair of this Leaf
+        public LongFMap<V> accept(LongVisitor<V> vis) {
+            return new Leaf<V>(this.key, vis.visit(this.key, this.value));
+        }
+
+        // The hash code of the single pair
+        public int hashCode() {
+            return entryHash(this.key, this.value);
+        }
+
+        // The other trie must be a Leaf with the same pair
+        boolean sameAs(LongFMap<?> other) {
+            if (!(other instanceof Leaf)) {
+                return false;
+            }
+            Leaf<?> leaf = (Leaf<?>) other;
+            return this.key == leaf.key && Objects.equals(this.value, leaf.value);
+        }
+    }
+
+    // A LongFMap splitting its keys at a branching bit
+    private static class Branch<V> extends LongFMap<V> {
+        // The bits above the branching bit shared by all biased keys
+        private final long prefix;
+        // The single bit on which the two children differ
+        private final long bit;
+        // The keys with a zero at the branching bit
+        private final LongFMap<V> left;
+        // The keys with a one at the branching bit
+        private final LongFMap<V> right;
+        // The number of keys in this Branch
+        private final int size;
+        // The hash code of this Branch
+        private final int hash;
+        Branch(long prefix, long bit, LongFMap<V> left, LongFMap<V> right) {
+            this.prefix = prefix;
+            this.bit = bit;
+            this.left = left;
+            this.right = right;
+            this.size = left.size() + right.size();
+            this.hash = left.hashCode() + right.hashCode();
+        }
+
+        // A Branch is not empty
+        public boolean isEmpty() {
+            return false;
+        }
+
+        // The size of a Branch is kept when it is made
+        public int size() {
+            return this.size;
+        }
+
+        // Add below the child chosen by the branching bit, or join with
+        // a new Leaf if the key does not share the prefix
+        LongFMap<V> ins(long key, long u, V value) {
+            if (mask(u, this.bit) != this.prefix) {
+                return join(u, new Leaf<V>(key, value), this.prefix, this);
+            }
+            if (zero(u, this.bit)) {
+                LongFMap<V> l = this.left.ins(key, u, value);
+                return l == this.left ? this :
+                    new Branch<V>(this.prefix, this.bit, l, this.right);
+            }
+            LongFMap<V> r = this.right.ins(key, u, value);
+            return r == this.right ? this :
+                new Branch<V>(this.prefix, this.bit, this.left, r);
+        }
+
+        // Remove below the child chosen by the branching bit, replacing
+        // this Branch by the other child if that one becomes empty
+        LongFMap<V> del(long key, long u) {
+            if (mask(u, this.bit) != this.prefix) {
+                return this;
+            }
+            if (zero(u, this.bit)) {
+                LongFMap<V> l = this.left.del(key, u);
+                if (l == this.left) {
+                    return this;
+                }
+                return l.isEmpty() ? this.right :
+                    new Branch<V>(this.prefix, this.bit, l, this.right);
+            }
+            LongFMap<V> r = this.right.del(key, u);
+            if (r == this.right) {
+                return this;
+            }
+            return r.isEmpty() ? this.left :
+                new Branch<V>(this.prefix, this.bit, this.left, r);
+        }
+
+        // Visit both children
+        public LongFMap<V> accept(LongVisitor<V> vis) {
+            return new Branch<V>(this.prefix, this.bit,
+                                 this.left.accept(vis), this.right.accept(vis));
+        }
+
+        // The hash code of a Branch is kept when it is made
+        public int hashCode() {
+            return this.hash;
+        }
+
+        // The other trie must branch the same way with the same children,
+        // skipping children the two tries share
+        boolean sameAs(LongFMap<?> other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Branch)) {
+                return false;
+            }
+            Branch<?> b = (Branch<?>) other;
+            return this.prefix == b.prefix && this.bit == b.bit &&
+                this.left.size() == b.left.size() &&
+                this.left.sameAs(b.left) && this.right.sameAs(b.right);
+        }
+    }
+
+    // An Iterator over the Leaves of a LongFMap in ascending key order
+    private static class LeafIterator<V> implements Iterator<Leaf<V>> {
+        // The Branches whose right children are still to be walked;
+        // a trie of long keys is at most 64 Branches deep
+        private final Branch<?>[] stack = new Branch<?>[64];
+        // The number of Branches on the stack
+        private int top = 0;
+        // The next Leaf, or null if there is none
+        private Leaf<V> next;
+        LeafIterator(LongFMap<V> t) {
+            this.next = this.descend(t);
+        }
+
+        // Walk down the left children of the given trie to its first Leaf
+        @SuppressWarnings(value="unchecked")
+        private Leaf<V> descend(LongFMap<V> t) {
+            while (t instanceof Branch) {
+                Branch<V> b = (Branch<V>) t;
+                this.stack[this.top++] = b;
+                t = b.left;
+            }
+            return t instanceof Leaf ? (Leaf<V>) t : null;
+        }
+
+        // Determine if there is another Leaf
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        // Return the next Leaf
+        @SuppressWarnings(value="unchecked")
+        public Leaf<V> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            Leaf<V> result = this.next;
+            this.next = this.top == 0 ? null :
+                this.descend(((Branch<V>) this.stack[--this.top]).right);
+            return result;
+        }
+
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // An FMap<Long,V> backed by a LongFMap
+    private static class Boxed<V> extends FMap<Long,V> {
+        // The LongFMap holding the pairs
+        private final LongFMap<V> map;
+        Boxed(LongFMap<V> map) {
+            this.map = map;
+        }
+
+        // Wrap the given LongFMap, or return this if it is the same one
+        private Boxed<V> wrap(LongFMap<V> result) {
+            return result == this.map ? this : new Boxed<V>(result);
+        }
+
+        // Determine if this FMap is empty
+        public boolean isEmpty() {
+            return this.map.isEmpty();
+        }
+
+        // Add the given value under the unboxed key
+        public FMap<Long,V> add(Long key, V value) {
+            return this.derive(this.wrap(this.map.add(key, value)), key);
+        }
+
+        // Remove the unboxed key
+        public FMap<Long,V> remove(Long key) {
+            return this.derive(this.wrap(this.map.remove(key)), key);
+        }
+
+        // Determine the size of this FMap
+        public int size() {
+            return this.map.size();
+        }
+
+        // Determine if the unboxed key is in this FMap; null never is
+        public boolean containsKey(Long key) {
+            return key != null && this.map.containsKey(key);
+        }
+
+        // Get the value at the unboxed key
+        public V get(Long key) {
+            // If this map does not contain the key throw an exception
+            if (key == null) {
+                throw new RuntimeException
+                ("This FMap does not contain the specified key");
+            }
+            return this.map.get(key);
+        }
+
+        // Compute a string representation of this FMap
+        public String toString() {
+            return this.map.toString();
+        }
+
+        // The hash code of the LongFMap is that of the boxed pairs
+        public int hashCode() {
+            return this.map.hashCode();
+        }
+
+        // Compare two LongFMaps directly, and any other FMap key by key
+        @SuppressWarnings(value="unchecked")
+        public boolean equals(Object x) {
+            if (x instanceof Boxed) {
+                return this.map.equals(((Boxed<?>) x).map);
+            }
+            if (!(x instanceof FMap)) {
+                return false;
+            }
+            FMap<Long,V> f2 = (FMap<Long,V>) x;
+            return this.size() == f2.size() &&
+                this.hashCode() == f2.hashCode() &&
+                this.containsAllKeys(f2) &&
+                this.allKeysSame(f2);
+        }
+
+        // Determine if all the keys in this FMap are in the given FMap
+        boolean containsAllKeys(FMap<Long,V> f2) {
+            for (LeafIterator<V> it = new LeafIterator<V>(this.map); it.hasNext();) {
+                if (!f2.containsKey(it.next().key)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Determine if every value of this FMap is the same as the value
+        // of the given FMap at the same key
+        boolean allKeysSame(FMap<Long,V> f2) {
+            for (LeafIterator<V> it = new LeafIterator<V>(this.map); it.hasNext();) {
+                Leaf<V> leaf = it.next();
+                if (!Objects.equals(leaf.value, f2.get(leaf.key))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Get all the keys in this FMap
+        Set<Long> getKeys() {
+            Set<Long> keys = new HashSet<Long>();
+            for (Long key : this) {
+                keys.add(key);
+            }
+            return keys;
+        }
+
+        // Return an iterator over the keys in ascending order
+        public Iterator<Long> iterator() {
+            return this.map.keyIterator();
+        }
+
+        // Return an iterator over the keys sorted by the given comparator
+        public Iterator<Long> iterator(java.util.Comparator<? super Long> c) {
+            return this.sortedIterator(c);
+        }
+
+        // Visit every pair with the keys boxed
+        public FMap<Long,V> accept(final Visitor<Long,V> vis) {
+            return new Boxed<V>(this.map.accept(new LongVisitor<V>() {
+                    public V visit(long k, V v) {
+                        return vis.visit(k, v);
+                    }
+                }));
+        }
+    }
+}
@@ -0,0 +1,8 @@
+// Visitor interface for LongFMaps
+
+public interface LongVisitor<V> {
+
+    // Given a long key and a value, returns a suitable value.
+
+    public V visit (long k, V v);
+}
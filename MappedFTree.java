@@ -0,0 +1,551 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/* An FMap served from a snapshot of an FTree written to a file and
+   opened with FileChannel.map, so opening takes O(1) time and the
+   entries stay out of the Java heap. Keys and values are only decoded,
+   through the given Codecs, when a lookup or a walk reaches them.
+   add and remove leave the snapshot alone: they return a MappedFTree
+   that shares it and keeps the changes in a small FTree (the delta)
+   on the heap, where a removed key of the snapshot maps to REMOVED.
+
+   The file holds, in big endian order:
+     a header   MAGIC, VERSION, the number of entries, the number of
+                entries per block, the number of blocks and the offset
+                of the index, each as an int
+     the blocks the entries in ascending key order, each written as
+                the length and bytes of its key, then the length and
+                bytes of its value
+     the index  the offset of the first entry of each block, as an int
+   A lookup binary searches the first keys of the blocks and then scans
+   one block, decoding O(lg (n / b) + b) keys for n entries in blocks of
+   b. A file is limited to 2GB, the size of one mapped buffer.
+   INVARIANT: A key of the delta that maps to REMOVED is in the snapshot
+   INVARIANT: The size of a MappedFTree is the number of keys in the
+   snapshot or the delta that do not map to REMOVED */
+
+public class MappedFTree<K,V> extends FMap<K,V> {
+
+    // The first int of every snapshot file, "FMAP"
+    private static final int MAGIC = 0x464D4150;
+    // The version of the file layout
+    private static final int VERSION = 1;
+    // The length of the header
+    private static final int HEADER = 24;
+    // The number of entries per block when none is given
+    private static final int BLOCK_SIZE = 16;
+    // The value in the delta of a key removed from the snapshot
+    private static final Object REMOVED = new Object();
+
+    // The snapshot this map starts from
+    private final Snapshot<K,V> base;
+    // The keys added or removed since the snapshot was opened
+    private final FTree<K,Object> delta;
+    // The number of keys in this map
+    private final int size;
+    // The hash code of this map, computed when first asked for. hashed is
+    // written after hash, so a thread that reads it true sees the hash
+    private int hash;
+    private volatile boolean hashed;
+    // The keys of this map sorted by the comparators it was iterated by,
+    // or the FMap it was made from, once either is needed; null before
+    private volatile Orderings<K> orderings;
+    MappedFTree(Snapshot<K,V> base, FTree<K,Object> delta, int size) {
+        this.base = base;
+        this.delta = delta;
+        this.size = size;
+    }
+
+    // Write the entries of the given FTree to the given file in blocks
+    // of the default size
+    public static <K,V> void write(FTree<K,V> tree, Path file,
+                                   Codec<K> keys, Codec<V> values)
+        throws IOException {
+        MappedFTree.write(tree, file, keys, values, BLOCK_SIZE);
+    }
+
+    // Write the entries of the given FTree to the given file in blocks of
+    // the given number of entries
+    public static <K,V> void write(FTree<K,V> tree, Path file, Codec<K> keys,
+                                   Codec<V> values, int blockSize)
+        throws IOException {
+        if (blockSize < 1) {
+            throw new RuntimeException("A block must hold at least one entry");
+        }
+        int count = tree.size();
+        int blockCount = (count + blockSize - 1) / blockSize;
+        int[] index = new int[blockCount];
+
+        try (FileChannel channel = FileChannel.open
+             (file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream
+                (new BufferedOutputStream(Channels.newOutputStream(channel)));
+            // The header is written last, once the index offset is known
+            out.write(new byte[HEADER]);
+
+            int i = 0;
+            Iterator<Map.Entry<K,V>> entries = tree.entryStream().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<K,V> e = entries.next();
+                byte[] key = keys.encode(e.getKey());
+                byte[] value = values.encode(e.getValue());
+                if ((long) out.size() + 8 + key.length + value.length +
+                    4L * blockCount > Integer.MAX_VALUE) {
+                    throw new RuntimeException("The snapshot does not fit in 2GB");
+                }
+                if (i % blockSize == 0) {
+                    index[i / blockSize] = out.size();
+                }
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(value.length);
+                out.write(value);
+                i++;
+            }
+
+            int indexOffset = out.size();
+            for (int offset : index) {
+                out.writeInt(offset);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count)
+                .putInt(blockSize).putInt(blockCount).putInt(indexOffset);
+            header.flip();
+            channel.write(header, 0);
+        }
+    }
+
+    // Open the snapshot in the given file, whose keys were written in
+    // ascending order of the given comparator. Maps the file without
+    // reading its entries
+    public static <K,V> MappedFTree<K,V> open(Path file, Comparator<? super K> c,
+                                              Codec<K> keys, Codec<V> values)
+        throws IOException {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE) {
+                throw new RuntimeException("Not an FMap snapshot: " + file);
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new RuntimeException("Not an FMap snapshot: " + file);
+        }
+        Snapshot<K,V> base = new Snapshot<K,V>(buf, c, keys, values);
+        return new MappedFTree<K,V>(base, FTree.<K,Object>emptyTree(c), base.count);
+    }
+
+    // Determine if this map is empty
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // Determine the size of this map
+    public int size() {
+        return this.size;
+    }
+
+    // Add the given value under the given key to the delta
+    public MappedFTree<K,V> add(K key, V value) {
+        int size = this.size;
+        if (this.delta.containsKey(key)) {
+            if (this.delta.get(key) == REMOVED) {
+                size++;
+            }
+        } else if (this.base.find(key) < 0) {
+            size++;
+        }
+        return this.derive(new MappedFTree<K,V>(this.base, this.delta.add(key, value), size),
+                           key);
+    }
+
+    // Remove the given key, marking it REMOVED in the delta if it is in
+    // the snapshot, or return this map if it does not contain the key
+    public MappedFTree<K,V> remove(K key) {
+        boolean inBase = this.base.find(key) >= 0;
+        if (this.delta.containsKey(key)) {
+            if (this.delta.get(key) == REMOVED) {
+                return this;
+            }
+            FTree<K,Object> delta = inBase ? this.delta.add(key, REMOVED)
+                : this.delta.remove(key);
+            return this.derive(new MappedFTree<K,V>(this.base, delta, this.size - 1), key);
+        }
+        if (!inBase) {
+            return this;
+        }
+        return this.derive(new MappedFTree<K,V>(this.base, this.delta.add(key, REMOVED),
+                                                this.size - 1), key);
+    }
+
+    // Determine if this map contains the given key
+    public boolean containsKey(K key) {
+        if (this.delta.containsKey(key)) {
+            return this.delta.get(key) != REMOVED;
+        }
+        return this.base.find(key) >= 0;
+    }
+
+    // Get the value at the given key, decoding it from the snapshot
+    // unless the delta has it
+    @SuppressWarnings(value="unchecked")
+    public V get(K key) {
+        if (this.delta.containsKey(key)) {
+            Object value = this.delta.get(key);
+            if (value != REMOVED) {
+                return (V) value;
+            }
+        } else {
+            int p = this.base.find(key);
+            if (p >= 0) {
+                return this.base.valueAt(p);
+            }
+        }
+        throw new RuntimeException("This FMap does not contain the specified key");
+    }
+
+    // Compute a string representation of this map
+    public String toString() {
+        return "{...(" + this.size() + " entries)...}";
+    }
+
+    // Compute the hash code of this map by walking it once, then keep it
+    public int hashCode() {
+        if (this.hashed) {
+            return this.hash;
+        }
+        int hash = 0;
+        for (Iterator<Map.Entry<K,V>> it = this.entries(null, null); it.hasNext();) {
+            Map.Entry<K,V> e = it.next();
+            hash += FMap.entryHash(e.getKey(), e.getValue());
+        }
+        this.hash = hash;
+        this.hashed = true;
+        return hash;
+    }
+
+    // Determine if this map equals the given object
+    @SuppressWarnings(value="unchecked")
+    public boolean equals(Object x) {
+        if (!(x instanceof FMap<?,?>)) {
+            return false;
+        }
+        FMap<K,V> f2 = (FMap<K,V>) x;
+        return f2 == this ||
+            (this.size() == f2.size() &&
+             this.hashCode() == f2.hashCode() &&
+             this.containsAllKeys(f2) &&
+             this.allKeysSame(f2));
+    }
+
+    // Determine if all the keys in this map are contained in the given FMap
+    boolean containsAllKeys(FMap<K,V> f2) {
+        for (K key : this) {
+            if (!f2.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Determine if every value at the keys of this map is the same as
+    // the value of the given FMap at the same key
+    boolean allKeysSame(FMap<K,V> f2) {
+        for (Iterator<Map.Entry<K,V>> it = this.entries(null, null); it.hasNext();) {
+            Map.Entry<K,V> e = it.next();
+            if (!Objects.equals(e.getValue(), f2.get(e.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Get all the keys in this map
+    Set<K> getKeys() {
+        Set<K> keys = new HashSet<K>();
+        for (K key : this) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    // Return an iterator over the keys of this map in ascending order
+    public Iterator<K> iterator() {
+        final Iterator<Map.Entry<K,V>> entries = this.entries(null, null);
+        return new Iterator<K>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public K next() {
+                return entries.next().getKey();
+            }
+        };
+    }
+
+    // Return an iterator over the keys sorted by the given comparator
+    public Iterator<K> iterator(java.util.Comparator<? super K> c) {
+        if (c.equals(this.base.c)) {
+            return this.iterator();
+        }
+        return this.sortedIterator(c);
+    }
+
+    // Get the Orderings of this map, or null
+    Orderings<K> getOrderings() {
+        return this.orderings;
+    }
+
+    // Keep the given Orderings for this map
+    void setOrderings(Orderings<K> o) {
+        this.orderings = o;
+    }
+
+    // Return the key / value pairs from from (inclusive) to to (exclusive)
+    // in ascending order, reading them from the snapshot as they are reached
+    public Iterator<Map.Entry<K,V>> rangeIterator(K from, K to) {
+        if (this.base.c.compare(from, to) > 0) {
+            throw new RuntimeException("The range starts after it ends");
+        }
+        return this.entries(from, to);
+    }
+
+    // Walk the snapshot and the delta together from from to to, where a
+    // null bound leaves that end open
+    private Iterator<Map.Entry<K,V>> entries(K from, K to) {
+        FTree<K,Object> delta = this.delta;
+        if (from != null) {
+            delta = (to != null) ? delta.subMap(from, to) : delta.tailMap(from);
+        }
+        Cursor<K,V> cursor = (from == null) ? this.base.first() : this.base.seek(from);
+        return new MergeIterator<K,V>(cursor, to, delta.entryStream().iterator());
+    }
+
+    // Accept the given visitor and visit each key / value pair, returning
+    // an FTree on the heap with these new values
+    public FTree<K,V> accept(Visitor<K,V> vis) {
+        ArrayList<Map.Entry<K,V>> visited = new ArrayList<Map.Entry<K,V>>(this.size);
+        for (Iterator<Map.Entry<K,V>> it = this.entries(null, null); it.hasNext();) {
+            Map.Entry<K,V> e = it.next();
+            visited.add(new AbstractMap.SimpleImmutableEntry<K,V>
+                        (e.getKey(), vis.visit(e.getKey(), e.getValue())));
+        }
+        return FTree.fromSorted(this.base.c, visited.iterator());
+    }
+
+
+    // A mapped snapshot file
+    private static class Snapshot<K,V> {
+        // The mapped file
+        private final ByteBuffer buf;
+        // The comparator the keys were written in order of
+        private final Comparator<? super K> c;
+        // How keys and values are decoded
+        private final Codec<K> keys;
+        private final Codec<V> values;
+        // The number of entries, entries per block and blocks
+        private final int count;
+        private final int blockSize;
+        private final int blockCount;
+        // The offset of the index
+        private final int index;
+        Snapshot(ByteBuffer buf, Comparator<? super K> c, Codec<K> keys,
+                 Codec<V> values) {
+            this.buf = buf;
+            this.c = c;
+            this.keys = keys;
+            this.values = values;
+            this.count = buf.getInt(8);
+            this.blockSize = buf.getInt(12);
+            this.blockCount = buf.getInt(16);
+            this.index = buf.getInt(20);
+        }
+
+        // Decode the key of the entry at the given offset
+        K keyAt(int p) {
+            return this.keys.decode(this.buf, p + 4, this.buf.getInt(p));
+        }
+
+        // Decode the value of the entry at the given offset
+        V valueAt(int p) {
+            int v = p + 4 + this.buf.getInt(p);
+            return this.values.decode(this.buf, v + 4, this.buf.getInt(v));
+        }
+
+        // The offset of the entry after the entry at the given offset
+        int skip(int p) {
+            int v = p + 4 + this.buf.getInt(p);
+            return v + 4 + this.buf.getInt(v);
+        }
+
+        // A Cursor at the first entry
+        Cursor<K,V> first() {
+            return new Cursor<K,V>(this, 0, HEADER);
+        }
+
+        // A Cursor at the first entry whose key is not less than the given
+        // key: the last block starting at or below the key is found by
+        // binary search and scanned from its start
+        Cursor<K,V> seek(K key) {
+            int lo = 0;
+            int hi = this.blockCount - 1;
+            int block = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int comp = this.c.compare(this.keyAt(this.buf.getInt(this.index + 4 * mid)), key);
+                if (comp == 0) {
+                    return new Cursor<K,V>(this, mid * this.blockSize,
+                                           this.buf.getInt(this.index + 4 * mid));
+                } else if (comp < 0) {
+                    block = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            Cursor<K,V> cursor = (this.blockCount == 0) ? this.first() :
+                new Cursor<K,V>(this, block * this.blockSize,
+                                this.buf.getInt(this.index + 4 * block));
+            while (cursor.hasEntry() && this.c.compare(cursor.key(), key) < 0) {
+                cursor.advance();
+            }
+            return cursor;
+        }
+
+        // The offset of the entry with the given key, or -1
+        int find(K key) {
+            Cursor<K,V> cursor = this.seek(key);
+            if (cursor.hasEntry() && this.c.compare(cursor.key(), key) == 0) {
+                return cursor.offset;
+            }
+            return -1;
+        }
+    }
+
+    // A position in a snapshot, decoding the key there at most once
+    private static class Cursor<K,V> {
+        // The snapshot
+        private final Snapshot<K,V> base;
+        // The number and offset of the current entry
+        private int i;
+        private int offset;
+        // The decoded key of the current entry, or null if not decoded yet
+        private K key;
+        Cursor(Snapshot<K,V> base, int i, int offset) {
+            this.base = base;
+            this.i = i;
+            this.offset = offset;
+        }
+
+        // Determine if the cursor is at an entry
+        boolean hasEntry() {
+            return this.i < this.base.count;
+        }
+
+        // The key of the current entry
+        K key() {
+            if (this.key == null) {
+                this.key = this.base.keyAt(this.offset);
+            }
+            return this.key;
+        }
+
+        // The value of the current entry
+        V value() {
+            return this.base.valueAt(this.offset);
+        }
+
+        // Move to the next entry
+        void advance() {
+            this.offset = this.base.skip(this.offset);
+            this.i++;
+            this.key = null;
+        }
+    }
+
+    // An Iterator over the entries of a snapshot and a delta in ascending
+    // order, up to an optional bound. The delta wins on equal keys and
+    // its REMOVED keys are passed over
+    private static class MergeIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+        // The snapshot position
+        private final Cursor<K,V> cursor;
+        // The key the walk stops before, or null
+        private final K to;
+        // The entries of the delta inside the range
+        private final Iterator<Map.Entry<K,Object>> delta;
+        // The next entry of the delta, or null
+        private Map.Entry<K,Object> pending;
+        // The next entry to return, or null if there is none
+        private Map.Entry<K,V> next;
+        MergeIterator(Cursor<K,V> cursor, K to, Iterator<Map.Entry<K,Object>> delta) {
+            this.cursor = cursor;
+            this.to = to;
+            this.delta = delta;
+            this.pending = delta.hasNext() ? delta.next() : null;
+            this.next = this.step();
+        }
+
+        // Determine if the snapshot has an entry left inside the range
+        private boolean baseLeft() {
+            return this.cursor.hasEntry() &&
+                (this.to == null ||
+                 this.cursor.base.c.compare(this.cursor.key(), this.to) < 0);
+        }
+
+        // Find the entry after the ones returned so far, or null
+        @SuppressWarnings(value="unchecked")
+        private Map.Entry<K,V> step() {
+            while (true) {
+                boolean baseLeft = this.baseLeft();
+                if (!baseLeft && this.pending == null) {
+                    return null;
+                }
+                int comp = !baseLeft ? 1 : (this.pending == null) ? -1 :
+                    this.cursor.base.c.compare(this.cursor.key(), this.pending.getKey());
+                if (comp < 0) {
+                    Map.Entry<K,V> e = new AbstractMap.SimpleImmutableEntry<K,V>
+                        (this.cursor.key(), this.cursor.value());
+                    this.cursor.advance();
+                    return e;
+                }
+                if (comp == 0) {
+                    this.cursor.advance();
+                }
+                Map.Entry<K,Object> d = this.pending;
+                this.pending = this.delta.hasNext() ? this.delta.next() : null;
+                if (d.getValue() != REMOVED) {
+                    return (Map.Entry<K,V>) (Map.Entry<K,?>) d;
+                }
+            }
+        }
+
+        // Determine if there is another entry
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        // Return the next entry
+        public Map.Entry<K,V> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K,V> result = this.next;
+            this.next = this.step();
+            return result;
+        }
+
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
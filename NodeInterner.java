@@ -0,0 +1,272 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/* A table of the FTree Nodes in use, so that a Node with the same pair,
+   color and children as one already made is that one rather than a
+   copy. Interning is off unless the JVM is started with
+   -Dfmap.intern=true; ENABLED is a static final field, so with it false
+   the FTrees run as if it were not there.
+   When on, FTree.node looks every Node it is asked for up here first.
+   Keys and values are matched with equals and children by identity, so
+   the Nodes are interned from the leaves up and two FTrees holding equal
+   pairs in the same shape end up with the one root, whoever built them.
+   Keys and values must then be immutable, as they should be in any
+   FMap, and an FTree may hand back an equal key or value that another
+   map put there. A Node made for a Builder is not interned, since the
+   Builder may still change it, nor is one made with it as a child.
+   Once the Builder is done (persistent(), the end of applyDiff or of a
+   round of an FMapRef) the Nodes it made are made over from interned
+   ones, so no Node in the table holds one that may still change.
+   The table only holds weak references, so a Node no FTree uses any
+   more is collected as usual and its entry goes with it. It is split
+   into segments that are locked one at a time.
+   The counters say how many Nodes were asked for and how many were
+   found, and, for the Nodes still in the table, how many times each was
+   handed out again, each time a Node not allocated. That is an upper
+   bound on the heap saved, since some of the maps it went to may have
+   been dropped since. A snapshot weighs it against the entries of the
+   table.
+   INVARIANT: Every entry of a segment is in the chain of its hash code */
+
+public final class NodeInterner {
+
+    // True iff interning is on
+    public static final boolean ENABLED = Boolean.getBoolean("fmap.intern");
+
+    // The bytes of heap of a Node and of an entry of the table (a weak
+    // reference of 28 bytes with its hash code, chain link and count,
+    // and its slot in the chain array) with compressed references
+    private static final int NODE_BYTES = FTree.FINGERPRINTS ? 48 : 40;
+    private static final int ENTRY_BYTES = 44;
+
+    // The number of segments, a power of two
+    private static final int SEGMENTS = 64;
+
+    // The segments of the table
+    private static final Segment[] TABLE = new Segment[SEGMENTS];
+    // The Nodes asked for and the ones found in the table
+    private static final LongAdder LOOKUPS = new LongAdder();
+    private static final LongAdder HITS = new LongAdder();
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            TABLE[i] = new Segment();
+        }
+    }
+
+    /* A Node that can be interned. Only FTree Nodes implement it */
+    interface Interned {
+        // Determine if this Node holds the given pair, children and color
+        boolean holds(Object key, Object value, Object left, Object right, boolean red);
+    }
+
+    // The values of the counters when the snapshot was taken
+    private final long lookups;
+    private final long hits;
+    private final long live;
+    private final long shared;
+    private NodeInterner() {
+        this.lookups = LOOKUPS.sum();
+        this.hits = HITS.sum();
+        long live = 0;
+        long shared = 0;
+        for (Segment s : TABLE) {
+            synchronized (s) {
+                s.expunge();
+                live += s.count;
+                shared += s.shared;
+            }
+        }
+        this.live = live;
+        this.shared = shared;
+    }
+
+    // Take a snapshot of the counters and the table
+    public static NodeInterner snapshot() {
+        return new NodeInterner();
+    }
+
+    // Get the number of Nodes asked for since the JVM started
+    public long getLookups() {
+        return this.lookups;
+    }
+
+    // Get the number of Nodes asked for that were found in the table
+    public long getHits() {
+        return this.hits;
+    }
+
+    // Get the number of Nodes in the table
+    public long getLive() {
+        return this.live;
+    }
+
+    // Get the number of times the Nodes in the table were handed out
+    // after the first
+    public long getShared() {
+        return this.shared;
+    }
+
+    // Get the bytes of the Nodes that the Nodes in the table stand in
+    // for, at most the heap saved
+    public long getBytesSaved() {
+        return this.shared * NODE_BYTES;
+    }
+
+    // Get the bytes the table takes for its entries
+    public long getBytesUsed() {
+        return this.live * ENTRY_BYTES;
+    }
+
+    // Get the bytes saved less the bytes used, negative if the maps
+    // share too little for interning to pay
+    public long getNetBytesSaved() {
+        return this.getBytesSaved() - this.getBytesUsed();
+    }
+
+    public String toString() {
+        return "NodeInterner[lookups=" + this.lookups + ", hits=" + this.hits +
+            ", live=" + this.live + ", shared=" + this.shared +
+            ", bytesSaved=" + this.getBytesSaved() +
+            ", bytesUsed=" + this.getBytesUsed() + "]";
+    }
+
+    // The hash code of a Node with the given pair, children and color
+    static int hash(Object key, Object value, Object left, Object right, boolean red) {
+        int h = Objects.hashCode(key);
+        h = 31 * h + Objects.hashCode(value);
+        h = 31 * h + System.identityHashCode(left);
+        h = 31 * h + System.identityHashCode(right);
+        h = 2 * h + (red ? 1 : 0);
+        return h ^ (h >>> 16);
+    }
+
+    // Find the Node with the given hash code, pair, children and color,
+    // or return null if there is none
+    static Object find(int hash, Object key, Object value, Object left, Object right,
+                       boolean red) {
+        LOOKUPS.increment();
+        Segment s = TABLE[(hash >>> 26) & (SEGMENTS - 1)];
+        synchronized (s) {
+            Object found = s.find(hash, key, value, left, right, red);
+            if (found != null) {
+                HITS.increment();
+            }
+            return found;
+        }
+    }
+
+    // Put the given Node with the given hash code in the table, unless
+    // another thread has put an equal one there since find, and return
+    // the Node that is in the table
+    static Object add(int hash, Object node, Object key, Object value, Object left,
+                      Object right, boolean red) {
+        Segment s = TABLE[(hash >>> 26) & (SEGMENTS - 1)];
+        synchronized (s) {
+            Object found = s.find(hash, key, value, left, right, red);
+            if (found != null) {
+                HITS.increment();
+                return found;
+            }
+            s.add(hash, node);
+            return node;
+        }
+    }
+
+    /* A weak reference to an interned Node, in a chain of a Segment */
+    private static final class Entry extends WeakReference<Object> {
+        // The hash code of the Node
+        final int hash;
+        // The next entry of the chain
+        Entry next;
+        // The number of times the Node was found
+        int shared;
+        Entry(Object node, int hash, Entry next, ReferenceQueue<Object> queue) {
+            super(node, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    /* A part of the table, a hash table of chains of weak references,
+       changed only while locked */
+    private static final class Segment {
+        // The chains, a power of two of them
+        private Entry[] chains = new Entry[16];
+        // The number of entries
+        int count;
+        // The sum of the shared counts of the entries
+        long shared;
+        // Where the entries of collected Nodes are put
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+        // Find the Node with the given hash code, pair, children and
+        // color, counting it if there is one
+        Object find(int hash, Object key, Object value, Object left, Object right,
+                    boolean red) {
+            this.expunge();
+            for (Entry e = this.chains[hash & (this.chains.length - 1)]; e != null;
+                 e = e.next) {
+                if (e.hash != hash) {
+                    continue;
+                }
+                Object node = e.get();
+                if (node != null &&
+                    ((Interned) node).holds(key, value, left, right, red)) {
+                    e.shared++;
+                    this.shared++;
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        // Put the given Node with the given hash code in a chain
+        void add(int hash, Object node) {
+            if (this.count >= this.chains.length - (this.chains.length >>> 2)) {
+                this.resize();
+            }
+            int i = hash & (this.chains.length - 1);
+            this.chains[i] = new Entry(node, hash, this.chains[i], this.queue);
+            this.count++;
+        }
+
+        // Double the number of chains
+        private void resize() {
+            Entry[] old = this.chains;
+            Entry[] chains = new Entry[2 * old.length];
+            for (Entry e : old) {
+                while (e != null) {
+                    Entry next = e.next;
+                    int i = e.hash & (chains.length - 1);
+                    e.next = chains[i];
+                    chains[i] = e;
+                    e = next;
+                }
+            }
+            this.chains = chains;
+        }
+
+        // Remove the entries of the Nodes that have been collected
+        void expunge() {
+            for (Object x; (x = this.queue.poll()) != null;) {
+                Entry dead = (Entry) x;
+                int i = dead.hash & (this.chains.length - 1);
+                Entry prev = null;
+                for (Entry e = this.chains[i]; e != null; prev = e, e = e.next) {
+                    if (e == dead) {
+                        if (prev == null) {
+                            this.chains[i] = e.next;
+                        } else {
+                            prev.next = e.next;
+                        }
+                        this.count--;
+                        this.shared -= e.shared;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
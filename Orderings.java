@@ -0,0 +1,224 @@
+import java.lang.ref.SoftReference;
+import java.util.*;
+
+/* The keys of one FMap sorted by the comparators it has been iterated
+   by, for iterator(Comparator) on maps that are not kept in the order
+   asked for
+   An FMap never changes, so the sorted keys of a comparator stay right
+   for as long as the map lives and every iterator may share them. They
+   are held through soft references, so the collector takes them back
+   when memory runs short, and only the last few comparators are kept.
+   An FMap made by add or remove from one that has Orderings gets
+   Orderings of its own that link to those and name the key that was
+   added or removed. They hold no map, so the map made from may be
+   collected and still be patched from. The first time the new map is
+   iterated by a comparator it walks up these links to the nearest
+   Orderings that have the keys sorted by it, and patches them with the
+   keys changed on the way: it drops those keys, sorts the ones it still
+   contains and merges the two, in O(n + d lg n) for d changes rather
+   than O(n lg n). A chain ends after CHANGES links, and the FMaps made
+   after that sort their keys afresh and start a new one
+   INVARIANT: The keys sorted by a comparator are the keys of the map,
+   each once, in ascending order of the comparator */
+
+final class Orderings<K> {
+
+    // The most comparators whose sorted keys are kept
+    private static final int COMPARATORS = 4;
+    // The most links from an FMap to the one that first sorted its keys,
+    // so that no chain holds more keys than this
+    private static final int CHANGES = 256;
+    // No sorted keys yet
+    private static final Entry[] NONE = new Entry[0];
+
+    // The Orderings of the FMap this one was made from and the key added
+    // to or removed from it, or null
+    private final Orderings<K> parent;
+    private final K key;
+    // The number of links up to the Orderings of an FMap that was not
+    // made from another, which sorted its keys
+    private final int changes;
+    // The sorted keys by comparator, the most recently sorted first. A
+    // new array is put in place for every change
+    private volatile Entry[] entries = NONE;
+    Orderings(Orderings<K> parent, K key, int changes) {
+        this.parent = parent;
+        this.key = key;
+        this.changes = changes;
+    }
+
+    // Return the Orderings of an FMap made from the one whose Orderings
+    // these are by adding or removing the given key, or null if the
+    // chain is as long as it may be
+    Orderings<K> derived(K key) {
+        if (this.changes >= CHANGES) {
+            return null;
+        }
+        return new Orderings<K>(this, key, this.changes + 1);
+    }
+
+    // Return the keys of the given FMap, whose Orderings these are,
+    // sorted by the given comparator: those kept, or else those of an
+    // earlier map patched, or else all the keys collected and sorted
+    @SuppressWarnings(value="unchecked")
+    Object[] sorted(FMap<K,?> map, Comparator<? super K> c) {
+        Object[] keys = this.cached(c);
+        if (keys != null) {
+            return keys;
+        }
+        keys = this.patched(map, c);
+        if (keys == null) {
+            keys = new Object[map.size()];
+            int i = 0;
+            for (K key : map) {
+                keys[i++] = key;
+            }
+            FMapStats.sorted(keys.length);
+            Arrays.sort(keys, (Comparator<Object>) c);
+        }
+        this.keep(c, keys);
+        return keys;
+    }
+
+    // The keys sorted by the given comparator if they are kept, or null
+    private Object[] cached(Comparator<?> c) {
+        for (Entry e : this.entries) {
+            if (e.c.equals(c)) {
+                return e.keys.get();
+            }
+        }
+        return null;
+    }
+
+    // Keep the given keys sorted by the given comparator, first, dropping
+    // the comparator sorted by longest ago if there are too many
+    private void keep(Comparator<?> c, Object[] keys) {
+        Entry[] old = this.entries;
+        Entry[] entries = new Entry[Math.min(old.length + 1, COMPARATORS)];
+        entries[0] = new Entry(c, keys);
+        int n = 1;
+        for (int i = 0; i < old.length && n < entries.length; i++) {
+            if (!old[i].c.equals(c)) {
+                entries[n++] = old[i];
+            }
+        }
+        this.entries = (n == entries.length) ? entries : Arrays.copyOf(entries, n);
+    }
+
+    // The keys of the given map sorted by the given comparator, patched
+    // from those of the nearest map it was made from that has them, or
+    // null if there is none within a few changes or they were collected
+    private Object[] patched(FMap<K,?> map, Comparator<? super K> c) {
+        int most = Math.max(16, map.size() / 16);
+        ArrayList<K> changed = new ArrayList<K>();
+        for (Orderings<K> o = this; o.parent != null && changed.size() < most;) {
+            changed.add(o.key);
+            o = o.parent;
+            Object[] keys = o.cached(c);
+            if (keys != null) {
+                return Orderings.merge(map, c, keys, changed);
+            }
+        }
+        return null;
+    }
+
+    // The given sorted keys without the changed keys, merged with those
+    // of the changed keys the given map contains, sorted. Return null if
+    // that does not come to the size of the map
+    @SuppressWarnings(value="unchecked")
+    private static <K> Object[]
+    merge(FMap<K,?> map, Comparator<? super K> c, Object[] keys, ArrayList<K> changed) {
+        boolean[] dropped = new boolean[keys.length];
+        int drops = 0;
+        ArrayList<K> added = new ArrayList<K>();
+        HashSet<K> seen = new HashSet<K>();
+        for (K key : changed) {
+            if (!seen.add(key)) {
+                continue;
+            }
+            int i = Orderings.find(c, keys, dropped, key);
+            if (i >= 0) {
+                dropped[i] = true;
+                drops++;
+            }
+            if (map.containsKey(key)) {
+                added.add(key);
+            }
+        }
+        Collections.sort(added, c);
+
+        Object[] result = new Object[keys.length - drops + added.size()];
+        if (result.length != map.size()) {
+            return null;
+        }
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (dropped[i]) {
+                continue;
+            }
+            while (j < added.size() && c.compare(added.get(j), (K) keys[i]) < 0) {
+                result[n++] = added.get(j++);
+            }
+            result[n++] = keys[i];
+        }
+        while (j < added.size()) {
+            result[n++] = added.get(j++);
+        }
+        return result;
+    }
+
+    // The index of the given key among the given sorted keys, by binary
+    // search for the first key the comparator ranks with it and then
+    // equals among those, skipping dropped keys, or -1
+    @SuppressWarnings(value="unchecked")
+    private static <K> int find(Comparator<? super K> c, Object[] keys, boolean[] dropped,
+                                K key) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c.compare((K) keys[mid], key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < keys.length && c.compare((K) keys[i], key) == 0; i++) {
+            if (!dropped[i] && Objects.equals(keys[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Return an iterator over the given sorted keys
+    static <K> Iterator<K> iterator(final Object[] keys) {
+        return new Iterator<K>() {
+            // The index of the next key
+            private int next;
+
+            public boolean hasNext() {
+                return this.next < keys.length;
+            }
+
+            @SuppressWarnings(value="unchecked")
+            public K next() {
+                if (this.next >= keys.length) {
+                    throw new NoSuchElementException();
+                }
+                return (K) keys[this.next++];
+            }
+        };
+    }
+
+    // A comparator and the keys sorted by it
+    private static final class Entry {
+        final Comparator<?> c;
+        final SoftReference<Object[]> keys;
+        Entry(Comparator<?> c, Object[] keys) {
+            this.c = c;
+            this.keys = new SoftReference<Object[]>(keys);
+        }
+    }
+}
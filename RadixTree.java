@@ -0,0 +1,1041 @@
+import java.util.*;
+
+/* An immutable adaptive radix tree (Leis, Kemper and Neumann, "The
+   Adaptive Radix Tree: ARTful Indexing for Main-Memory Databases")
+   implementation of FMap for CharSequence or byte[] keys, in
+   lexicographic order
+   A key is turned into bytes and the tree branches on one byte at a
+   time. An inner node holds the bytes that every key below it has
+   after the bytes of the path to it (path compression), the leaf of the
+   key that ends there if there is one, and its children by their next
+   byte in one of four kinds of node: up to 4 or 16 children in sorted
+   arrays, up to 48 in an array found through a 256 byte index, or up to
+   256 in an array indexed by the byte itself. Every change copies the
+   nodes on its path anyway, so a node is always the smallest kind that
+   holds its children. A leaf holds a whole key, its bytes and its value
+   and sits as high as the keys beside it let it, so a lookup reads each
+   byte of the key once on the way down and the rest at the leaf, where
+   an FTree compares the prefix two keys share again at every level.
+   A CharSequence is turned into bytes one UTF-16 char at a time, each in
+   its UTF-8 form (0 in one byte), so the bytes of two strings compare as
+   the strings do with compareTo. A byte[] is its own bytes, compared
+   unsigned. Either way keys must not change once they are added.
+   INVARIANT: Every key below an inner node starts with the bytes of
+   the path to it followed by its prefix
+   INVARIANT: The end of an inner node, if any, is the leaf of the key
+   that is just those bytes; a child under the byte b holds the keys
+   that go on with b
+   INVARIANT: An inner node has at least two leaves below it, so it has
+   two children, or one and an end
+   INVARIANT: An inner node with up to 4 children is a Sorted node of 4,
+   with up to 16 a Sorted node of 16, with up to 48 an Indexed node and
+   with more a Direct node */
+
+public class RadixTree<K,V> extends FMap<K,V> {
+
+    // The kinds of keys
+    private static final Keys CHARS = new Keys() {
+            // The UTF-8 form of every char, the count of bytes first
+            byte[] bytes(Object key) {
+                CharSequence s = (CharSequence) key;
+                int n = s.length();
+                int length = n;
+                for (int i = 0; i < n; i++) {
+                    char c = s.charAt(i);
+                    if (c >= 0x80) {
+                        length += (c >= 0x800) ? 2 : 1;
+                    }
+                }
+                byte[] bytes = new byte[length];
+                int j = 0;
+                for (int i = 0; i < n; i++) {
+                    char c = s.charAt(i);
+                    if (c < 0x80) {
+                        bytes[j++] = (byte) c;
+                    } else if (c < 0x800) {
+                        bytes[j++] = (byte) (0xC0 | (c >> 6));
+                        bytes[j++] = (byte) (0x80 | (c & 0x3F));
+                    } else {
+                        bytes[j++] = (byte) (0xE0 | (c >> 12));
+                        bytes[j++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                        bytes[j++] = (byte) (0x80 | (c & 0x3F));
+                    }
+                }
+                return bytes;
+            }
+
+            int hash(Object key) {
+                return key.hashCode();
+            }
+
+            public int compare(Object k1, Object k2) {
+                return CharSequence.compare((CharSequence) k1, (CharSequence) k2);
+            }
+
+            boolean isOrder(Comparator<?> c) {
+                return c.equals(this) || c.equals(Comparator.naturalOrder());
+            }
+        };
+    private static final Keys BYTES = new Keys() {
+            byte[] bytes(Object key) {
+                return (byte[]) key;
+            }
+
+            int hash(Object key) {
+                return Arrays.hashCode((byte[]) key);
+            }
+
+            public int compare(Object k1, Object k2) {
+                return Arrays.compareUnsigned((byte[]) k1, (byte[]) k2);
+            }
+
+            boolean isOrder(Comparator<?> c) {
+                return c.equals(this);
+            }
+        };
+
+    // The empty RadixTrees of each kind of key
+    private static final RadixTree<Object,Object> EMPTY_CHARS =
+        new RadixTree<Object,Object>(CHARS, null, 0, 0);
+    private static final RadixTree<Object,Object> EMPTY_BYTES =
+        new RadixTree<Object,Object>(BYTES, null, 0, 0);
+
+    // The kind of the keys
+    private final Keys keys;
+    // The root of the tree, null iff this RadixTree is empty
+    private final Node<K,V> root;
+    // The number of keys in this tree
+    private final int size;
+    // The hash code of this tree, kept up to date by add and remove
+    private final int hash;
+    // The keys of this RadixTree sorted by the comparators it was iterated by,
+    // or the FMap it was made from, once either is needed; null before
+    private volatile Orderings<K> orderings;
+    private RadixTree(Keys keys, Node<K,V> root, int size, int hash) {
+        this.keys = keys;
+        this.root = root;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    // Create an empty RadixTree of CharSequence keys, such as Strings
+    @SuppressWarnings(value="unchecked")
+    public static <K extends CharSequence,V> RadixTree<K,V> empty() {
+        return (RadixTree<K,V>) (RadixTree<?,?>) EMPTY_CHARS;
+    }
+
+    // Create an empty RadixTree of byte[] keys
+    @SuppressWarnings(value="unchecked")
+    public static <V> RadixTree<byte[],V> emptyBytes() {
+        return (RadixTree<byte[],V>) (RadixTree<?,?>) EMPTY_BYTES;
+    }
+
+    // Get the order the keys are iterated in: for CharSequences that of
+    // CharSequence.compare, for Strings their natural order, and for
+    // byte[] that of Arrays.compareUnsigned
+    @SuppressWarnings(value="unchecked")
+    public Comparator<? super K> comparator() {
+        return (Comparator<? super K>) this.keys;
+    }
+
+    // The hash code a key / value pair adds to the hash code of this
+    // RadixTree, FMap.entryHash with the hash code of a byte[] key
+    // taken from its bytes
+    private int pairHash(K key, Object value) {
+        return (Objects.hashCode(value) * 31) ^ this.keys.hash(key);
+    }
+
+    // The number of bytes that a from ai and b from bi have in common,
+    // up to max
+    private static int common(byte[] a, int ai, byte[] b, int bi, int max) {
+        int i = 0;
+        while (i < max && a[ai + i] == b[bi + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    // The bytes of a followed by b and the bytes of c
+    private static byte[] concat(byte[] a, int b, byte[] c) {
+        byte[] result = new byte[a.length + 1 + c.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        result[a.length] = (byte) b;
+        System.arraycopy(c, 0, result, a.length + 1, c.length);
+        return result;
+    }
+
+    // Make the smallest kind of inner node that holds the given prefix,
+    // end and the first m of the given children under the given bytes,
+    // which are in ascending order
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Inner<K,V>
+    make(byte[] prefix, Leaf<K,V> end, int[] bs, Node<K,V>[] cs, int m) {
+        if (m <= 16) {
+            int capacity = (m <= 4) ? 4 : 16;
+            byte[] bytes = new byte[capacity];
+            Node<K,V>[] children = (Node<K,V>[]) new Node<?,?>[capacity];
+            for (int i = 0; i < m; i++) {
+                bytes[i] = (byte) bs[i];
+                children[i] = cs[i];
+            }
+            return new Sorted<K,V>(prefix, end, m, bytes, children);
+        } else if (m <= 48) {
+            byte[] index = new byte[256];
+            Node<K,V>[] children = (Node<K,V>[]) new Node<?,?>[48];
+            for (int i = 0; i < m; i++) {
+                index[bs[i]] = (byte) (i + 1);
+                children[i] = cs[i];
+            }
+            return new Indexed<K,V>(prefix, end, m, index, children);
+        }
+        Node<K,V>[] children = (Node<K,V>[]) new Node<?,?>[256];
+        for (int i = 0; i < m; i++) {
+            children[bs[i]] = cs[i];
+        }
+        return new Direct<K,V>(prefix, end, m, children);
+    }
+
+    // Make an inner node with the given prefix over the given node under
+    // the byte ab and the given leaf, whose key is at least e bytes long
+    // and is the end of the node if it is e bytes long
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Inner<K,V>
+    fork(byte[] prefix, int ab, Node<K,V> a, int e, Leaf<K,V> leaf) {
+        Node<K,V>[] cs = (Node<K,V>[]) new Node<?,?>[2];
+        if (leaf.bytes.length == e) {
+            cs[0] = a;
+            return RadixTree.make(prefix, leaf, new int[] {ab}, cs, 1);
+        }
+        int lb = leaf.bytes[e] & 0xFF;
+        cs[0] = (ab < lb) ? a : leaf;
+        cs[1] = (ab < lb) ? leaf : a;
+        return RadixTree.make(prefix, null, new int[] {Math.min(ab, lb), Math.max(ab, lb)},
+                              cs, 2);
+    }
+
+    // A RadixTree is empty iff it has no root
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // The size of a RadixTree is kept at the top
+    public int size() {
+        return this.size;
+    }
+
+    // Add the given value to this RadixTree under the given key,
+    // replacing the value if the key is already present
+    public RadixTree<K,V> add(K key, V value) {
+        Ins<V> ins = new Ins<V>();
+        Leaf<K,V> leaf = new Leaf<K,V>(this.keys.bytes(key), key, value);
+        Node<K,V> result = RadixTree.add(this.root, 0, leaf, ins);
+        // The key was already there with the very same value
+        if (ins.old == value) {
+            return this;
+        }
+        int hash = this.hash + this.pairHash(key, value);
+        if (ins.old == Ins.NOT_FOUND) {
+            return this.derive(new RadixTree<K,V>(this.keys, result, this.size + 1, hash), key);
+        }
+        return this.derive(new RadixTree<K,V>(this.keys, result, this.size,
+                                              hash - this.pairHash(key, ins.old)), key);
+    }
+
+    // Add the given leaf below the given node, whose keys have d bytes
+    // in common with the key of the leaf, and set ins.old to the value
+    // replaced. Copies the nodes on the path, splitting the leaf or the
+    // prefix where the key leaves them
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Node<K,V> add(Node<K,V> f, int d, Leaf<K,V> leaf, Ins<V> ins) {
+        byte[] key = leaf.bytes;
+        if (f == null) {
+            return leaf;
+        }
+        if (f instanceof Leaf<?,?>) {
+            Leaf<K,V> l = (Leaf<K,V>) f;
+            int e = d + RadixTree.common(l.bytes, d, key, d,
+                                         Math.min(l.bytes.length, key.length) - d);
+            if (e == l.bytes.length && e == key.length) {
+                ins.old = l.value;
+                return leaf;
+            }
+            byte[] prefix = Arrays.copyOfRange(key, d, e);
+            if (e == l.bytes.length) {
+                return RadixTree.fork(prefix, key[e] & 0xFF, leaf, e, l);
+            }
+            return RadixTree.fork(prefix, l.bytes[e] & 0xFF, l, e, leaf);
+        }
+        Inner<K,V> in = (Inner<K,V>) f;
+        int p = in.prefix.length;
+        int m = RadixTree.common(in.prefix, 0, key, d, Math.min(p, key.length - d));
+        if (m < p) {
+            // The key leaves the prefix after m bytes: the node goes below
+            // a new one with the first m bytes as its prefix
+            Inner<K,V> lower = in.copy(Arrays.copyOfRange(in.prefix, m + 1, p), in.end);
+            return RadixTree.fork(Arrays.copyOf(in.prefix, m), in.prefix[m] & 0xFF,
+                                  lower, d + m, leaf);
+        }
+        int e = d + p;
+        if (e == key.length) {
+            if (in.end != null) {
+                ins.old = in.end.value;
+            }
+            return in.copy(in.prefix, leaf);
+        }
+        int b = key[e] & 0xFF;
+        Node<K,V> child = in.child(b);
+        return in.with(b, RadixTree.add(child, e + 1, leaf, ins));
+    }
+
+    // Remove the given key from this RadixTree, or return this RadixTree
+    // if it does not contain the key
+    public RadixTree<K,V> remove(K key) {
+        Ins<V> ins = new Ins<V>();
+        Node<K,V> result = RadixTree.remove(this.root, 0, this.keys.bytes(key), ins);
+        if (result == this.root) {
+            return this;
+        }
+        return this.derive(new RadixTree<K,V>(this.keys, result, this.size - 1,
+                                              this.hash - this.pairHash(key, ins.old)), key);
+    }
+
+    // Remove the given key from below the given node, whose keys have d
+    // bytes in common with it, and set ins.old to its value. Return the
+    // node if the key is not there, and null if nothing is left
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Node<K,V> remove(Node<K,V> f, int d, byte[] key, Ins<V> ins) {
+        if (f == null) {
+            return f;
+        }
+        if (f instanceof Leaf<?,?>) {
+            Leaf<K,V> l = (Leaf<K,V>) f;
+            if (!Arrays.equals(l.bytes, d, l.bytes.length, key, d, key.length)) {
+                return f;
+            }
+            ins.old = l.value;
+            return null;
+        }
+        Inner<K,V> in = (Inner<K,V>) f;
+        int p = in.prefix.length;
+        if (key.length - d < p || RadixTree.common(in.prefix, 0, key, d, p) < p) {
+            return f;
+        }
+        int e = d + p;
+        if (e == key.length) {
+            if (in.end == null) {
+                return f;
+            }
+            ins.old = in.end.value;
+            return RadixTree.collapse(in.copy(in.prefix, null));
+        }
+        int b = key[e] & 0xFF;
+        Node<K,V> child = in.child(b);
+        Node<K,V> result = RadixTree.remove(child, e + 1, key, ins);
+        if (result == child) {
+            return f;
+        } else if (result == null) {
+            return RadixTree.collapse(in.with(b, null));
+        }
+        return in.with(b, result);
+    }
+
+    // The node that takes the place of an inner node left with fewer
+    // than two leaves below it: its end if it has no children, or its
+    // one child with the prefix of the node and the byte of the child
+    // put in front of the prefix of the child
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Node<K,V> collapse(Inner<K,V> in) {
+        if (in.n == 0) {
+            return in.end;
+        } else if (in.n > 1 || in.end != null) {
+            return in;
+        }
+        int b = in.next(0);
+        Node<K,V> child = in.child(b);
+        if (child instanceof Leaf<?,?>) {
+            return child;
+        }
+        Inner<K,V> c = (Inner<K,V>) child;
+        return c.copy(RadixTree.concat(in.prefix, b, c.prefix), c.end);
+    }
+
+    // Find the leaf of the given key, or return null. Reads every byte
+    // of the key once
+    @SuppressWarnings(value="unchecked")
+    private Leaf<K,V> find(K k) {
+        byte[] key = this.keys.bytes(k);
+        Node<K,V> f = this.root;
+        int d = 0;
+        while (f instanceof Inner<?,?>) {
+            Inner<K,V> in = (Inner<K,V>) f;
+            int p = in.prefix.length;
+            if (key.length - d < p || RadixTree.common(in.prefix, 0, key, d, p) < p) {
+                return null;
+            }
+            d += p;
+            if (d == key.length) {
+                return in.end;
+            }
+            f = in.child(key[d] & 0xFF);
+            d++;
+        }
+        if (f == null) {
+            return null;
+        }
+        Leaf<K,V> l = (Leaf<K,V>) f;
+        return Arrays.equals(l.bytes, d, l.bytes.length, key, d, key.length) ? l : null;
+    }
+
+    // Determine if this RadixTree contains the given key
+    public boolean containsKey(K key) {
+        return this.find(key) != null;
+    }
+
+    // Get the value at the given key, throw an exception if this
+    // RadixTree does not contain the key
+    public V get(K key) {
+        Leaf<K,V> result = this.find(key);
+        if (result == null) {
+            throw new RuntimeException
+                ("This FMap does not contain the specified key");
+        }
+        return result.value;
+    }
+
+    // Return an iterator over the keys of this RadixTree that start with
+    // the given prefix, in ascending order. Finds them in O(length of
+    // the prefix) and walks them without looking at any other key
+    @SuppressWarnings(value="unchecked")
+    public Iterator<K> prefixIterator(K prefix) {
+        byte[] key = this.keys.bytes(prefix);
+        Node<K,V> f = this.root;
+        int d = 0;
+        while (f instanceof Inner<?,?> && d < key.length) {
+            Inner<K,V> in = (Inner<K,V>) f;
+            int p = in.prefix.length;
+            int m = Math.min(p, key.length - d);
+            if (RadixTree.common(in.prefix, 0, key, d, m) < m) {
+                return new LeafIterator<K,V>(null);
+            }
+            if (d + p >= key.length) {
+                // The prefix ends within the prefix of the node
+                break;
+            }
+            d += p;
+            f = in.child(key[d] & 0xFF);
+            d++;
+        }
+        if (f instanceof Leaf<?,?>) {
+            Leaf<K,V> l = (Leaf<K,V>) f;
+            if (l.bytes.length < key.length ||
+                !Arrays.equals(l.bytes, d, key.length, key, d, key.length)) {
+                return new LeafIterator<K,V>(null);
+            }
+        }
+        return new LeafIterator<K,V>(f);
+    }
+
+    // Return the entry of the longest key of this RadixTree that is a
+    // prefix of the given key (the key itself if it is there), or null
+    // if there is none. Reads the bytes of the key once
+    @SuppressWarnings(value="unchecked")
+    public Map.Entry<K,V> longestPrefixMatch(K k) {
+        byte[] key = this.keys.bytes(k);
+        Leaf<K,V> best = null;
+        Node<K,V> f = this.root;
+        int d = 0;
+        while (f instanceof Inner<?,?>) {
+            Inner<K,V> in = (Inner<K,V>) f;
+            int p = in.prefix.length;
+            if (key.length - d < p || RadixTree.common(in.prefix, 0, key, d, p) < p) {
+                f = null;
+                break;
+            }
+            d += p;
+            if (in.end != null) {
+                best = in.end;
+            }
+            if (d == key.length) {
+                f = null;
+                break;
+            }
+            f = in.child(key[d] & 0xFF);
+            d++;
+        }
+        if (f != null) {
+            Leaf<K,V> l = (Leaf<K,V>) f;
+            if (l.bytes.length <= key.length &&
+                Arrays.equals(l.bytes, d, l.bytes.length, key, d, l.bytes.length)) {
+                best = l;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        return new AbstractMap.SimpleImmutableEntry<K,V>(best.key, best.value);
+    }
+
+    // Compute a string representation of this RadixTree
+    public String toString() {
+        return "{...(" + this.size() + " entries)...}";
+    }
+
+    // The hash code of a RadixTree is kept at the top
+    public int hashCode() {
+        return this.hash;
+    }
+
+    // Determine if this RadixTree equals the given object
+    @SuppressWarnings(value = "unchecked")
+    public boolean equals(Object x) {
+        // If x is not a FMap they are not equal
+        if (!(x instanceof FMap<?,?>)) {
+            return false;
+        }
+        FMap<K,V> f2 = (FMap<K,V>) x;
+        if (this == f2) {
+            return true;
+        }
+        // FMaps of different sizes or hash codes are not equal
+        if (this.size != f2.size() || this.hash != f2.hashCode()) {
+            return false;
+        }
+
+        // Another RadixTree of the same kind of keys is walked alongside
+        // this one, comparing the bytes of the keys
+        if (f2 instanceof RadixTree<?,?> && ((RadixTree<K,V>) f2).keys == this.keys) {
+            LeafIterator<K,V> it2 = new LeafIterator<K,V>(((RadixTree<K,V>) f2).root);
+            for (LeafIterator<K,V> it = new LeafIterator<K,V>(this.root); it.hasNext();) {
+                it.next();
+                it2.next();
+                if (!Arrays.equals(it.last.bytes, it2.last.bytes) ||
+                    !Objects.equals(it.value(), it2.value())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Both FMaps have the same number of keys, so if every key of this
+        // one is in f2 with the same value the two have the same keys
+        return this.containsAllKeys(f2) && this.allKeysSame(f2);
+    }
+
+    // Determine if all the keys in this RadixTree are contained in the
+    // given FMap
+    boolean containsAllKeys(FMap<K,V> f2) {
+        for (K key : this) {
+            if (!f2.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Determine if every value at the keys of this RadixTree is the same
+    // as the value of the given FMap at the same key
+    boolean allKeysSame(FMap<K,V> f2) {
+        for (LeafIterator<K,V> it = new LeafIterator<K,V>(this.root); it.hasNext();) {
+            K key = it.next();
+            if (!Objects.equals(it.value(), f2.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Get all the keys from this RadixTree
+    Set<K> getKeys() {
+        Set<K> keys = new HashSet<K>();
+        for (K key : this) {
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    // Return an iterator that walks the keys of this RadixTree in
+    // lexicographic order
+    public Iterator<K> iterator() {
+        return new LeafIterator<K,V>(this.root);
+    }
+
+    // Return an iterator over the keys of this RadixTree sorted by the
+    // given comparator
+    public Iterator<K> iterator(Comparator<? super K> c) {
+        // The tree is already in lexicographic order and, walked from
+        // its last leaf, in the reverse of it
+        if (this.keys.isOrder(c)) {
+            return new LeafIterator<K,V>(this.root);
+        }
+        if (this.keys.isOrder(Collections.reverseOrder(c))) {
+            return new LeafIterator<K,V>(this.root, true);
+        }
+        return this.sortedIterator(c);
+    }
+
+    // Get the Orderings of this RadixTree, or null
+    Orderings<K> getOrderings() {
+        return this.orderings;
+    }
+
+    // Keep the given Orderings for this RadixTree
+    void setOrderings(Orderings<K> o) {
+        this.orderings = o;
+    }
+
+    // Accept the given visitor and visit each key / value
+    // pair in this FMap and return an FMap with these new values
+    // The result has the same shape as this tree
+    public RadixTree<K,V> accept(Visitor<K,V> vis) {
+        if (this.root == null) {
+            return this;
+        }
+        Node<K,V> result = RadixTree.accept(this.root, vis);
+        int hash = 0;
+        for (LeafIterator<K,V> it = new LeafIterator<K,V>(result); it.hasNext();) {
+            K key = it.next();
+            hash += this.pairHash(key, it.value());
+        }
+        return new RadixTree<K,V>(this.keys, result, this.size, hash);
+    }
+
+    // Visit every key / value pair below the given node and return a
+    // node of the same shape with the new values
+    @SuppressWarnings(value="unchecked")
+    private static <K,V> Node<K,V> accept(Node<K,V> f, Visitor<K,V> vis) {
+        if (f instanceof Leaf<?,?>) {
+            Leaf<K,V> l = (Leaf<K,V>) f;
+            return new Leaf<K,V>(l.bytes, l.key, vis.visit(l.key, l.value));
+        }
+        Inner<K,V> in = (Inner<K,V>) f;
+        int[] bs = new int[in.n];
+        Node<K,V>[] cs = (Node<K,V>[]) new Node<?,?>[in.n];
+        int m = 0;
+        for (int b = in.next(0); b < 256; b = in.next(b + 1)) {
+            bs[m] = b;
+            cs[m++] = RadixTree.accept(in.child(b), vis);
+        }
+        Leaf<K,V> end = (in.end == null) ? null : (Leaf<K,V>) RadixTree.accept(in.end, vis);
+        return RadixTree.make(in.prefix, end, bs, cs, m);
+    }
+
+    // Return a Spliterator over the key / value pairs of this RadixTree
+    // in lexicographic order that reads the values from the leaves
+    Spliterator<Map.Entry<K,V>> entrySpliterator() {
+        final LeafIterator<K,V> keys = new LeafIterator<K,V>(this.root);
+        Iterator<Map.Entry<K,V>> entries = new Iterator<Map.Entry<K,V>>() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public Map.Entry<K,V> next() {
+                K key = keys.next();
+                return new AbstractMap.SimpleImmutableEntry<K,V>(key, keys.value());
+            }
+        };
+        return Spliterators.spliterator(entries, this.size,
+                                        Spliterator.IMMUTABLE | Spliterator.ORDERED);
+    }
+
+    /* A kind of keys: how a key is turned into bytes and hashed, and the
+       order of the keys, which is that of their bytes */
+    private abstract static class Keys implements Comparator<Object> {
+        // The bytes of the given key
+        abstract byte[] bytes(Object key);
+
+        // The hash code of the given key
+        abstract int hash(Object key);
+
+        // Determine if the given comparator sorts the keys as their bytes do
+        abstract boolean isOrder(Comparator<?> c);
+    }
+
+    // What an add or remove below a node reports to the node above it:
+    // the value the key had
+    private static final class Ins<V> {
+        // Stands for no value where an add finds the key absent
+        static final Object NOT_FOUND = new Object();
+        Object old = NOT_FOUND;
+    }
+
+    // A node of a RadixTree
+    abstract static class Node<K,V> {
+    }
+
+    // A node holding a key, its bytes and its value
+    static final class Leaf<K,V> extends Node<K,V> {
+        final byte[] bytes;
+        final K key;
+        final V value;
+        Leaf(byte[] bytes, K key, V value) {
+            this.bytes = bytes;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // A node over other nodes, by the byte that comes after its prefix
+    abstract static class Inner<K,V> extends Node<K,V> {
+        // The bytes every key below this node has after the path to it
+        final byte[] prefix;
+        // The leaf of the key that ends after the prefix, or null
+        final Leaf<K,V> end;
+        // The number of children
+        final int n;
+        Inner(byte[] prefix, Leaf<K,V> end, int n) {
+            this.prefix = prefix;
+            this.end = end;
+            this.n = n;
+        }
+
+        // The child under the given byte, or null
+        abstract Node<K,V> child(int b);
+
+        // The least byte from the given one up that has a child, or 256
+        abstract int next(int b);
+
+        // The greatest byte below the given one that has a child, or -1
+        abstract int prev(int b);
+
+        // A node of the same children with the given prefix and end
+        abstract Inner<K,V> copy(byte[] prefix, Leaf<K,V> end);
+
+        // A copy of this node with the given child under the given byte
+        // in place of the one there, if any, or without the child if it
+        // is null. The copy is of the kind that fits its children
+        abstract Inner<K,V> with(int b, Node<K,V> child);
+
+        // A copy of this node of the kind that fits its children once the
+        // given child is under the given byte, or no child if it is null
+        @SuppressWarnings(value="unchecked")
+        final Inner<K,V> rebuild(int b, Node<K,V> child) {
+            int[] bs = new int[this.n + 1];
+            Node<K,V>[] cs = (Node<K,V>[]) new Node<?,?>[this.n + 1];
+            int m = 0;
+            boolean placed = false;
+            for (int x = this.next(0); x < 256; x = this.next(x + 1)) {
+                if (!placed && b <= x) {
+                    placed = true;
+                    if (child != null) {
+                        bs[m] = b;
+                        cs[m++] = child;
+                    }
+                    if (b == x) {
+                        continue;
+                    }
+                }
+                bs[m] = x;
+                cs[m++] = this.child(x);
+            }
+            if (!placed && child != null) {
+                bs[m] = b;
+                cs[m++] = child;
+            }
+            return RadixTree.make(this.prefix, this.end, bs, cs, m);
+        }
+    }
+
+    // An inner node of up to 4 or up to 16 children, their bytes in
+    // ascending order in an array as long as the children's
+    static final class Sorted<K,V> extends Inner<K,V> {
+        // The bytes of the children
+        final byte[] bytes;
+        final Node<K,V>[] children;
+        Sorted(byte[] prefix, Leaf<K,V> end, int n, byte[] bytes, Node<K,V>[] children) {
+            super(prefix, end, n);
+            this.bytes = bytes;
+            this.children = children;
+        }
+
+        Node<K,V> child(int b) {
+            for (int i = 0; i < this.n; i++) {
+                int x = this.bytes[i] & 0xFF;
+                if (x >= b) {
+                    return (x == b) ? this.children[i] : null;
+                }
+            }
+            return null;
+        }
+
+        int next(int b) {
+            for (int i = 0; i < this.n; i++) {
+                int x = this.bytes[i] & 0xFF;
+                if (x >= b) {
+                    return x;
+                }
+            }
+            return 256;
+        }
+
+        int prev(int b) {
+            for (int i = this.n - 1; i >= 0; i--) {
+                int x = this.bytes[i] & 0xFF;
+                if (x < b) {
+                    return x;
+                }
+            }
+            return -1;
+        }
+
+        Inner<K,V> copy(byte[] prefix, Leaf<K,V> end) {
+            return new Sorted<K,V>(prefix, end, this.n, this.bytes, this.children);
+        }
+
+        // Replacing a child copies only the children
+        Inner<K,V> with(int b, Node<K,V> child) {
+            for (int i = 0; child != null && i < this.n; i++) {
+                if ((this.bytes[i] & 0xFF) == b) {
+                    Node<K,V>[] children = this.children.clone();
+                    children[i] = child;
+                    return new Sorted<K,V>(this.prefix, this.end, this.n, this.bytes, children);
+                }
+            }
+            return this.rebuild(b, child);
+        }
+    }
+
+    // An inner node of 17 to 48 children in the order they came, found
+    // through an index of one more than the slot of the child under
+    // every byte, or 0
+    static final class Indexed<K,V> extends Inner<K,V> {
+        final byte[] index;
+        final Node<K,V>[] children;
+        Indexed(byte[] prefix, Leaf<K,V> end, int n, byte[] index, Node<K,V>[] children) {
+            super(prefix, end, n);
+            this.index = index;
+            this.children = children;
+        }
+
+        Node<K,V> child(int b) {
+            int slot = this.index[b];
+            return (slot == 0) ? null : this.children[slot - 1];
+        }
+
+        int next(int b) {
+            for (; b < 256; b++) {
+                if (this.index[b] != 0) {
+                    return b;
+                }
+            }
+            return 256;
+        }
+
+        int prev(int b) {
+            while (--b >= 0) {
+                if (this.index[b] != 0) {
+                    return b;
+                }
+            }
+            return -1;
+        }
+
+        Inner<K,V> copy(byte[] prefix, Leaf<K,V> end) {
+            return new Indexed<K,V>(prefix, end, this.n, this.index, this.children);
+        }
+
+        // Replacing a child shares the index. Adding or removing one in
+        // a node that stays an Indexed node takes the first free slot or
+        // frees one
+        Inner<K,V> with(int b, Node<K,V> child) {
+            int slot = this.index[b];
+            if (slot != 0 && child != null) {
+                Node<K,V>[] children = this.children.clone();
+                children[slot - 1] = child;
+                return new Indexed<K,V>(this.prefix, this.end, this.n, this.index, children);
+            }
+            int n = (child == null) ? this.n - 1 : this.n + 1;
+            if (n <= 16 || n > 48) {
+                return this.rebuild(b, child);
+            }
+            byte[] index = this.index.clone();
+            Node<K,V>[] children = this.children.clone();
+            if (child == null) {
+                children[slot - 1] = null;
+                index[b] = 0;
+            } else {
+                slot = 0;
+                while (children[slot] != null) {
+                    slot++;
+                }
+                children[slot] = child;
+                index[b] = (byte) (slot + 1);
+            }
+            return new Indexed<K,V>(this.prefix, this.end, n, index, children);
+        }
+    }
+
+    // An inner node of 49 to 256 children, each under its byte
+    static final class Direct<K,V> extends Inner<K,V> {
+        final Node<K,V>[] children;
+        Direct(byte[] prefix, Leaf<K,V> end, int n, Node<K,V>[] children) {
+            super(prefix, end, n);
+            this.children = children;
+        }
+
+        Node<K,V> child(int b) {
+            return this.children[b];
+        }
+
+        int next(int b) {
+            for (; b < 256; b++) {
+                if (this.children[b] != null) {
+                    return b;
+                }
+            }
+            return 256;
+        }
+
+        int prev(int b) {
+            while (--b >= 0) {
+                if (this.children[b] != null) {
+                    return b;
+                }
+            }
+            return -1;
+        }
+
+        Inner<K,V> copy(byte[] prefix, Leaf<K,V> end) {
+            return new Direct<K,V>(prefix, end, this.n, this.children);
+        }
+
+        Inner<K,V> with(int b, Node<K,V> child) {
+            int n = this.n + ((child == null) ? -1 : 0) + ((this.children[b] == null) ? 1 : 0);
+            if (n <= 48) {
+                return this.rebuild(b, child);
+            }
+            Node<K,V>[] children = this.children.clone();
+            children[b] = child;
+            return new Direct<K,V>(this.prefix, this.end, n, children);
+        }
+    }
+
+    // An Iterator<K> that walks the leaves below a node in lexicographic
+    // order, keeping the inner nodes on the path to the current leaf and
+    // the byte to go on from in each
+    private static final class LeafIterator<K,V> implements Iterator<K> {
+        // True iff the leaves are walked in descending order
+        private final boolean descending;
+        // The inner nodes on the path, and in each the byte of the next
+        // child to look at, or -1 if its end is still to come. Walking
+        // in descending order it is the byte above the next child, and
+        // the end comes after the children
+        @SuppressWarnings(value="unchecked")
+        private Inner<K,V>[] path = (Inner<K,V>[]) new Inner<?,?>[8];
+        private int[] bytes = new int[8];
+        // The number of inner nodes on the path
+        private int top;
+        // The leaf next returns next, or null at the end
+        private Leaf<K,V> next;
+        // The leaf next returned last
+        Leaf<K,V> last;
+        LeafIterator(Node<K,V> f) {
+            this(f, false);
+        }
+
+        @SuppressWarnings(value="unchecked")
+        LeafIterator(Node<K,V> f, boolean descending) {
+            this.descending = descending;
+            if (f instanceof Leaf<?,?>) {
+                this.next = (Leaf<K,V>) f;
+            } else if (f != null) {
+                this.push((Inner<K,V>) f);
+                this.advance();
+            }
+        }
+
+        // Put the given inner node on the path, before its end
+        private void push(Inner<K,V> in) {
+            if (this.top == this.path.length) {
+                this.path = Arrays.copyOf(this.path, 2 * this.top);
+                this.bytes = Arrays.copyOf(this.bytes, 2 * this.top);
+            }
+            this.path[this.top] = in;
+            this.bytes[this.top] = this.descending ? 256 : -1;
+            this.top++;
+        }
+
+        // Find the leaf after the ones returned, going down into the
+        // next child and back up out of nodes whose children are all done
+        @SuppressWarnings(value="unchecked")
+        private void advance() {
+            this.next = null;
+            if (this.descending) {
+                this.retreat();
+                return;
+            }
+            while (this.top > 0) {
+                Inner<K,V> in = this.path[this.top - 1];
+                int from = this.bytes[this.top - 1];
+                if (from == -1) {
+                    this.bytes[this.top - 1] = 0;
+                    if (in.end != null) {
+                        this.next = in.end;
+                        return;
+                    }
+                    from = 0;
+                }
+                int b = in.next(from);
+                if (b == 256) {
+                    this.path[--this.top] = null;
+                    continue;
+                }
+                this.bytes[this.top - 1] = b + 1;
+                Node<K,V> child = in.child(b);
+                if (child instanceof Leaf<?,?>) {
+                    this.next = (Leaf<K,V>) child;
+                    return;
+                }
+                this.push((Inner<K,V>) child);
+            }
+        }
+
+        // Find the leaf before the ones returned, going down into the
+        // child below the last one and back up out of nodes whose children
+        // are all done, through their ends
+        @SuppressWarnings(value="unchecked")
+        private void retreat() {
+            while (this.top > 0) {
+                Inner<K,V> in = this.path[this.top - 1];
+                int b = in.prev(this.bytes[this.top - 1]);
+                if (b == -1) {
+                    this.path[--this.top] = null;
+                    if (in.end != null) {
+                        this.next = in.end;
+                        return;
+                    }
+                    continue;
+                }
+                this.bytes[this.top - 1] = b;
+                Node<K,V> child = in.child(b);
+                if (child instanceof Leaf<?,?>) {
+                    this.next = (Leaf<K,V>) child;
+                    return;
+                }
+                this.push((Inner<K,V>) child);
+            }
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public K next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next;
+            this.advance();
+            return this.last.key;
+        }
+
+        // The value of the key next returned last
+        V value() {
+            return this.last.value;
+        }
+
+        // Remove is not supported
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
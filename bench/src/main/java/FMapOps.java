@@ -0,0 +1,152 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+import fmap.bench.MapOps;
+
+// The FMap operations for the benchmarks, in the unnamed package with the
+// FMaps. A new implementation only needs a case in empty
+
+public class FMapOps implements MapOps {
+
+    // The order of the FTree keys and its reverse
+    private static final Comparator<Long> ORDER = Comparator.naturalOrder();
+    private static final Comparator<Long> DESCENDING = Collections.reverseOrder(ORDER);
+
+    // Add one to every value
+    private static final Visitor<Long,Long> INCREMENT = new Visitor<Long,Long>() {
+        public Long visit(Long k, Long v) {
+            return v + 1;
+        }
+    };
+
+    // Add one to a value, or start at 0
+    private static final BiFunction<Long,Long,Long> PLUS_ONE = new BiFunction<Long,Long,Long>() {
+        public Long apply(Long k, Long v) {
+            return (v == null) ? 0L : v + 1;
+        }
+    };
+
+    // Cast the given map
+    @SuppressWarnings(value="unchecked")
+    private static FMap<Long,Long> fmap(Object map) {
+        return (FMap<Long,Long>) map;
+    }
+
+    public Object empty(String impl) {
+        switch (impl) {
+        case "AssocList":
+            return AssocList.<Long,Long>empty();
+        case "HashTrie":
+            return FMap.<Long,Long>emptyMap();
+        case "FTree":
+            return FMap.<Long,Long>emptyMap(ORDER);
+        case "BTree":
+            return FMap.<Long,Long>emptyBTree(ORDER);
+        case "LongFMap":
+            return LongFMap.<Long>empty().asFMap();
+        default:
+            throw new IllegalArgumentException("No FMap implementation named " + impl);
+        }
+    }
+
+    public Object add(Object map, Long key, Long value) {
+        return fmap(map).add(key, value);
+    }
+
+    public Object remove(Object map, Long key) {
+        return fmap(map).remove(key);
+    }
+
+    public boolean containsKey(Object map, Long key) {
+        return fmap(map).containsKey(key);
+    }
+
+    public Object get(Object map, Long key) {
+        return fmap(map).get(key);
+    }
+
+    public int size(Object map) {
+        return fmap(map).size();
+    }
+
+    public long iterate(Object map) {
+        long sum = 0;
+        for (Long key : fmap(map)) {
+            sum += key;
+        }
+        return sum;
+    }
+
+    public long iterateDescending(Object map) {
+        long sum = 0;
+        for (Iterator<Long> it = fmap(map).iterator(DESCENDING); it.hasNext();) {
+            sum += it.next();
+        }
+        return sum;
+    }
+
+    public Object accept(Object map) {
+        return fmap(map).accept(INCREMENT);
+    }
+
+    @SuppressWarnings(value="unchecked")
+    public Object addAll(Object map, Long[] keys, String how) {
+        switch (how) {
+        case "add":
+            FMap<Long,Long> m = fmap(map);
+            for (Long key : keys) {
+                m = m.add(key, key);
+            }
+            return m;
+        case "Builder":
+            Builder<Long,Long> builder = fmap(map).transientCopy();
+            for (Long key : keys) {
+                builder.add(key, key);
+            }
+            return builder.persistent();
+        case "Appender":
+            if (!(map instanceof FTree)) {
+                throw new IllegalArgumentException("Only an FTree has an Appender");
+            }
+            FTree.Appender<Long,Long> appender = ((FTree<Long,Long>) map).appender();
+            for (Long key : keys) {
+                appender.add(key, key);
+            }
+            return appender.tree();
+        default:
+            throw new IllegalArgumentException("No way to add named " + how);
+        }
+    }
+
+    public Object share(Object map, boolean cas) {
+        if (cas) {
+            return new AtomicReference<FMap<Long,Long>>(fmap(map));
+        }
+        return new FMapRef<Long,Long>(fmap(map));
+    }
+
+    @SuppressWarnings(value="unchecked")
+    public Object increment(Object shared, Long key) {
+        if (shared instanceof FMapRef) {
+            return ((FMapRef<Long,Long>) shared).compute(key, PLUS_ONE);
+        }
+        // The compare and set loop the FMapRef replaces
+        AtomicReference<FMap<Long,Long>> ref = (AtomicReference<FMap<Long,Long>>) shared;
+        while (true) {
+            FMap<Long,Long> m = ref.get();
+            Long value = PLUS_ONE.apply(key, m.containsKey(key) ? m.get(key) : null);
+            if (ref.compareAndSet(m, m.add(key, value))) {
+                return value;
+            }
+        }
+    }
+
+    @SuppressWarnings(value="unchecked")
+    public boolean sharedContainsKey(Object shared, Long key) {
+        if (shared instanceof FMapRef) {
+            return ((FMapRef<Long,Long>) shared).get().containsKey(key);
+        }
+        return ((AtomicReference<FMap<Long,Long>>) shared).get().containsKey(key);
+    }
+}
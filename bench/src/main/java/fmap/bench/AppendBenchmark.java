@@ -0,0 +1,53 @@
+package fmap.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Appending an ascending stream of keys after the end of an FTree, as
+   with log records or time series: one add per key, a Builder editing
+   in place, or an Appender, which puts each key on a spine of perfect
+   trees in O(1) amortized time. Every invocation appends the same batch
+   to the same base map, so the time is per batch, not per key */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class AppendBenchmark {
+
+    // How the keys are added, by the name FMapOps.addAll knows it by
+    @Param({"add", "Builder", "Appender"})
+    public String how;
+
+    // The number of keys in the map appended to
+    @Param({"0", "1000000"})
+    public int base;
+
+    // The number of keys appended
+    @Param({"100", "10000"})
+    public int batch;
+
+    // The FMap operations
+    private MapOps ops;
+    // The map appended to
+    private Object map;
+    // The keys appended, all greater than the keys of the map
+    private Long[] keys;
+
+    // Build the base map and the batch that follows it
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.ops = (MapOps) Class.forName("FMapOps").getDeclaredConstructor().newInstance();
+        this.map = this.ops.addAll(this.ops.empty("FTree"),
+                                   Distribution.SEQUENTIAL.keys(0, this.base), "Appender");
+        this.keys = Distribution.SEQUENTIAL.keys(this.base, this.batch);
+    }
+
+    // Append the batch to the base map
+    @Benchmark
+    public Object append() {
+        return this.ops.addAll(this.map, this.keys, this.how);
+    }
+}
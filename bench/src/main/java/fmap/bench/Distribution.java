@@ -0,0 +1,73 @@
+package fmap.bench;
+
+import java.util.SplittableRandom;
+
+/* The keys a benchmark map is built from and the order they are looked
+   up in. All keys are distinct: the i-th key is a function of i alone,
+   so no set is needed to weed out duplicates even for 10^7 keys */
+
+public enum Distribution {
+
+    // Keys spread over all longs, added and looked up in random order
+    RANDOM {
+        long key(int i) {
+            return Distribution.mix(i);
+        }
+    },
+
+    // The keys 0, 1, 2, ... added in ascending order and looked up
+    // in random order
+    SEQUENTIAL {
+        long key(int i) {
+            return i;
+        }
+    },
+
+    // Keys spread over all longs, but looked up with a power law: the
+    // key added k-th is looked up with probability proportional to 1/k,
+    // so a few hot keys take most of the lookups
+    SKEWED {
+        long key(int i) {
+            return Distribution.mix(i);
+        }
+
+        int lookup(SplittableRandom random, int n) {
+            return (int) Math.min(n - 1, Math.floor(Math.pow(n, random.nextDouble())) - 1);
+        }
+    };
+
+    // The i-th key
+    abstract long key(int i);
+
+    // The index of a key to look up among n keys
+    int lookup(SplittableRandom random, int n) {
+        return random.nextInt(n);
+    }
+
+    // The first n keys, in the order they are added
+    Long[] keys(int from, int n) {
+        Long[] keys = new Long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = this.key(from + i);
+        }
+        return keys;
+    }
+
+    // A sequence of the given length of indices of keys to look up
+    int[] lookups(int length, int n, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] lookups = new int[length];
+        for (int i = 0; i < length; i++) {
+            lookups[i] = this.lookup(random, n);
+        }
+        return lookups;
+    }
+
+    // The SplitMix64 finalizer, a bijection on longs, so distinct
+    // indices give distinct keys
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,171 @@
+package fmap.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Benchmarks of every FMap operation the README sets a time bound for,
+   over every implementation, map size and key distribution.
+   Each trial builds one map of size keys (and an equal copy built in the
+   opposite order, for equals); the single key operations cycle through
+   a fixed sequence of lookups so every invocation does the same work.
+   Combinations that cannot finish in reasonable time, such as the
+   O(n) lookups of an AssocList of 10^7 keys, are refused in setUp; JMH
+   reports them as failed and goes on with the rest. Use -p to pick
+   combinations, e.g. -p impl=FTree -p size=1000000 */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class FMapBenchmark {
+
+    // The number of lookups in the sequence, a power of two
+    private static final int LOOKUPS = 1 << 16;
+
+    // The implementation, by the name FMapOps.empty knows it by
+    @Param({"AssocList", "HashTrie", "FTree", "BTree", "LongFMap"})
+    public String impl;
+
+    // The number of keys in the map
+    @Param({"10", "1000", "100000", "10000000"})
+    public int size;
+
+    // How the keys are chosen and looked up
+    @Param({"RANDOM", "SEQUENTIAL", "SKEWED"})
+    public Distribution keys;
+
+    // The FMap operations
+    private MapOps ops;
+    // The keys in the map, in the order they were added
+    private Long[] present;
+    // Keys not in the map
+    private Long[] absent;
+    // The indices of the keys to look up
+    private int[] lookups;
+    // The position in the lookups
+    private int next;
+    // The map and an equal copy built in the opposite order
+    private Object map;
+    private Object copy;
+
+    // Build the map and its copy
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (this.impl.equals("AssocList") && this.size > 100000) {
+            throw new IllegalStateException
+                ("AssocList takes O(n) per lookup; " + this.size + " keys would take hours");
+        }
+        this.ops = (MapOps) Class.forName("FMapOps").getDeclaredConstructor().newInstance();
+        this.present = this.keys.keys(0, this.size);
+        this.absent = this.keys.keys(this.size, Math.min(this.size, LOOKUPS));
+        this.lookups = this.keys.lookups(LOOKUPS, this.size, 42);
+        this.map = this.build();
+        Object copy = this.ops.empty(this.impl);
+        for (int i = this.size - 1; i >= 0; i--) {
+            copy = this.ops.add(copy, this.present[i], this.present[i]);
+        }
+        this.copy = copy;
+    }
+
+    // The next key of the map to look up
+    private Long presentKey() {
+        return this.present[this.lookups[this.next++ & (LOOKUPS - 1)]];
+    }
+
+    // The next key not in the map
+    private Long absentKey() {
+        return this.absent[this.next++ % this.absent.length];
+    }
+
+    // Build the map from its keys
+    @Benchmark
+    public Object build() {
+        Object map = this.ops.empty(this.impl);
+        for (Long key : this.present) {
+            map = this.ops.add(map, key, key);
+        }
+        return map;
+    }
+
+    // Add a key that is not in the map
+    @Benchmark
+    public Object add() {
+        Long key = this.absentKey();
+        return this.ops.add(this.map, key, key);
+    }
+
+    // Add a key that is in the map, replacing its value
+    @Benchmark
+    public Object addExisting() {
+        return this.ops.add(this.map, this.presentKey(), 0L);
+    }
+
+    // Remove a key that is in the map
+    @Benchmark
+    public Object remove() {
+        return this.ops.remove(this.map, this.presentKey());
+    }
+
+    // Look up a key that is in the map
+    @Benchmark
+    public boolean containsKey() {
+        return this.ops.containsKey(this.map, this.presentKey());
+    }
+
+    // Look up a key that is not in the map
+    @Benchmark
+    public boolean containsKeyMissing() {
+        return this.ops.containsKey(this.map, this.absentKey());
+    }
+
+    // Get the value of a key that is in the map
+    @Benchmark
+    public Object get() {
+        return this.ops.get(this.map, this.presentKey());
+    }
+
+    // Determine the size of the map
+    @Benchmark
+    public int size() {
+        return this.ops.size(this.map);
+    }
+
+    // Walk the keys in the order of the map
+    @Benchmark
+    public long iterate() {
+        return this.ops.iterate(this.map);
+    }
+
+    // Walk the keys sorted in descending order
+    @Benchmark
+    public long iterateDescending() {
+        return this.ops.iterateDescending(this.map);
+    }
+
+    // Visit every pair
+    @Benchmark
+    public Object accept() {
+        return this.ops.accept(this.map);
+    }
+
+    // The hash code of the map, which may be kept from an earlier call
+    @Benchmark
+    public int hashCodeCached() {
+        return this.map.hashCode();
+    }
+
+    // The hash code of a map one add away from this one
+    @Benchmark
+    public int hashCodeAfterAdd() {
+        Long key = this.absentKey();
+        return this.ops.add(this.map, key, key).hashCode();
+    }
+
+    // Compare the map to its copy built in the opposite order
+    @Benchmark
+    public boolean equalsCopy() {
+        return this.map.equals(this.copy);
+    }
+}
@@ -0,0 +1,68 @@
+package fmap.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* Throughput of one map shared by all benchmark threads, written through
+   an FMapRef or through the compare and set loop it replaces. Each
+   increment adds one to the value of a random key; read looks a random
+   key up in the current version. Run it at 1 to 64 threads with
+   fmap.bench.Scaling, or at one count with -t */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class FMapRefBenchmark {
+
+    // The implementation of the shared map
+    @Param({"FTree", "HashTrie"})
+    public String impl;
+
+    // How writers publish: FMapRef, or CAS on an AtomicReference
+    @Param({"FMapRef", "CAS"})
+    public String writer;
+
+    // The number of keys written to
+    @Param({"1000", "1000000"})
+    public int size;
+
+    // The FMap operations
+    private MapOps ops;
+    // The keys
+    private Long[] keys;
+    // The shared map
+    private Object shared;
+
+    // Build the map with every key at 0 and share it
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.ops = (MapOps) Class.forName("FMapOps").getDeclaredConstructor().newInstance();
+        this.keys = Distribution.RANDOM.keys(0, this.size);
+        Object map = this.ops.empty(this.impl);
+        for (Long key : this.keys) {
+            map = this.ops.add(map, key, 0L);
+        }
+        this.shared = this.ops.share(map, this.writer.equals("CAS"));
+    }
+
+    // The key of the next operation
+    private Long key() {
+        return this.keys[ThreadLocalRandom.current().nextInt(this.size)];
+    }
+
+    // Add one to the value of a random key
+    @Benchmark
+    public Object increment() {
+        return this.ops.increment(this.shared, this.key());
+    }
+
+    // Look a random key up in the current version
+    @Benchmark
+    public boolean read() {
+        return this.ops.sharedContainsKey(this.shared, this.key());
+    }
+}
@@ -0,0 +1,27 @@
+package fmap.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* Runs the benchmarks with the usual JMH command line, adding the GC
+   profiler (allocation rate, bytes allocated per operation and GC counts)
+   and writing the results as JSON, to jmh-result.json unless -rff names
+   another file, so runs of two versions can be diffed */
+
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        Options opts = new OptionsBuilder()
+            .parent(cmd)
+            .addProfiler(GCProfiler.class)
+            .resultFormat(cmd.getResultFormat().orElse(ResultFormatType.JSON))
+            .result(cmd.getResult().orElse("jmh-result.json"))
+            .build();
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,56 @@
+package fmap.bench;
+
+/* The FMap operations the benchmarks call. The FMaps live in the unnamed
+   package, which no class in a named package can import, and JMH only
+   runs benchmarks in named packages. So the FMapOps class, in the unnamed
+   package next to the FMaps, implements this interface, and the
+   benchmarks load it by name once per trial and pass maps around as
+   Objects. Keys and values are Longs */
+
+public interface MapOps {
+
+    // Create an empty map of the named implementation, or throw an
+    // IllegalArgumentException if there is no such implementation
+    Object empty(String impl);
+
+    // Add the given value under the given key
+    Object add(Object map, Long key, Long value);
+
+    // Remove the given key
+    Object remove(Object map, Long key);
+
+    // Determine if the map contains the given key
+    boolean containsKey(Object map, Long key);
+
+    // Get the value at the given key
+    Object get(Object map, Long key);
+
+    // Determine the size of the map
+    int size(Object map);
+
+    // Walk the keys with iterator() and return their sum
+    long iterate(Object map);
+
+    // Walk the keys with iterator(Comparator) in descending order and
+    // return their sum
+    long iterateDescending(Object map);
+
+    // Accept a visitor that adds one to every value
+    Object accept(Object map);
+
+    // Add the given keys, each with itself as its value, in the named
+    // way: "add" one at a time, through a "Builder", or through an
+    // FTree "Appender"
+    Object addAll(Object map, Long[] keys, String how);
+
+    // Share the given map between threads through an FMapRef, or through
+    // a compare and set loop on an AtomicReference if cas is true
+    Object share(Object map, boolean cas);
+
+    // Add one to the value at the given key of the shared map, adding the
+    // key with the value 0 if it is absent
+    Object increment(Object shared, Long key);
+
+    // Determine if the current version of the shared map has the given key
+    boolean sharedContainsKey(Object shared, Long key);
+}
@@ -0,0 +1,38 @@
+package fmap.bench;
+
+import java.util.Arrays;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* Runs FMapRefBenchmark, or the benchmarks the command line selects, at
+   1, 2, 4, ... threads up to 64 or the count given as the first argument,
+   writing the JSON results of each count to scaling-<threads>.json. Other
+   arguments go to JMH, e.g.
+   java -cp bench/target/benchmarks.jar fmap.bench.Scaling 16 -p size=1000 */
+
+public class Scaling {
+
+    public static void main(String[] args) throws Exception {
+        int max = 64;
+        if (args.length > 0 && args[0].matches("\\d+")) {
+            max = Integer.parseInt(args[0]);
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        for (int threads = 1; threads <= max; threads *= 2) {
+            OptionsBuilder opts = new OptionsBuilder();
+            opts.parent(cmd);
+            if (cmd.getIncludes().isEmpty()) {
+                opts.include(FMapRefBenchmark.class.getSimpleName());
+            }
+            opts.threads(threads)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("scaling-" + threads + ".json");
+            new Runner(opts.build()).run();
+        }
+    }
+}
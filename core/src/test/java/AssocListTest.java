@@ -0,0 +1,61 @@
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for AssocList, whose operations take O(n) time, so
+   its runs are shorter */
+
+public class AssocListTest extends FMapContract<Integer> {
+
+    FMap<Integer,Integer> empty() {
+        return AssocList.empty();
+    }
+
+    Integer key(int i) {
+        return i;
+    }
+
+    Comparator<Integer> order() {
+        return Comparator.naturalOrder();
+    }
+
+    boolean ordered() {
+        return false;
+    }
+
+    int operations() {
+        return 600;
+    }
+
+    // The hash code of a list whose cells shadow one another is that of
+    // its pairs, whether the versions before it were hashed or not
+    @Test
+    public void hashCodesOverShadowedKeysMatchTheModel() {
+        Random r = new Random(SEED + 5);
+        FMap<Integer,Integer> hashed = this.empty();
+        FMap<Integer,Integer> unhashed = this.empty();
+        TreeMap<Integer,Integer> model = this.model();
+        for (int i = 0; i < 400; i++) {
+            int key = r.nextInt(40);
+            int value = r.nextInt(3);
+            hashed = hashed.add(key, value);
+            unhashed = unhashed.add(key, value);
+            model.put(key, value);
+            assertEquals(FMapContract.hash(model), hashed.hashCode());
+        }
+        assertEquals(FMapContract.hash(model), unhashed.hashCode());
+        this.check(hashed, model);
+    }
+
+    // A map whose hash code is 0 is still equal to the maps of its pairs,
+    // and unequal to those that differ in one value
+    @Test
+    public void zeroHashCodesCompareByContents() {
+        FMap<Integer,Integer> m = this.empty().add(0, 0);
+        assertEquals(0, m.hashCode());
+        assertEquals(0, m.hashCode());
+        assertEquals(FMap.<Integer,Integer>emptyMap().add(0, 0), m);
+        assertNotEquals(m, this.empty().add(0, 1));
+        assertNotEquals(m, m.add(1, 0));
+    }
+}
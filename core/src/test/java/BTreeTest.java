@@ -0,0 +1,61 @@
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for BTree, with runs long enough to split and merge
+   inner nodes */
+
+public class BTreeTest extends FMapContract<Integer> {
+
+    FMap<Integer,Integer> empty() {
+        return FMap.emptyBTree(Comparator.<Integer>naturalOrder());
+    }
+
+    Integer key(int i) {
+        return i;
+    }
+
+    Comparator<Integer> order() {
+        return Comparator.naturalOrder();
+    }
+
+    boolean ordered() {
+        return true;
+    }
+
+    int operations() {
+        return 8000;
+    }
+
+    // Keys added in order fill the rightmost leaves, and removing every
+    // other one and then the rest, from either end, merges the nodes
+    // back down to an empty tree
+    @Test
+    public void sequentialAddsAndRemovesMatchTheModel() {
+        for (boolean fromTheEnd : new boolean[] {false, true}) {
+            FMap<Integer,Integer> m = this.empty();
+            TreeMap<Integer,Integer> model = this.model();
+            for (int i = 0; i < 20000; i++) {
+                m = m.add(i, -i);
+                model.put(i, -i);
+            }
+            this.check(m, model);
+            for (int i = 0; i < 20000; i += 2) {
+                int key = fromTheEnd ? 19999 - i : i;
+                m = m.remove(key);
+                model.remove(key);
+            }
+            this.check(m, model);
+            for (int i = 0; i < 20000; i++) {
+                int key = fromTheEnd ? 19999 - i : i;
+                m = m.remove(key);
+                model.remove(key);
+                if (i % 1999 == 0) {
+                    this.check(m, model);
+                }
+            }
+            assertTrue(m.isEmpty());
+            this.check(m.add(7, 7), new TreeMap<Integer,Integer>(Collections.singletonMap(7, 7)));
+        }
+    }
+}
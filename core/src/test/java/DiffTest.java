@@ -0,0 +1,99 @@
+import java.util.*;
+import java.util.stream.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* diff and applyDiff between maps of different kinds, and applyDiff
+   over change streams that mix removes among the adds */
+
+public class DiffTest {
+
+    // Return an empty map of every kind with Integer keys
+    static List<FMap<Integer,Integer>> empties() {
+        List<FMap<Integer,Integer>> empties = new ArrayList<FMap<Integer,Integer>>();
+        empties.add(AssocList.<Integer,Integer>empty());
+        empties.add(FMap.<Integer,Integer>emptyMap());
+        empties.add(FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder()));
+        empties.add(FMap.<Integer,Integer>emptyBTree(Comparator.<Integer>naturalOrder()));
+        return empties;
+    }
+
+    // Return the given map with the pairs of the given model added
+    static FMap<Integer,Integer> fill(FMap<Integer,Integer> m, Map<Integer,Integer> model) {
+        for (Map.Entry<Integer,Integer> e : model.entrySet()) {
+            m = m.add(e.getKey(), e.getValue());
+        }
+        return m;
+    }
+
+    // Every kind diffs against every other kind, and applying the changes
+    // gives a map equal to the other
+    @Test
+    public void diffBetweenKindsRoundTrips() {
+        Random r = new Random(FMapContract.SEED + 60);
+        for (int round = 0; round < 15; round++) {
+            TreeMap<Integer,Integer> before = new TreeMap<Integer,Integer>();
+            TreeMap<Integer,Integer> after = new TreeMap<Integer,Integer>();
+            for (int i = 0; i < 150; i++) {
+                before.put(r.nextInt(300), r.nextInt(4));
+                after.put(r.nextInt(300), r.nextInt(4));
+            }
+            Map<Integer,Change.Kind> expected = FMapContract.changes(before, after);
+            for (FMap<Integer,Integer> e1 : empties()) {
+                FMap<Integer,Integer> m1 = fill(e1, before);
+                for (FMap<Integer,Integer> e2 : empties()) {
+                    FMap<Integer,Integer> m2 = fill(e2, after);
+                    List<Change<Integer,Integer>> changes = m1.diff(m2).collect(Collectors.toList());
+                    assertEquals(expected, FMapContract.kinds(changes));
+                    for (Change<Integer,Integer> ch : changes) {
+                        assertEquals(before.get(ch.getKey()), ch.getOldValue());
+                        assertEquals(after.get(ch.getKey()), ch.getNewValue());
+                    }
+                    FMap<Integer,Integer> applied = m1.applyDiff(changes.stream());
+                    assertEquals(m2, applied);
+                    assertEquals(applied, m2);
+                    assertEquals(m2.hashCode(), applied.hashCode());
+                    assertEquals(fill(e1, before), m1);
+                }
+            }
+        }
+    }
+
+    // applyDiff over a stream whose removes come between adds leaves the
+    // maps made before it as they were, and makes later Builders over the
+    // result leave it as it is
+    @Test
+    public void applyDiffWithRemovesAmongAdds() {
+        Random r = new Random(FMapContract.SEED + 61);
+        for (FMap<Integer,Integer> empty : empties()) {
+            TreeMap<Integer,Integer> model = new TreeMap<Integer,Integer>();
+            for (int i = 0; i < 500; i++) {
+                model.put(r.nextInt(1000), i);
+            }
+            FMap<Integer,Integer> m = fill(empty, model);
+            List<Change<Integer,Integer>> changes = new ArrayList<Change<Integer,Integer>>();
+            TreeMap<Integer,Integer> after = new TreeMap<Integer,Integer>(model);
+            for (int i = 0; i < 400; i++) {
+                int key = r.nextInt(1000);
+                if (after.containsKey(key) && r.nextInt(3) == 0) {
+                    changes.add(Change.removed(key, after.remove(key)));
+                } else if (after.containsKey(key)) {
+                    changes.add(Change.changed(key, after.get(key), -i));
+                    after.put(key, -i);
+                } else {
+                    changes.add(Change.added(key, -i));
+                    after.put(key, -i);
+                }
+            }
+            FMap<Integer,Integer> applied = m.applyDiff(changes.stream());
+            assertEquals(fill(empty, after), applied);
+            assertEquals(fill(empty, model), m);
+            Builder<Integer,Integer> b = applied.transientCopy();
+            for (int i = 0; i < 1000; i++) {
+                b.add(i, 7);
+            }
+            assertEquals(1000, b.persistent().size());
+            assertEquals(fill(empty, after), applied);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.*;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* FMapCodec writes a map and reads it back, whole or fed in pieces of
+   any size, into every kind of map */
+
+public class FMapCodecTest {
+
+    // Write the given map with the given codec and return the bytes
+    static <K> byte[] bytes(FMapCodec<K,Integer> codec, FMap<K,Integer> m) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(m, out);
+        return out.toByteArray();
+    }
+
+    // Feed the given bytes to a Loader in random pieces, and check that
+    // it reads no further than the end of the map
+    static <K> FMap<K,Integer> load(FMapCodec<K,Integer> codec, byte[] bytes, FMap<K,Integer> into,
+                                    Random r) {
+        FMapCodec<K,Integer>.Loader loader = codec.loader(into);
+        byte[] padded = Arrays.copyOf(bytes, bytes.length + 5);
+        int off = 0;
+        while (!loader.isComplete()) {
+            int n = Math.min(padded.length - off, 1 + r.nextInt(9));
+            off += loader.feed(padded, off, n);
+        }
+        assertEquals(bytes.length, off);
+        return loader.result();
+    }
+
+    // Round trips of random maps of Integer and of delta coded Long keys
+    @Test
+    public void roundTripsInPieces() throws IOException {
+        Random r = new Random(FMapContract.SEED + 70);
+        FMapCodec<Integer,Integer> ints = new FMapCodec<Integer,Integer>(Codec.INT, Codec.INT);
+        FMapCodec<Long,Integer> longs = FMapCodec.deltaKeys(Codec.INT);
+        for (int round = 0; round < 20; round++) {
+            FMap<Integer,Integer> m = FMap.emptyMap(Comparator.<Integer>naturalOrder());
+            FMap<Long,Integer> lm = FMap.emptyMap(Comparator.<Long>naturalOrder());
+            for (int i = 0; i < r.nextInt(1000); i++) {
+                m = m.add(r.nextInt(), i);
+                lm = lm.add(r.nextLong() >> r.nextInt(64), i);
+            }
+            byte[] b = bytes(ints, m);
+            assertEquals(m, ints.read(new ByteArrayInputStream(b), FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder())));
+            assertEquals(m, load(ints, b, FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder()), r));
+            assertEquals(m, load(ints, b, FMap.<Integer,Integer>emptyMap(), r));
+            assertEquals(m, load(ints, b, FMap.<Integer,Integer>emptyBTree(Comparator.<Integer>naturalOrder()), r));
+            assertEquals(lm, load(longs, bytes(longs, lm), FMap.<Long,Integer>emptyMap(Comparator.<Long>naturalOrder()), r));
+        }
+    }
+
+    // Reading into a map that is not empty adds to it, and a stream that
+    // ends early is an error
+    @Test
+    public void readsIntoAMapAndRejectsATruncatedStream() throws IOException {
+        FMapCodec<Integer,Integer> ints = new FMapCodec<Integer,Integer>(Codec.INT, Codec.INT);
+        FMap<Integer,Integer> m = FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder()).add(1, 1).add(2, 2);
+        FMap<Integer,Integer> into = FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder()).add(2, 0).add(3, 3);
+        byte[] b = bytes(ints, m);
+        assertEquals(into.add(1, 1).add(2, 2), ints.read(new ByteArrayInputStream(b), into));
+        try {
+            ints.read(new ByteArrayInputStream(Arrays.copyOf(b, b.length - 1)), into);
+            fail("A truncated stream was read");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,344 @@
+import java.util.*;
+import java.util.stream.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The behavior every FMap has, checked against a TreeMap holding the same
+   pairs through a random run of adds and removes. Each implementation
+   has a subclass that says how to make an empty map and its keys.
+   The runs are seeded, so a failure happens again with the same seed */
+
+public abstract class FMapContract<K> {
+
+    // The seed of every run
+    static final long SEED = 20261017L;
+
+    // Return an empty map of the implementation
+    abstract FMap<K,Integer> empty();
+
+    // Return the key numbered i, distinct for distinct i
+    abstract K key(int i);
+
+    // The order the model keeps its keys in
+    abstract Comparator<K> order();
+
+    // True iff iterator() walks the keys in ascending order
+    abstract boolean ordered();
+
+    // The number of adds and removes of a run
+    int operations() {
+        return 2000;
+    }
+
+    // Return a map holding the pairs of the given model
+    FMap<K,Integer> of(Map<K,Integer> model) {
+        FMap<K,Integer> m = this.empty();
+        for (Map.Entry<K,Integer> e : model.entrySet()) {
+            m = m.add(e.getKey(), e.getValue());
+        }
+        return m;
+    }
+
+    // Return an empty model
+    TreeMap<K,Integer> model() {
+        return new TreeMap<K,Integer>(this.order());
+    }
+
+    // Check every key of a random run, and the whole map every so often,
+    // and at the end every version kept on the way
+    @Test
+    public void randomAddsAndRemovesMatchTheModel() {
+        Random r = new Random(SEED);
+        int range = this.operations() / 2;
+        FMap<K,Integer> m = this.empty();
+        TreeMap<K,Integer> model = this.model();
+        List<FMap<K,Integer>> versions = new ArrayList<FMap<K,Integer>>();
+        List<TreeMap<K,Integer>> models = new ArrayList<TreeMap<K,Integer>>();
+        for (int i = 0; i < this.operations(); i++) {
+            K key = this.key(r.nextInt(range));
+            if (r.nextInt(5) < 3) {
+                int value = r.nextInt(100);
+                m = m.add(key, value);
+                model.put(key, value);
+            } else {
+                m = m.remove(key);
+                model.remove(key);
+            }
+            assertEquals(model.containsKey(key), m.containsKey(key));
+            if (model.containsKey(key)) {
+                assertEquals(model.get(key), m.get(key));
+            } else {
+                FMapContract.assertMissing(m, key);
+            }
+            assertEquals(model.size(), m.size());
+            if (i % 97 == 0) {
+                this.check(m, model);
+                versions.add(m);
+                models.add(new TreeMap<K,Integer>(model));
+            }
+        }
+        this.check(m, model);
+        for (int i = 0; i < versions.size(); i++) {
+            this.check(versions.get(i), models.get(i));
+        }
+    }
+
+    // Adding a pair that is there already, or removing a key that is
+    // not, leaves an equal map
+    @Test
+    public void redundantChangesLeaveAnEqualMap() {
+        TreeMap<K,Integer> model = this.model();
+        for (int i = 0; i < 50; i++) {
+            model.put(this.key(i), i);
+        }
+        FMap<K,Integer> m = this.of(model);
+        this.check(m.add(this.key(7), 7), model);
+        this.check(m.remove(this.key(1000)), model);
+        this.check(this.empty().remove(this.key(3)), this.model());
+        assertTrue(this.empty().isEmpty());
+        assertEquals(0, this.empty().size());
+        assertFalse(this.empty().iterator().hasNext());
+        assertFalse(this.empty().iterator(this.order()).hasNext());
+    }
+
+    // Iterating a map and the maps made from it by a few changes, by
+    // comparators they are not kept in, gives their keys in that order
+    @Test
+    public void iteratorByComparatorSortsEveryVersion() {
+        Random r = new Random(SEED + 1);
+        Comparator<K> byHash = new Comparator<K>() {
+            public int compare(K k1, K k2) {
+                return Integer.compare(k1.hashCode() % 7, k2.hashCode() % 7);
+            }
+        };
+        TreeMap<K,Integer> model = this.model();
+        for (int i = 0; i < this.operations() / 4; i++) {
+            model.put(this.key(r.nextInt(this.operations())), i);
+        }
+        FMap<K,Integer> m = this.of(model);
+        for (int i = 0; i < 60; i++) {
+            FMapContract.assertSorted(m, byHash, model.size());
+            FMapContract.assertSorted(m, this.order().reversed(), model.size());
+            K key = this.key(r.nextInt(this.operations()));
+            if (r.nextBoolean()) {
+                m = m.add(key, i);
+                model.put(key, i);
+            } else {
+                m = m.remove(key);
+                model.remove(key);
+            }
+        }
+        this.check(m, model);
+    }
+
+    // The changes diff returns are those between the models, and
+    // applying them to the first map gives one equal to the second
+    @Test
+    public void diffAndApplyDiffRoundTrip() {
+        Random r = new Random(SEED + 2);
+        for (int round = 0; round < 20; round++) {
+            TreeMap<K,Integer> before = this.model();
+            for (int i = 0; i < r.nextInt(200); i++) {
+                before.put(this.key(r.nextInt(300)), r.nextInt(5));
+            }
+            FMap<K,Integer> m1 = this.of(before);
+            FMap<K,Integer> m2 = m1;
+            TreeMap<K,Integer> after = new TreeMap<K,Integer>(before);
+            for (int i = 0; i < r.nextInt(40); i++) {
+                K key = this.key(r.nextInt(300));
+                if (r.nextBoolean()) {
+                    int value = r.nextInt(5);
+                    m2 = m2.add(key, value);
+                    after.put(key, value);
+                } else {
+                    m2 = m2.remove(key);
+                    after.remove(key);
+                }
+            }
+            List<Change<K,Integer>> changes = m1.diff(m2).collect(Collectors.toList());
+            assertEquals(FMapContract.changes(before, after), FMapContract.kinds(changes));
+            this.check(m1.applyDiff(changes.stream()), after);
+            // A diff against another implementation applies the same way
+            FMap<K,Integer> other = FMapContract.reference(after, this.order());
+            this.check(m1.applyDiff(m1.diff(other)), after);
+            this.check(m1, before);
+        }
+    }
+
+    // A Builder adds the pairs and leaves the map it started from as it was
+    @Test
+    public void builderAddsWithoutChangingTheOriginal() {
+        Random r = new Random(SEED + 3);
+        TreeMap<K,Integer> model = this.model();
+        for (int i = 0; i < 100; i++) {
+            model.put(this.key(r.nextInt(200)), i);
+        }
+        FMap<K,Integer> m = this.of(model);
+        TreeMap<K,Integer> built = new TreeMap<K,Integer>(model);
+        Builder<K,Integer> b = m.transientCopy();
+        for (int i = 0; i < 300; i++) {
+            K key = this.key(r.nextInt(400));
+            b.add(key, -i);
+            built.put(key, -i);
+            assertEquals(built.size(), b.size());
+            assertEquals(-i, (int) b.get(key));
+        }
+        this.check(b.persistent(), built);
+        this.check(m, model);
+        try {
+            b.add(this.key(0), 0);
+            fail("A retired Builder took an add");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    // accept gives every pair the value the visitor returns
+    @Test
+    public void acceptVisitsEveryPair() {
+        TreeMap<K,Integer> model = this.model();
+        TreeMap<K,Integer> doubled = this.model();
+        for (int i = 0; i < 300; i += 3) {
+            model.put(this.key(i), i);
+            doubled.put(this.key(i), 2 * i);
+        }
+        FMap<K,Integer> m = this.of(model);
+        this.check(m.accept(new Visitor<K,Integer>() {
+                public Integer visit(K key, Integer value) {
+                    return 2 * value;
+                }
+            }), doubled);
+        this.check(m, model);
+    }
+
+    // The spliterator and the streams hold every pair once, and the
+    // spliterator knows how many
+    @Test
+    public void streamsHoldEveryPair() {
+        TreeMap<K,Integer> model = this.model();
+        for (int i = 0; i < 500; i += 2) {
+            model.put(this.key(i), i);
+        }
+        FMap<K,Integer> m = this.of(model);
+        Spliterator<K> keys = m.spliterator();
+        assertTrue(keys.hasCharacteristics(Spliterator.SIZED));
+        assertEquals(model.size(), keys.estimateSize());
+        Map<K,Integer> pairs = new HashMap<K,Integer>();
+        for (Map.Entry<K,Integer> e : m.entryStream().collect(Collectors.toList())) {
+            assertNull(pairs.put(e.getKey(), e.getValue()));
+        }
+        assertEquals(model, pairs);
+        assertEquals(model.size(), m.parallelStream().count());
+        assertEquals(0, this.empty().entryStream().count());
+    }
+
+    // Check everything the given map says about itself against the model
+    void check(FMap<K,Integer> m, TreeMap<K,Integer> model) {
+        assertEquals(model.size(), m.size());
+        assertEquals(model.isEmpty(), m.isEmpty());
+        List<K> keys = new ArrayList<K>();
+        for (K key : m) {
+            keys.add(key);
+        }
+        if (this.ordered()) {
+            assertEquals(new ArrayList<K>(model.keySet()), keys);
+        } else {
+            assertEquals(model.size(), keys.size());
+            assertEquals(model.keySet(), new HashSet<K>(keys));
+        }
+        assertEquals(new ArrayList<K>(model.keySet()),
+                     FMapContract.list(m.iterator(this.order())));
+        assertEquals(new ArrayList<K>(model.descendingKeySet()),
+                     FMapContract.list(m.iterator(this.order().reversed())));
+        for (Map.Entry<K,Integer> e : model.entrySet()) {
+            assertTrue(m.containsKey(e.getKey()));
+            assertEquals(e.getValue(), m.get(e.getKey()));
+        }
+        assertEquals(FMapContract.hash(model), m.hashCode());
+        FMap<K,Integer> other = FMapContract.reference(model, this.order());
+        assertTrue(m.equals(other));
+        assertTrue(other.equals(m));
+        if (!model.isEmpty()) {
+            K first = model.firstKey();
+            FMap<K,Integer> changed = m.add(first, model.get(first) + 1);
+            assertFalse(m.equals(changed));
+            assertFalse(changed.equals(m));
+        }
+    }
+
+    // Check that the keys of the given map come in the order of the given
+    // comparator, each once
+    static <K> void assertSorted(FMap<K,Integer> m, Comparator<K> c, int size) {
+        List<K> keys = FMapContract.list(m.iterator(c));
+        assertEquals(size, keys.size());
+        assertEquals(size, new HashSet<K>(keys).size());
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(c.compare(keys.get(i - 1), keys.get(i)) <= 0);
+        }
+    }
+
+    // Check that getting the given key throws an exception, as it does
+    // for a key the map does not contain
+    static <K> void assertMissing(FMap<K,?> m, K key) {
+        try {
+            m.get(key);
+            fail("get returned a value for a missing key");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    // The keys of the given iterator in order
+    static <K> List<K> list(Iterator<K> it) {
+        List<K> keys = new ArrayList<K>();
+        while (it.hasNext()) {
+            keys.add(it.next());
+        }
+        return keys;
+    }
+
+    // The hash code every FMap of the given pairs has
+    static <K> int hash(Map<K,Integer> model) {
+        int hash = 0;
+        for (Map.Entry<K,Integer> e : model.entrySet()) {
+            hash += FMap.entryHash(e.getKey(), e.getValue());
+        }
+        return hash;
+    }
+
+    // A map of the given pairs kept by another implementation, an FTree
+    static <K> FMap<K,Integer> reference(Map<K,Integer> model, Comparator<K> c) {
+        FMap<K,Integer> m = FMap.emptyMap(c);
+        for (Map.Entry<K,Integer> e : model.entrySet()) {
+            m = m.add(e.getKey(), e.getValue());
+        }
+        return m;
+    }
+
+    // The kind of change of every key that differs between the models
+    static <K> Map<K,Change.Kind> changes(Map<K,Integer> before, Map<K,Integer> after) {
+        Map<K,Change.Kind> kinds = new HashMap<K,Change.Kind>();
+        for (Map.Entry<K,Integer> e : before.entrySet()) {
+            if (!after.containsKey(e.getKey())) {
+                kinds.put(e.getKey(), Change.Kind.REMOVED);
+            } else if (!after.get(e.getKey()).equals(e.getValue())) {
+                kinds.put(e.getKey(), Change.Kind.CHANGED);
+            }
+        }
+        for (K key : after.keySet()) {
+            if (!before.containsKey(key)) {
+                kinds.put(key, Change.Kind.ADDED);
+            }
+        }
+        return kinds;
+    }
+
+    // The kind of every change of the given list, each key once
+    static <K> Map<K,Change.Kind> kinds(List<Change<K,Integer>> changes) {
+        Map<K,Change.Kind> kinds = new HashMap<K,Change.Kind>();
+        for (Change<K,Integer> ch : changes) {
+            assertNull(kinds.put(ch.getKey(), ch.getKind()));
+        }
+        return kinds;
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* FMapRef under many writers: every acknowledged write is in the map,
+   and a failing operation, from its own function or from the map,
+   fails only in the thread that submitted it */
+
+public class FMapRefTest {
+
+    // The number of writer threads
+    static final int THREADS = 8;
+
+    // Run the given tasks on THREADS threads at once and return their
+    // futures once all are done
+    static <T> List<Future<T>> runAll(List<Callable<T>> tasks) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            return pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Concurrent increments of a few keys add up
+    @Test
+    public void concurrentUpdatesAreAllApplied() throws Exception {
+        final FMapRef<Integer,Integer> ref =
+            new FMapRef<Integer,Integer>(FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder()));
+        final BiFunction<Integer,Integer,Integer> increment = new BiFunction<Integer,Integer,Integer>() {
+            public Integer apply(Integer key, Integer old) {
+                return (old == null) ? 1 : old + 1;
+            }
+        };
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        for (int i = 0; i < 5000; i++) {
+                            ref.compute(i % 10, increment);
+                        }
+                        return null;
+                    }
+                });
+        }
+        for (Future<Void> f : runAll(tasks)) {
+            f.get();
+        }
+        FMap<Integer,Integer> m = ref.get();
+        assertEquals(10, m.size());
+        for (int k = 0; k < 10; k++) {
+            assertEquals(THREADS * 500, (int) m.get(k));
+        }
+    }
+
+    // Operations whose key the map cannot compare, and operations whose
+    // function throws, fail in their own threads; the others succeed
+    // and their writes are published
+    @Test
+    public void failuresStayWithTheirOperations() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final FMapRef<Integer,Integer> ref = new FMapRef<Integer,Integer>
+                (FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder()).add(-1, -1));
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 200; i++) {
+                final int key = i;
+                if (i % 3 == 1) {
+                    // A null key reaches the comparator of the FTree
+                    tasks.add(new Callable<Integer>() {
+                            public Integer call() {
+                                return ref.putIfAbsent(null, key);
+                            }
+                        });
+                } else if (i % 3 == 2) {
+                    tasks.add(new Callable<Integer>() {
+                            public Integer call() {
+                                return ref.update(-1, new UnaryOperator<Integer>() {
+                                        public Integer apply(Integer old) {
+                                            throw new IllegalStateException("op " + key);
+                                        }
+                                    });
+                            }
+                        });
+                } else {
+                    tasks.add(new Callable<Integer>() {
+                            public Integer call() {
+                                return ref.compute(key, new BiFunction<Integer,Integer,Integer>() {
+                                        public Integer apply(Integer k, Integer old) {
+                                            return k + 1;
+                                        }
+                                    });
+                            }
+                        });
+                }
+            }
+            List<Future<Integer>> results = runAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                if (i % 3 == 0) {
+                    assertEquals(i + 1, (int) results.get(i).get());
+                } else {
+                    try {
+                        results.get(i).get();
+                        fail("A failing operation returned");
+                    } catch (ExecutionException e) {
+                        if (i % 3 == 2) {
+                            assertEquals("op " + i, e.getCause().getMessage());
+                        }
+                    }
+                }
+            }
+            FMap<Integer,Integer> m = ref.get();
+            assertEquals(-1, (int) m.get(-1));
+            for (int i = 0; i < 200; i += 3) {
+                assertEquals(i + 1, (int) m.get(i));
+            }
+            assertEquals(1 + 67, m.size());
+        }
+    }
+
+    // compute removes a key when the function returns null, and
+    // putIfAbsent and update return what they say
+    @Test
+    public void operationsReturnTheirResults() {
+        FMapRef<String,Integer> ref = new FMapRef<String,Integer>(FMap.<String,Integer>emptyMap());
+        assertNull(ref.putIfAbsent("a", 1));
+        assertEquals(1, (int) ref.putIfAbsent("a", 2));
+        assertNull(ref.update("b", new UnaryOperator<Integer>() {
+                public Integer apply(Integer old) {
+                    return old + 1;
+                }
+            }));
+        assertFalse(ref.get().containsKey("b"));
+        assertEquals(11, (int) ref.update("a", new UnaryOperator<Integer>() {
+                public Integer apply(Integer old) {
+                    return old + 10;
+                }
+            }));
+        assertNull(ref.compute("a", new BiFunction<String,Integer,Integer>() {
+                public Integer apply(String key, Integer old) {
+                    return null;
+                }
+            }));
+        assertTrue(ref.get().isEmpty());
+    }
+
+    // An Error thrown by a function reaches the thread that submitted it
+    // and ends its round, but what was applied stays applied, the other
+    // writers are not left waiting, and later writes go on
+    @Test
+    public void errorsEndTheRoundWithoutLosingWrites() throws Exception {
+        final FMapRef<Integer,Integer> ref =
+            new FMapRef<Integer,Integer>(FMap.<Integer,Integer>emptyMap(Comparator.<Integer>naturalOrder()));
+        try {
+            ref.compute(0, new BiFunction<Integer,Integer,Integer>() {
+                    public Integer apply(Integer key, Integer old) {
+                        throw new StackOverflowError("alone");
+                    }
+                });
+            fail("An Error was swallowed");
+        } catch (StackOverflowError e) {
+            assertEquals("alone", e.getMessage());
+        }
+        assertTrue(ref.get().isEmpty());
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 400; i++) {
+            final int key = i;
+            tasks.add(new Callable<Integer>() {
+                    public Integer call() {
+                        return ref.compute(key, new BiFunction<Integer,Integer,Integer>() {
+                                public Integer apply(Integer k, Integer old) {
+                                    if (k % 50 == 7) {
+                                        throw new StackOverflowError("op " + k);
+                                    }
+                                    return k;
+                                }
+                            });
+                    }
+                });
+        }
+        List<Future<Integer>> results = runAll(tasks);
+        FMap<Integer,Integer> m = ref.get();
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                assertEquals(i, (int) results.get(i).get());
+                assertEquals(i, (int) m.get(i));
+            } catch (ExecutionException e) {
+                // Only the thread of a failing operation, or the combiner
+                // its Error ended the round of, sees an Error
+                assertTrue(e.getCause() instanceof StackOverflowError);
+                if (i % 50 == 7) {
+                    assertFalse(m.containsKey(i));
+                }
+            }
+        }
+        for (int i = 7; i < 400; i += 50) {
+            assertFalse(m.containsKey(i));
+        }
+        assertEquals(1000, (int) ref.compute(1000, new BiFunction<Integer,Integer,Integer>() {
+                public Integer apply(Integer k, Integer old) {
+                    return k;
+                }
+            }));
+    }
+
+    // Many more writers than cores, most of them parked, all finish
+    @Test
+    public void manyWritersAllFinish() throws Exception {
+        final FMapRef<Integer,Integer> ref =
+            new FMapRef<Integer,Integer>(FMap.<Integer,Integer>emptyMap());
+        ExecutorService pool = Executors.newFixedThreadPool(64);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int t = 0; t < 64; t++) {
+                final int base = t * 1000;
+                tasks.add(new Callable<Void>() {
+                        public Void call() {
+                            for (int i = 0; i < 500; i++) {
+                                ref.putIfAbsent(base + i, i);
+                            }
+                            return null;
+                        }
+                    });
+            }
+            for (Future<Void> f : pool.invokeAll(tasks, 60, TimeUnit.SECONDS)) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(64 * 500, ref.get().size());
+    }
+}
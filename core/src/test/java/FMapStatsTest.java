@@ -0,0 +1,146 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+/* FMapStats counts what known sequences of adds do, when started with
+   -Dfmap.stats=true, and describes the shape of a tree either way */
+
+public class FMapStatsTest {
+
+    // Start every test from zeroed counters
+    @BeforeEach
+    public void reset() {
+        FMapStats.reset();
+    }
+
+    // Return the change in the counters since the given snapshot, as
+    // comparisons, nodes, adds and the rotations in order
+    static long[] since(FMapStats before) {
+        FMapStats now = FMapStats.snapshot();
+        long[] d = new long[3 + FMapStats.Rotation.values().length];
+        d[0] = now.getComparisons() - before.getComparisons();
+        d[1] = now.getNodesAllocated() - before.getNodesAllocated();
+        d[2] = now.getAdds() - before.getAdds();
+        for (FMapStats.Rotation r : FMapStats.Rotation.values()) {
+            d[3 + r.ordinal()] = now.getRotations(r) - before.getRotations(r);
+        }
+        return d;
+    }
+
+    // Add the given keys in order to an empty FTree and return the change
+    // in the counters, checking that the comparisons counted are the
+    // calls the comparator saw
+    static long[] add(String... keys) {
+        final AtomicLong calls = new AtomicLong();
+        Comparator<String> c = new Comparator<String>() {
+            public int compare(String k1, String k2) {
+                calls.incrementAndGet();
+                return k1.compareTo(k2);
+            }
+        };
+        FMap<String,Integer> t = FMap.emptyMap(c);
+        FMapStats before = FMapStats.snapshot();
+        for (String key : keys) {
+            t = t.add(key, 0);
+        }
+        long[] d = FMapStatsTest.since(before);
+        assertEquals(calls.get(), d[0]);
+        assertEquals(keys.length, d[2]);
+        // Interning finds the Nodes of a key added again or of a tree
+        // made before rather than allocating them
+        if (!NodeInterner.ENABLED) {
+            assertTrue(d[1] >= d[2]);
+        }
+        return d;
+    }
+
+    // Three keys in each order take the one case of balance the order
+    // makes, and a fourth takes none
+    @Test
+    public void addsCountTheirComparisonsAndRotations() {
+        assumeTrue(FMapStats.ENABLED);
+        // Keys no other test uses, so interning has no Nodes for them
+        String p = UUID.randomUUID().toString();
+        String a = p + "a", b = p + "b", c = p + "c", d = p + "d";
+        assertArrayEquals(new long[] {0, 0, 0, 0}, rotations(add(a)));
+        assertArrayEquals(new long[] {0, 0, 1, 0}, rotations(add(a, b, c)));
+        assertArrayEquals(new long[] {1, 0, 0, 0}, rotations(add(c, b, a)));
+        assertArrayEquals(new long[] {0, 1, 0, 0}, rotations(add(c, a, b)));
+        assertArrayEquals(new long[] {0, 0, 0, 1}, rotations(add(a, c, b)));
+        assertArrayEquals(new long[] {0, 0, 1, 0}, rotations(add(a, b, c, d)));
+        // Adding a key that is there already rotates nothing
+        assertArrayEquals(new long[] {0, 0, 0, 0}, rotations(add(b, b)));
+    }
+
+    // The rotations of the given change in the counters
+    static long[] rotations(long[] d) {
+        return Arrays.copyOfRange(d, 3, d.length);
+    }
+
+    // An iterator that sorts the keys of a map counts itself and them
+    @Test
+    public void sortedIteratorsCountTheirKeys() {
+        assumeTrue(FMapStats.ENABLED);
+        FMap<Integer,Integer> m = FMap.emptyMap();
+        for (int i = 0; i < 100; i++) {
+            m = m.add(i, i);
+        }
+        FMapStats before = FMapStats.snapshot();
+        FMapContract.list(m.iterator(Comparator.<Integer>naturalOrder()));
+        FMapStats after = FMapStats.snapshot();
+        assertEquals(1, after.getIteratorSorts() - before.getIteratorSorts());
+        assertEquals(100, after.getSortedKeys() - before.getSortedKeys());
+        FMapStats.reset();
+        assertEquals(0, FMapStats.snapshot().getIteratorSorts());
+        assertEquals(0, FMapStats.snapshot().getAdds());
+    }
+
+    // A HashTrie keeps the keys it sorted for the next iterator by the
+    // same comparator, while an AssocList cell keeps none and sorts them
+    // every time
+    @Test
+    public void onlyWholeMapsKeepTheirSortedKeys() {
+        assumeTrue(FMapStats.ENABLED);
+        FMap<Integer,Integer> trie = FMap.emptyMap();
+        FMap<Integer,Integer> list = AssocList.empty();
+        for (int i = 0; i < 100; i++) {
+            trie = trie.add(i, i);
+            list = list.add(i, i);
+        }
+        Comparator<Integer> c = Comparator.<Integer>naturalOrder();
+        FMapStats before = FMapStats.snapshot();
+        FMapContract.list(trie.iterator(c));
+        FMapContract.list(trie.iterator(c));
+        FMapStats after = FMapStats.snapshot();
+        assertEquals(1, after.getIteratorSorts() - before.getIteratorSorts());
+        FMapContract.list(list.iterator(c));
+        FMapContract.list(list.iterator(c));
+        assertEquals(2, FMapStats.snapshot().getIteratorSorts() - after.getIteratorSorts());
+    }
+
+    // The histograms of a tree of 2^k - 1 keys built from sorted keys are
+    // those of a full tree, whether instrumentation is on or not
+    @Test
+    public void snapshotOfATreeHasItsShape() {
+        List<Map.Entry<Integer,Integer>> entries = FTreeTest.entries(0, 1, 2, 3, 4, 5, 6);
+        FTree<Integer,Integer> t = FTree.fromSorted(Comparator.<Integer>naturalOrder(), entries.iterator());
+        FMapStats s = FMapStats.snapshot(t);
+        assertArrayEquals(new long[] {1, 2, 4}, s.getDepthHistogram());
+        assertArrayEquals(new long[] {0, 4, 2, 1}, s.getBlackHeightHistogram());
+        FTree<Integer,Integer> empty = FTree.fromSorted(Comparator.<Integer>naturalOrder(),
+                                                        new ArrayList<Map.Entry<Integer,Integer>>().iterator());
+        assertEquals(0, FMapStats.snapshot(empty).getDepthHistogram().length);
+        assertEquals(0, FMapStats.snapshot().getDepthHistogram().length);
+        // Ascending adds leave every path within the red black bound
+        FMap<Integer,Integer> m = FMap.emptyMap(Comparator.<Integer>naturalOrder());
+        for (int i = 0; i < 1000; i++) {
+            m = m.add(i, i);
+        }
+        long[] depths = FMapStats.snapshot((FTree<Integer,Integer>) m).getDepthHistogram();
+        assertEquals(1000, Arrays.stream(depths).sum());
+        assertTrue(depths.length <= 20);
+    }
+}
@@ -0,0 +1,476 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for FTree, and its own operations checked against a
+   TreeMap */
+
+public class FTreeTest extends FMapContract<Integer> {
+
+    FMap<Integer,Integer> empty() {
+        return FMap.emptyMap(Comparator.<Integer>naturalOrder());
+    }
+
+    Integer key(int i) {
+        return i;
+    }
+
+    Comparator<Integer> order() {
+        return Comparator.naturalOrder();
+    }
+
+    boolean ordered() {
+        return true;
+    }
+
+    // Return an FTree of the given pairs
+    FTree<Integer,Integer> tree(Map<Integer,Integer> model) {
+        return (FTree<Integer,Integer>) this.of(model);
+    }
+
+    // Return a model of about n random pairs with keys below range
+    TreeMap<Integer,Integer> random(Random r, int n, int range) {
+        TreeMap<Integer,Integer> model = this.model();
+        for (int i = 0; i < n; i++) {
+            model.put(r.nextInt(range), r.nextInt(100));
+        }
+        return model;
+    }
+
+    // An iterator started on a tree walks it as it was, while other
+    // iterators walk the trees made from it, and hasNext does not move it
+    @Test
+    public void iteratorsWalkTheirOwnVersion() {
+        TreeMap<Integer,Integer> model = this.random(new Random(SEED + 13), 1000, 5000);
+        FTree<Integer,Integer> t = this.tree(model);
+        Iterator<Integer> it = t.iterator();
+        FMap<Integer,Integer> changed = t;
+        List<Integer> keys = new ArrayList<Integer>();
+        for (Integer key : model.keySet()) {
+            assertTrue(it.hasNext());
+            assertTrue(it.hasNext());
+            keys.add(it.next());
+            changed = changed.remove(key).add(-key - 1, 0);
+        }
+        assertFalse(it.hasNext());
+        assertEquals(new ArrayList<Integer>(model.keySet()), keys);
+        assertEquals(model.size(), changed.size());
+        assertEquals(-model.lastKey() - 1, (int) changed.iterator().next());
+        try {
+            it.next();
+            fail("next returned a key past the end");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    // fromSorted and fromEntries hold the pairs given, the last value of
+    // a repeated key winning, and fromSorted builds the shallowest tree
+    @Test
+    public void bulkConstructionMatchesTheModel() {
+        Random r = new Random(SEED + 14);
+        for (int n : new int[] {0, 1, 2, 3, 7, 8, 100, 1023, 1024, 5000}) {
+            TreeMap<Integer,Integer> model = this.model();
+            List<Map.Entry<Integer,Integer>> entries = new ArrayList<Map.Entry<Integer,Integer>>();
+            for (int i = 0; i < n; i++) {
+                int key = r.nextInt(3 * n);
+                model.put(key, i);
+                entries.add(new AbstractMap.SimpleEntry<Integer,Integer>(key, i));
+            }
+            FTree<Integer,Integer> unsorted = FTree.fromEntries(this.order(), entries.iterator());
+            this.check(unsorted, model);
+            List<Map.Entry<Integer,Integer>> sorted = new ArrayList<Map.Entry<Integer,Integer>>(model.entrySet());
+            FTree<Integer,Integer> t = FTree.fromSorted(this.order(), sorted.iterator());
+            this.check(t, model);
+            // Every level but the last is full
+            long[] depths = FMapStats.snapshot(t).getDepthHistogram();
+            for (int d = 0; d < depths.length - 1; d++) {
+                assertEquals(1L << d, depths[d]);
+            }
+            this.check(t.add(-1, -1).remove(-1), model);
+        }
+        try {
+            FTree.fromSorted(this.order(), FTreeTest.entries(2, 1).iterator());
+            fail("fromSorted took keys out of order");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        TreeMap<Integer,Integer> last = this.model();
+        last.put(1, 1);
+        this.check(FTree.fromSorted(this.order(), FTreeTest.entries(1, 1).iterator()), last);
+    }
+
+    // Removing keys in random order, down to none, keeps the tree as
+    // shallow as a red black tree must be
+    @Test
+    public void removesKeepTheTreeBalanced() {
+        Random r = new Random(SEED + 15);
+        TreeMap<Integer,Integer> model = this.random(r, 4000, 100000);
+        FTree<Integer,Integer> t = this.tree(model);
+        List<Integer> keys = new ArrayList<Integer>(model.keySet());
+        Collections.shuffle(keys, r);
+        for (int i = 0; i < keys.size(); i++) {
+            t = t.remove(keys.get(i));
+            model.remove(keys.get(i));
+            if (i % 250 == 0) {
+                this.check(t, model);
+                FTreeTest.assertBalanced(t);
+            }
+        }
+        assertTrue(t.isEmpty());
+        this.check(t, model);
+    }
+
+    // union, intersection, difference and filterKeys agree with the
+    // model, against an FTree and against a map of another kind
+    @Test
+    public void setOperationsMatchTheModel() {
+        Random r = new Random(SEED + 11);
+        BinaryOperator<Integer> sum = new BinaryOperator<Integer>() {
+            public Integer apply(Integer v1, Integer v2) {
+                return v1 + 1000 * v2;
+            }
+        };
+        Predicate<Integer> even = new Predicate<Integer>() {
+            public boolean test(Integer key) {
+                return key % 2 == 0;
+            }
+        };
+        for (int round = 0; round < 30; round++) {
+            TreeMap<Integer,Integer> a = this.random(r, r.nextInt(400), 1000);
+            TreeMap<Integer,Integer> b = this.random(r, r.nextInt(400), 1000);
+            TreeMap<Integer,Integer> union = new TreeMap<Integer,Integer>(a);
+            TreeMap<Integer,Integer> intersection = this.model();
+            TreeMap<Integer,Integer> difference = new TreeMap<Integer,Integer>(a);
+            TreeMap<Integer,Integer> filtered = this.model();
+            for (Map.Entry<Integer,Integer> e : b.entrySet()) {
+                Integer v = a.get(e.getKey());
+                union.put(e.getKey(), (v == null) ? e.getValue() : sum.apply(v, e.getValue()));
+                if (v != null) {
+                    intersection.put(e.getKey(), sum.apply(v, e.getValue()));
+                }
+                difference.remove(e.getKey());
+            }
+            for (Map.Entry<Integer,Integer> e : a.entrySet()) {
+                if (even.test(e.getKey())) {
+                    filtered.put(e.getKey(), e.getValue());
+                }
+            }
+            FTree<Integer,Integer> t = this.tree(a);
+            List<FMap<Integer,Integer>> others = new ArrayList<FMap<Integer,Integer>>();
+            others.add(this.tree(b));
+            others.add(FMapContract.reference(b, this.order()).accept(new Visitor<Integer,Integer>() {
+                    public Integer visit(Integer key, Integer value) {
+                        return value;
+                    }
+                }));
+            FMap<Integer,Integer> trie = FMap.emptyMap();
+            for (Map.Entry<Integer,Integer> e : b.entrySet()) {
+                trie = trie.add(e.getKey(), e.getValue());
+            }
+            others.add(trie);
+            for (FMap<Integer,Integer> other : others) {
+                this.check(t.union(other, sum), union);
+                this.check(t.intersection(other, sum), intersection);
+                this.check(t.difference(other), difference);
+                FTreeTest.assertBalanced(t.union(other, sum));
+                FTreeTest.assertBalanced(t.difference(other));
+            }
+            this.check(t.filterKeys(even), filtered);
+            this.check(t, a);
+        }
+    }
+
+    // The set operations forked on a pool, over trees large enough to
+    // fork, give the trees the sequential ones give
+    @Test
+    public void parallelSetOperationsMatchTheSequentialOnes() {
+        Random r = new Random(SEED + 16);
+        BinaryOperator<Integer> max = new BinaryOperator<Integer>() {
+            public Integer apply(Integer v1, Integer v2) {
+                return Math.max(v1, v2);
+            }
+        };
+        Predicate<Integer> odd = new Predicate<Integer>() {
+            public boolean test(Integer key) {
+                return key % 2 != 0;
+            }
+        };
+        FTree<Integer,Integer> a = this.tree(this.random(r, 30000, 100000));
+        FTree<Integer,Integer> b = this.tree(this.random(r, 30000, 100000));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(a.union(b, max), a.union(b, max, pool));
+            assertEquals(a.intersection(b, max), a.intersection(b, max, pool));
+            assertEquals(a.difference(b), a.difference(b, pool));
+            assertEquals(a.filterKeys(odd), a.filterKeys(odd, pool));
+            FTreeTest.assertBalanced(a.union(b, max, pool));
+            FTreeTest.assertBalanced(a.filterKeys(odd, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // The navigation, range views and range counts agree with the model
+    @Test
+    public void navigationAndRangesMatchTheModel() {
+        Random r = new Random(SEED + 10);
+        TreeMap<Integer,Integer> model = this.random(r, 500, 2000);
+        FTree<Integer,Integer> t = this.tree(model);
+        assertEquals(model.firstKey(), t.firstKey());
+        assertEquals(model.lastKey(), t.lastKey());
+        for (int i = 0; i < 300; i++) {
+            int k = r.nextInt(2100) - 50;
+            assertEquals(model.floorKey(k), t.floorKey(k));
+            assertEquals(model.lowerKey(k), t.lowerKey(k));
+            assertEquals(model.ceilingKey(k), t.ceilingKey(k));
+            assertEquals(model.higherKey(k), t.higherKey(k));
+            int from = Math.min(k, k + r.nextInt(300) - 100);
+            int to = Math.max(k, k + r.nextInt(300) - 100);
+            assertEquals(model.subMap(from, to).size(), t.count(from, to));
+            this.check(t.subMap(from, to), new TreeMap<Integer,Integer>(model.subMap(from, to)));
+            this.check(t.headMap(k), new TreeMap<Integer,Integer>(model.headMap(k)));
+            this.check(t.tailMap(k), new TreeMap<Integer,Integer>(model.tailMap(k)));
+        }
+        FTree<Integer,Integer> empty = this.tree(this.model());
+        assertNull(empty.floorKey(0));
+        assertNull(empty.higherKey(0));
+        assertEquals(0, empty.count(0, 10));
+    }
+
+    // rank, select, selectEntry and entriesFromIndex agree with the
+    // positions of the keys in the model
+    @Test
+    public void rankAndSelectMatchTheModel() {
+        Random r = new Random(SEED + 17);
+        TreeMap<Integer,Integer> model = this.random(r, 500, 2000);
+        FTree<Integer,Integer> t = this.tree(model);
+        List<Integer> keys = new ArrayList<Integer>(model.keySet());
+        for (int i = 0; i < 300; i++) {
+            int k = r.nextInt(2100) - 50;
+            assertEquals(model.headMap(k).size(), t.rank(k));
+            int j = r.nextInt(keys.size());
+            assertEquals(keys.get(j), t.select(j));
+            assertEquals(j, t.rank(keys.get(j)));
+            assertEquals(model.get(keys.get(j)), t.selectEntry(j).getValue());
+        }
+        List<Map.Entry<Integer,Integer>> page = t.entriesFromIndex(10, 20);
+        assertEquals(20, page.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(keys.get(10 + i), page.get(i).getKey());
+            assertEquals(model.get(keys.get(10 + i)), page.get(i).getValue());
+        }
+        assertEquals(5, t.entriesFromIndex(keys.size() - 5, 20).size());
+        try {
+            t.select(keys.size());
+            fail("select took an index past the end");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    // Splitting the spliterator all the way down gives every key once, in
+    // order, each part knowing its exact size, with or without keys taken
+    // before the split
+    @Test
+    public void spliteratorSplitsIntoSizedOrderedParts() {
+        Random r = new Random(SEED + 18);
+        TreeMap<Integer,Integer> model = this.random(r, 3000, 100000);
+        FTree<Integer,Integer> t = this.tree(model);
+        Spliterator<Integer> s = t.spliterator();
+        int wanted = Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED |
+            Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.IMMUTABLE;
+        assertEquals(wanted, s.characteristics() & wanted);
+        assertSame(this.order(), s.getComparator());
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(s.tryAdvance(FTreeTest.adder(keys)));
+        }
+        FTreeTest.walk(s, keys);
+        assertEquals(new ArrayList<Integer>(model.keySet()), keys);
+        Spliterator<Integer> one = this.tree(FTreeTest.model(2)).spliterator();
+        assertTrue(one.tryAdvance(FTreeTest.adder(new ArrayList<Integer>())));
+        assertNull(one.trySplit());
+        assertNotNull(t.remove(model.firstKey()).spliterator().trySplit());
+        Spliterator<Map.Entry<Integer,Integer>> entries = t.entrySpliterator();
+        assertTrue(entries.hasCharacteristics(Spliterator.SIZED | Spliterator.ORDERED));
+        assertFalse(entries.hasCharacteristics(Spliterator.SORTED));
+        assertEquals(model.size(), entries.estimateSize());
+        Spliterator<Integer> empty = this.tree(this.model()).spliterator();
+        assertEquals(0, empty.estimateSize());
+        assertNull(empty.trySplit());
+    }
+
+    // Add the keys of the given spliterator to the given list in order,
+    // splitting it as far as it goes and checking the size of every part
+    static void walk(Spliterator<Integer> s, List<Integer> keys) {
+        long size = s.estimateSize();
+        Spliterator<Integer> prefix = s.trySplit();
+        if (prefix == null) {
+            s.forEachRemaining(FTreeTest.adder(keys));
+            assertTrue(size < 2);
+            return;
+        }
+        assertTrue(prefix.estimateSize() > 0 && s.estimateSize() > 0);
+        assertEquals(size, prefix.estimateSize() + s.estimateSize());
+        int before = keys.size();
+        long prefixSize = prefix.estimateSize();
+        FTreeTest.walk(prefix, keys);
+        assertEquals(before + prefixSize, keys.size());
+        FTreeTest.walk(s, keys);
+        assertEquals(before + size, keys.size());
+    }
+
+    // The entry streams, sequential and parallel, give the pairs of the
+    // model in order
+    @Test
+    public void entryStreamsMatchTheModel() {
+        TreeMap<Integer,Integer> model = this.random(new Random(SEED + 19), 20000, 100000);
+        FTree<Integer,Integer> t = this.tree(model);
+        List<Map.Entry<Integer,Integer>> want = new ArrayList<Map.Entry<Integer,Integer>>(model.entrySet());
+        assertEquals(want, t.entryStream().collect(Collectors.toList()));
+        assertEquals(want, t.parallelStream().collect(Collectors.toList()));
+        assertEquals(new ArrayList<Integer>(model.keySet()),
+                     StreamSupport.stream(t.spliterator(), true).collect(Collectors.toList()));
+    }
+
+    // acceptParallel on a pool visits every pair once and gives the tree
+    // accept gives, over trees above and below the parallel cutoff
+    @Test
+    public void acceptParallelMatchesAccept() {
+        final AtomicInteger visits = new AtomicInteger();
+        Visitor<Integer,Integer> vis = new Visitor<Integer,Integer>() {
+            public Integer visit(Integer key, Integer value) {
+                visits.incrementAndGet();
+                return key - value;
+            }
+        };
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int n : new int[] {0, 100, 50000}) {
+                FTree<Integer,Integer> t = this.tree(this.random(new Random(SEED + n), n, 10 * n + 1));
+                FTree<Integer,Integer> sequential = t.accept(vis);
+                visits.set(0);
+                FTree<Integer,Integer> parallel = t.acceptParallel(vis, pool);
+                assertEquals(t.size(), visits.get());
+                assertEquals(sequential, parallel);
+                assertEquals(new ArrayList<Integer>(FMapContract.list(sequential.iterator())),
+                             FMapContract.list(parallel.iterator()));
+                FTreeTest.assertBalanced(parallel);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // A Consumer adding what it is given to the given list
+    static Consumer<Integer> adder(final List<Integer> keys) {
+        return new Consumer<Integer>() {
+            public void accept(Integer key) {
+                keys.add(key);
+            }
+        };
+    }
+
+    // A model of the keys 0 to n - 1, each its own value
+    static TreeMap<Integer,Integer> model(int n) {
+        TreeMap<Integer,Integer> model = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < n; i++) {
+            model.put(i, i);
+        }
+        return model;
+    }
+
+    // A tree holds its comparator at the root, so one emptied by removes,
+    // or by a range view, and built up again still keeps its order
+    @Test
+    public void emptiedTreesKeepTheirComparator() {
+        Comparator<Integer> reversed = Comparator.<Integer>naturalOrder().reversed();
+        FMap<Integer,Integer> t = FMap.emptyMap(reversed);
+        for (int i = 0; i < 100; i++) {
+            t = t.add(i, i);
+        }
+        FMap<Integer,Integer> emptied = t;
+        for (int i = 0; i < 100; i++) {
+            emptied = emptied.remove(i);
+        }
+        assertTrue(emptied.isEmpty());
+        List<FMap<Integer,Integer>> empties = new ArrayList<FMap<Integer,Integer>>();
+        empties.add(emptied);
+        empties.add(((FTree<Integer,Integer>) t).subMap(200, 150));
+        empties.add(((FTree<Integer,Integer>) t).difference(t));
+        for (FMap<Integer,Integer> empty : empties) {
+            assertTrue(empty.isEmpty());
+            FMap<Integer,Integer> m = empty.add(1, 1).add(3, 3).add(2, 2);
+            assertEquals(Arrays.asList(3, 2, 1), FMapContract.list(m.iterator()));
+        }
+    }
+
+    // An Appender builds the same map as add, for keys in ascending order,
+    // behind the last key, and anywhere, from empty and from a tree
+    @Test
+    public void appenderMatchesAdd() {
+        Random r = new Random(SEED + 12);
+        for (int round = 0; round < 40; round++) {
+            TreeMap<Integer,Integer> base = this.random(r, r.nextInt(300), 1000);
+            FTree<Integer,Integer> t = this.tree(base);
+            TreeMap<Integer,Integer> model = new TreeMap<Integer,Integer>(base);
+            FTree.Appender<Integer,Integer> ap = (round % 2 == 0) ?
+                t.appender() : null;
+            List<Map.Entry<Integer,Integer>> entries = new ArrayList<Map.Entry<Integer,Integer>>();
+            int next = 1000;
+            for (int i = 0; i < r.nextInt(500); i++) {
+                // Mostly ascending after the end, now and then anywhere
+                int key = (r.nextInt(8) == 0) ? r.nextInt(next) : next++;
+                int value = r.nextInt(100);
+                model.put(key, value);
+                entries.add(new AbstractMap.SimpleEntry<Integer,Integer>(key, value));
+                if (ap != null) {
+                    ap.add(key, value);
+                }
+            }
+            if (ap != null) {
+                this.check(ap.tree(), model);
+                FTreeTest.assertBalanced(ap.tree());
+                // The Appender can go on after tree()
+                ap.add(-1, -1);
+                assertEquals(model.size() + (model.containsKey(-1) ? 0 : 1), ap.tree().size());
+            }
+            this.check(t.addAll(entries.iterator()), model);
+            FTreeTest.assertBalanced(t.addAll(entries.iterator()));
+            this.check(t, base);
+        }
+        FTree.Appender<Integer,Integer> ap = FTree.appender(Comparator.<Integer>naturalOrder());
+        TreeMap<Integer,Integer> model = this.model();
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(ap.accepts(i));
+            ap.append(i, -i);
+            model.put(i, -i);
+        }
+        assertFalse(ap.accepts(10));
+        this.check(ap.tree(), model);
+    }
+
+    // Check that no path of the given tree is more than twice as long as
+    // the shortest a tree of its size can have
+    static void assertBalanced(FTree<?,?> t) {
+        int depth = FMapStats.snapshot(t).getDepthHistogram().length;
+        assertTrue(depth <= 2 * (32 - Integer.numberOfLeadingZeros(t.size() + 1)),
+                   t.size() + " keys in " + depth + " levels");
+    }
+
+    // Entries with the given keys, each holding its index as its value
+    static List<Map.Entry<Integer,Integer>> entries(int... keys) {
+        List<Map.Entry<Integer,Integer>> entries = new ArrayList<Map.Entry<Integer,Integer>>();
+        for (int i = 0; i < keys.length; i++) {
+            entries.add(new AbstractMap.SimpleEntry<Integer,Integer>(keys[i], i));
+        }
+        return entries;
+    }
+}
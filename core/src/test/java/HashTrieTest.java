@@ -0,0 +1,58 @@
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for HashTrie, the map FMap.emptyMap() makes */
+
+public class HashTrieTest extends FMapContract<Object> {
+
+    FMap<Object,Integer> empty() {
+        return FMap.emptyMap();
+    }
+
+    // Keys whose hash codes collide in pairs, so that the collision nodes
+    // are made and taken apart as well as the trie
+    Object key(int i) {
+        return new Colliding(i);
+    }
+
+    Comparator<Object> order() {
+        return new Comparator<Object>() {
+            public int compare(Object k1, Object k2) {
+                return Integer.compare(((Colliding) k1).id, ((Colliding) k2).id);
+            }
+        };
+    }
+
+    boolean ordered() {
+        return false;
+    }
+
+    // FMap.emptyMap() is a HashTrie
+    @Test
+    public void emptyMapIsAHashTrie() {
+        assertTrue(FMap.emptyMap() instanceof HashTrie<?,?>);
+    }
+
+    /* A key whose hash code is that of its id with the lowest bit
+       dropped */
+    static final class Colliding {
+        // The id
+        final int id;
+        Colliding(int id) {
+            this.id = id;
+        }
+
+        public boolean equals(Object x) {
+            return x instanceof Colliding && ((Colliding) x).id == this.id;
+        }
+
+        public int hashCode() {
+            return this.id >>> 1;
+        }
+
+        public String toString() {
+            return "#" + this.id;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for LazyMap, whose adds and removes go to the
+   overlay, and the values of views over full FTrees checked against a
+   model of the visited values, with the visits counted */
+
+public class LazyMapTest extends FMapContract<Integer> {
+
+    // Counts the visits of the visitors made by visitor
+    final AtomicInteger visits = new AtomicInteger();
+
+    FMap<Integer,Integer> empty() {
+        FMap<Integer,Integer> base = FMap.emptyMap(Comparator.<Integer>naturalOrder());
+        return base.mapValuesLazy(this.visitor(), true);
+    }
+
+    Integer key(int i) {
+        return i;
+    }
+
+    Comparator<Integer> order() {
+        return Comparator.naturalOrder();
+    }
+
+    boolean ordered() {
+        return false;
+    }
+
+    // A visitor that changes every value, counting its visits
+    Visitor<Integer,Integer> visitor() {
+        return new Visitor<Integer,Integer>() {
+            public Integer visit(Integer key, Integer value) {
+                LazyMapTest.this.visits.incrementAndGet();
+                return LazyMapTest.mapped(key, value);
+            }
+        };
+    }
+
+    // The value the visitor gives the given pair
+    static Integer mapped(Integer key, Integer value) {
+        return 3 * value - key;
+    }
+
+    // Return an FTree of n random pairs, and put the pairs it maps to
+    // in the given model
+    FMap<Integer,Integer> base(Random r, int n, TreeMap<Integer,Integer> mapped) {
+        FMap<Integer,Integer> base = FMap.emptyMap(this.order());
+        for (int i = 0; i < n; i++) {
+            int key = r.nextInt(4 * n);
+            base = base.add(key, i);
+            mapped.put(key, LazyMapTest.mapped(key, i));
+        }
+        return base;
+    }
+
+    // A view reads the visited values, by get, by iteration and by its
+    // streams, memoizing or not, before and after adds and removes
+    @Test
+    public void viewsHoldTheVisitedValues() {
+        Random r = new Random(SEED + 80);
+        for (boolean memoize : new boolean[] {true, false}) {
+            TreeMap<Integer,Integer> model = this.model();
+            FMap<Integer,Integer> base = this.base(r, 500, model);
+            FMap<Integer,Integer> view = base.mapValuesLazy(this.visitor(), memoize);
+            this.check(view, model);
+            for (int i = 0; i < 300; i++) {
+                int key = r.nextInt(2000);
+                if (r.nextBoolean()) {
+                    view = view.add(key, -i);
+                    model.put(key, -i);
+                } else {
+                    view = view.remove(key);
+                    model.remove(key);
+                }
+            }
+            this.check(view, model);
+            this.check(base.mapValuesLazy(this.visitor(), memoize).accept(this.visitor()),
+                       LazyMapTest.twice(base));
+        }
+    }
+
+    // The model of the given map with the visitor applied twice
+    static TreeMap<Integer,Integer> twice(FMap<Integer,Integer> base) {
+        TreeMap<Integer,Integer> model = new TreeMap<Integer,Integer>();
+        for (Integer key : base) {
+            model.put(key, LazyMapTest.mapped(key, LazyMapTest.mapped(key, base.get(key))));
+        }
+        return model;
+    }
+
+    // A memoizing view, and the views derived from it, visit each value
+    // once; one that does not memoize visits a value at every read
+    @Test
+    public void memoizedValuesAreVisitedOnce() {
+        TreeMap<Integer,Integer> model = this.model();
+        FMap<Integer,Integer> base = this.base(new Random(SEED + 81), 200, model);
+        int n = base.size();
+        LazyMap<Integer,Integer> memoized = base.mapValuesLazy(this.visitor(), true);
+        LazyMap<Integer,Integer> plain = base.mapValuesLazy(this.visitor(), false);
+        this.visits.set(0);
+        for (int round = 0; round < 2; round++) {
+            for (Integer key : model.keySet()) {
+                assertEquals(model.get(key), memoized.get(key));
+            }
+        }
+        assertEquals(n, this.visits.get());
+        LazyMap<Integer,Integer> derived = memoized.add(-1, 0).remove(model.firstKey());
+        for (Integer key : derived) {
+            derived.get(key);
+        }
+        assertEquals(n, this.visits.get());
+        this.visits.set(0);
+        for (int round = 0; round < 2; round++) {
+            for (Integer key : model.keySet()) {
+                assertEquals(model.get(key), plain.get(key));
+            }
+        }
+        assertEquals(2 * n, this.visits.get());
+        // Nothing is visited until it is read
+        this.visits.set(0);
+        base.mapValuesLazy(this.visitor(), true).add(-1, 0).remove(model.lastKey()).size();
+        assertEquals(0, this.visits.get());
+    }
+
+    // force builds an FMap of the kind underneath, equal to the view and
+    // holding its overlay, once; the view then reads from it
+    @Test
+    public void forceBuildsAnEqualMapOnce() {
+        TreeMap<Integer,Integer> model = this.model();
+        FMap<Integer,Integer> base = this.base(new Random(SEED + 82), 300, model);
+        for (boolean memoize : new boolean[] {true, false}) {
+            LazyMap<Integer,Integer> view = base.mapValuesLazy(this.visitor(), memoize).add(-5, 5);
+            TreeMap<Integer,Integer> added = new TreeMap<Integer,Integer>(model);
+            added.put(-5, 5);
+            this.visits.set(0);
+            FMap<Integer,Integer> forced = view.force();
+            assertEquals(base.size(), this.visits.get());
+            assertTrue(forced instanceof FTree<?,?>);
+            assertSame(forced, view.force());
+            this.check(forced, added);
+            assertEquals(view, forced);
+            assertEquals(forced, view);
+            assertEquals(forced.hashCode(), view.hashCode());
+            for (Integer key : added.keySet()) {
+                assertEquals(added.get(key), view.get(key));
+            }
+            assertEquals(base.size(), this.visits.get());
+        }
+    }
+
+    // A view whose hash code is 0 computes it once, like any other
+    @Test
+    public void zeroHashCodesAreComputedOnce() {
+        FMap<Integer,Integer> base = FMap.<Integer,Integer>emptyMap(this.order()).add(0, 0);
+        LazyMap<Integer,Integer> view = base.mapValuesLazy(this.visitor(), false);
+        this.visits.set(0);
+        assertEquals(0, view.hashCode());
+        assertEquals(0, view.hashCode());
+        assertEquals(1, this.visits.get());
+    }
+}
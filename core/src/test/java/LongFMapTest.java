@@ -0,0 +1,64 @@
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for the boxed view of a LongFMap, over negative and
+   positive keys, and its primitive operations */
+
+public class LongFMapTest extends FMapContract<Long> {
+
+    FMap<Long,Integer> empty() {
+        return LongFMap.<Integer>empty().asFMap();
+    }
+
+    // Keys spread over both signs
+    Long key(int i) {
+        return ((i % 2 == 0) ? 1L : -1L) * i * 1000003L;
+    }
+
+    Comparator<Long> order() {
+        return Comparator.naturalOrder();
+    }
+
+    boolean ordered() {
+        return true;
+    }
+
+    // The primitive operations agree with the boxed ones, and a missing
+    // or null key is missing
+    @Test
+    public void primitiveOperationsMatchTheModel() {
+        Random r = new Random(SEED + 30);
+        LongFMap<Integer> m = LongFMap.empty();
+        TreeMap<Long,Integer> model = this.model();
+        for (int i = 0; i < 2000; i++) {
+            long key = r.nextLong() >> r.nextInt(64);
+            if (r.nextInt(3) > 0) {
+                m = m.add(key, i);
+                model.put(key, i);
+            } else {
+                m = m.remove(key);
+                model.remove(key);
+            }
+            assertEquals(model.size(), m.size());
+            assertEquals(model.containsKey(key), m.containsKey(key));
+        }
+        for (Map.Entry<Long,Integer> e : model.entrySet()) {
+            assertEquals(e.getValue(), m.get(e.getKey()));
+        }
+        List<Long> keys = new ArrayList<Long>();
+        for (PrimitiveIterator.OfLong it = m.keyIterator(); it.hasNext();) {
+            keys.add(it.nextLong());
+        }
+        assertEquals(new ArrayList<Long>(model.keySet()), keys);
+        this.check(m.asFMap(), model);
+        try {
+            m.get(Long.MIN_VALUE + 7);
+            fail("get returned a value for a missing key");
+        } catch (RuntimeException e) {
+            assertEquals("This FMap does not contain the specified key", e.getMessage());
+        }
+        assertFalse(m.asFMap().containsKey(null));
+        FMapContract.assertMissing(m.asFMap(), null);
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for MappedFTree, a snapshot written to a file and
+   mapped, with the changes made to it kept in memory */
+
+public class MappedFTreeTest extends FMapContract<Integer> {
+
+    // The directory the snapshots are written to
+    @TempDir
+    Path dir;
+    // The number of snapshots written
+    private int files;
+
+    FMap<Integer,Integer> empty() {
+        return this.snapshot(this.model(), 4);
+    }
+
+    Integer key(int i) {
+        return i;
+    }
+
+    Comparator<Integer> order() {
+        return Comparator.naturalOrder();
+    }
+
+    boolean ordered() {
+        return true;
+    }
+
+    // Write the given pairs to a new file in blocks of the given size and
+    // open it
+    MappedFTree<Integer,Integer> snapshot(Map<Integer,Integer> model, int blockSize) {
+        FTree<Integer,Integer> t = (FTree<Integer,Integer>)
+            FMapContract.reference(model, this.order());
+        try {
+            Path file = this.dir.resolve("snapshot" + this.files++);
+            MappedFTree.write(t, file, Codec.INT, Codec.INT, blockSize);
+            return MappedFTree.open(file, this.order(), Codec.INT, Codec.INT);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // A snapshot reads back the pairs written, and changes on top of it
+    // shadow and remove them
+    @Test
+    public void changesOverASnapshotMatchTheModel() {
+        Random r = new Random(SEED + 40);
+        for (int blockSize : new int[] {1, 7, 64}) {
+            TreeMap<Integer,Integer> model = this.model();
+            for (int i = 0; i < 1000; i++) {
+                model.put(r.nextInt(3000), i);
+            }
+            FMap<Integer,Integer> m = this.snapshot(model, blockSize);
+            this.check(m, model);
+            for (int i = 0; i < 1500; i++) {
+                int key = r.nextInt(3000);
+                if (r.nextBoolean()) {
+                    m = m.add(key, -i);
+                    model.put(key, -i);
+                } else {
+                    m = m.remove(key);
+                    model.remove(key);
+                }
+                assertEquals(model.size(), m.size());
+                assertEquals(model.containsKey(key), m.containsKey(key));
+            }
+            this.check(m, model);
+        }
+    }
+
+    // rangeIterator gives the pairs of the model in the range, from the
+    // snapshot and the changes over it together
+    @Test
+    public void rangeIteratorMatchesTheModel() {
+        Random r = new Random(SEED + 41);
+        TreeMap<Integer,Integer> model = this.model();
+        for (int i = 0; i < 1000; i++) {
+            model.put(r.nextInt(3000), i);
+        }
+        MappedFTree<Integer,Integer> m = this.snapshot(model, 16);
+        for (int i = 0; i < 200; i++) {
+            int key = r.nextInt(3000);
+            if (i % 3 == 0) {
+                m = m.remove(key);
+                model.remove(key);
+            } else {
+                m = m.add(key, -i);
+                model.put(key, -i);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            int from = r.nextInt(3100) - 50;
+            int to = from + r.nextInt(400);
+            List<Map.Entry<Integer,Integer>> range = new ArrayList<Map.Entry<Integer,Integer>>();
+            for (Iterator<Map.Entry<Integer,Integer>> it = m.rangeIterator(from, to); it.hasNext();) {
+                range.add(it.next());
+            }
+            assertEquals(new ArrayList<Map.Entry<Integer,Integer>>(model.subMap(from, to).entrySet()),
+                         range);
+        }
+    }
+
+    // Threads hashing a snapshot for the first time at once all get the
+    // hash code of its pairs
+    @Test
+    public void concurrentHashCodesAgree() throws Exception {
+        TreeMap<Integer,Integer> model = this.model();
+        for (int i = 0; i < 5000; i++) {
+            model.put(i, i * 7);
+        }
+        final int hash = FMapContract.hash(model);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 20; round++) {
+                final MappedFTree<Integer,Integer> m = this.snapshot(model, 64);
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<Integer>> hashes = new ArrayList<Future<Integer>>();
+                for (int t = 0; t < 8; t++) {
+                    hashes.add(pool.submit(new Callable<Integer>() {
+                            public Integer call() throws InterruptedException {
+                                start.await();
+                                return m.hashCode();
+                            }
+                        }));
+                }
+                start.countDown();
+                for (Future<Integer> f : hashes) {
+                    assertEquals(hash, (int) f.get());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.lang.reflect.Field;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+/* With -Dfmap.intern=true, FTrees holding equal pairs in the same shape
+   share their Nodes however they were built, and the NodeInterner counts
+   what that saves */
+
+public class NodeInternerTest {
+
+    // The number of keys of the trees built
+    static final int N = 2000;
+
+    // Return the root Node of the given FTree
+    static Object root(FMap<?,?> tree) {
+        try {
+            Field f = FTree.class.getDeclaredField("root");
+            f.setAccessible(true);
+            return f.get(tree);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Return an FTree of the keys 0 to N - 1, each its own value, built
+    // by add
+    static FMap<Integer,Integer> added() {
+        FMap<Integer,Integer> m = FMap.emptyMap(Comparator.<Integer>naturalOrder());
+        for (int k = 0; k < N; k++) {
+            m = m.add(k, k);
+        }
+        return m;
+    }
+
+    // Return the same FTree built by a Builder
+    static FMap<Integer,Integer> built() {
+        FMap<Integer,Integer> empty = FMap.emptyMap(Comparator.<Integer>naturalOrder());
+        Builder<Integer,Integer> b = empty.transientCopy();
+        for (int k = 0; k < N; k++) {
+            b.add(k, k);
+        }
+        return b.persistent();
+    }
+
+    // Trees built apart, by add and by Builders, are one tree
+    @Test
+    public void builtTreesShareTheirRoot() {
+        assumeTrue(NodeInterner.ENABLED);
+        FMap<Integer,Integer> added = NodeInternerTest.added();
+        List<FMap<Integer,Integer>> built = new ArrayList<FMap<Integer,Integer>>();
+        for (int i = 0; i < 3; i++) {
+            built.add(NodeInternerTest.built());
+        }
+        for (FMap<Integer,Integer> m : built) {
+            assertEquals(added, m);
+            assertSame(NodeInternerTest.root(added), NodeInternerTest.root(m));
+        }
+        assertEquals(FMapContract.list(built.get(0).iterator()),
+                     FMapContract.list(built.get(1).iterator()));
+    }
+
+    // A second copy of a tree is found in the table, so the hits go up
+    // by a Node each, and every Node of the first copy is shared once.
+    // The shared count of the table is not compared with the one before,
+    // since the Nodes of trees other tests dropped may be collected
+    // meanwhile, taking their counts with them
+    @Test
+    public void snapshotsCountTheNodesShared() {
+        assumeTrue(NodeInterner.ENABLED);
+        FMap<Integer,Integer> first = NodeInternerTest.added();
+        NodeInterner before = NodeInterner.snapshot();
+        FMap<Integer,Integer> second = NodeInternerTest.built();
+        NodeInterner after = NodeInterner.snapshot();
+        assertSame(NodeInternerTest.root(first), NodeInternerTest.root(second));
+        assertTrue(after.getLookups() >= before.getLookups() + N);
+        assertTrue(after.getHits() >= before.getHits() + N);
+        assertTrue(after.getShared() >= N);
+        assertTrue(after.getBytesSaved() >= 40L * N);
+        assertTrue(after.getLive() >= N);
+        assertEquals(after.getBytesSaved() - after.getBytesUsed(), after.getNetBytesSaved());
+    }
+
+    // Without the flag every tree has its own Nodes
+    @Test
+    public void treesBuiltApartShareNothingWhenOff() {
+        assumeTrue(!NodeInterner.ENABLED);
+        FMap<Integer,Integer> added = NodeInternerTest.added();
+        FMap<Integer,Integer> built = NodeInternerTest.built();
+        assertEquals(added, built);
+        assertNotSame(NodeInternerTest.root(added), NodeInternerTest.root(built));
+        assertEquals(0, NodeInterner.snapshot().getLookups());
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/* The FMap contract for RadixTree, over keys that are prefixes of one
+   another and take one, two and three bytes a char, and its prefix
+   searches checked against a TreeMap */
+
+public class RadixTreeTest extends FMapContract<String> {
+
+    FMap<String,Integer> empty() {
+        return RadixTree.empty();
+    }
+
+    // The key numbered i in base 3, with a char of two or three bytes
+    // for odd i
+    String key(int i) {
+        String s = Integer.toString(i, 3);
+        return (i % 2 == 0) ? s : (i % 4 == 1) ? s + "é" : "中" + s;
+    }
+
+    Comparator<String> order() {
+        return Comparator.naturalOrder();
+    }
+
+    boolean ordered() {
+        return true;
+    }
+
+    // prefixIterator and longestPrefixMatch agree with the model
+    @Test
+    public void prefixSearchesMatchTheModel() {
+        Random r = new Random(SEED + 20);
+        TreeMap<String,Integer> model = this.model();
+        for (int i = 0; i < 800; i++) {
+            model.put(this.key(r.nextInt(3000)), i);
+        }
+        RadixTree<String,Integer> t = (RadixTree<String,Integer>) this.of(model);
+        for (int i = 0; i < 300; i++) {
+            String k = this.key(r.nextInt(3000));
+            String prefix = k.substring(0, r.nextInt(k.length() + 1));
+            List<String> want = new ArrayList<String>();
+            for (String key : model.tailMap(prefix).keySet()) {
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                want.add(key);
+            }
+            assertEquals(want, FMapContract.list(t.prefixIterator(prefix)));
+            String longest = null;
+            for (int n = 0; n <= k.length(); n++) {
+                if (model.containsKey(k.substring(0, n))) {
+                    longest = k.substring(0, n);
+                }
+            }
+            Map.Entry<String,Integer> match = t.longestPrefixMatch(k);
+            if (longest == null) {
+                assertNull(match);
+            } else {
+                assertEquals(longest, match.getKey());
+                assertEquals(model.get(longest), match.getValue());
+            }
+        }
+    }
+
+    // Iterating in the reverse of the natural order walks the tree
+    // backwards, giving the keys of the model in descending order
+    @Test
+    public void reversedIteratorsWalkTheKeysBackwards() {
+        Random r = new Random(SEED + 21);
+        TreeMap<String,Integer> model = this.model();
+        for (int i = 0; i < 500; i++) {
+            model.put(this.key(r.nextInt(2000)), i);
+        }
+        FMap<String,Integer> t = this.of(model);
+        Comparator<String> reversed = Collections.reverseOrder();
+        assertEquals(new ArrayList<String>(model.descendingKeySet()),
+                     FMapContract.list(t.iterator(reversed)));
+        assertEquals(new ArrayList<String>(model.keySet()),
+                     FMapContract.list(t.iterator(Comparator.<String>naturalOrder())));
+    }
+
+    // A RadixTree of byte[] keys matches keys by their bytes and walks
+    // them in the order of unsigned bytes
+    @Test
+    public void byteKeysAreComparedByContent() {
+        RadixTree<byte[],Integer> t = RadixTree.emptyBytes();
+        FMap<byte[],Integer> m = t.add(new byte[] {1, (byte) 0xFF}, 1)
+            .add(new byte[] {1}, 2).add(new byte[] {1, 2}, 3).add(new byte[0], 4);
+        assertEquals(4, m.size());
+        assertEquals(3, (int) m.get(new byte[] {1, 2}));
+        assertTrue(m.containsKey(new byte[0]));
+        List<byte[]> keys = FMapContract.list(m.iterator());
+        assertArrayEquals(new byte[0], keys.get(0));
+        assertArrayEquals(new byte[] {1}, keys.get(1));
+        assertArrayEquals(new byte[] {1, 2}, keys.get(2));
+        assertArrayEquals(new byte[] {1, (byte) 0xFF}, keys.get(3));
+        assertEquals(3, m.remove(new byte[] {1}).size());
+    }
+}
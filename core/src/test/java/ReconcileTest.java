@@ -0,0 +1,131 @@
+import java.util.*;
+import java.util.stream.*;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+/* FTree.reconcile finds the same changes as diff, in ascending order of
+   their keys, between FTrees that share Nodes and FTrees built apart,
+   with fingerprints on or off */
+
+public class ReconcileTest {
+
+    // Return an FTree of the given pairs, built by adding them in the
+    // given order
+    static FTree<Integer,String> tree(List<Map.Entry<Integer,String>> pairs) {
+        FMap<Integer,String> t = FMap.emptyMap(Comparator.<Integer>naturalOrder());
+        for (Map.Entry<Integer,String> e : pairs) {
+            t = t.add(e.getKey(), e.getValue());
+        }
+        return (FTree<Integer,String>) t;
+    }
+
+    // Check that reconcile and diff agree on the given FTrees
+    static void assertSameChanges(FTree<Integer,String> t1, FTree<Integer,String> t2) {
+        List<Change<Integer,String>> diff = t1.diff(t2).collect(Collectors.toList());
+        List<Change<Integer,String>> reconciled = t1.reconcile(t2).collect(Collectors.toList());
+        assertEquals(diff, reconciled);
+        assertEquals(diff.isEmpty(), t1.equals(t2));
+        if (FTree.FINGERPRINTS) {
+            assertEquals(diff.isEmpty(), t1.fingerprint() == t2.fingerprint());
+        }
+    }
+
+    // Random changes between replicas, shared and built apart
+    @Test
+    public void reconcileFindsTheChangesDiffFinds() {
+        Random r = new Random(FMapContract.SEED + 50);
+        for (int round = 0; round < 40; round++) {
+            TreeMap<Integer,String> model = new TreeMap<Integer,String>();
+            for (int i = 0; i < r.nextInt(2000); i++) {
+                model.put(r.nextInt(5000), "v" + r.nextInt(10));
+            }
+            List<Map.Entry<Integer,String>> pairs = new ArrayList<Map.Entry<Integer,String>>(model.entrySet());
+            FTree<Integer,String> t1 = tree(pairs);
+            FTree<Integer,String> t2 = t1;
+            for (int i = 0; i < r.nextInt(30); i++) {
+                int key = r.nextInt(5000);
+                if (r.nextBoolean()) {
+                    t2 = t2.add(key, "w" + r.nextInt(10));
+                    model.put(key, t2.get(key));
+                } else {
+                    t2 = t2.remove(key);
+                    model.remove(key);
+                }
+            }
+            assertSameChanges(t1, t2);
+            assertSameChanges(t2, t1);
+            // The same pairs added in another order make another shape
+            List<Map.Entry<Integer,String>> shuffled = new ArrayList<Map.Entry<Integer,String>>(model.entrySet());
+            Collections.shuffle(shuffled, r);
+            FTree<Integer,String> apart = tree(shuffled);
+            assertSameChanges(t1, apart);
+            assertSameChanges(apart, t2);
+        }
+    }
+
+    // A value replaced by one with the same hashCode is a change. With
+    // fingerprints on, the tests run with TestPairHash, so that too is
+    // found
+    @Test
+    public void reconcileFindsAChangeWithAnEqualHashCode() {
+        assumeTrue(!FTree.FINGERPRINTS || System.getProperty("fmap.pairhash") != null);
+        assertEquals("Aa500".hashCode(), "BB500".hashCode());
+        FTree<Integer,String> t = (FTree<Integer,String>) FMap.<Integer,String>emptyMap(Comparator.<Integer>naturalOrder());
+        for (int i = 0; i < 1000; i++) {
+            t = t.add(i, "v" + i);
+        }
+        FTree<Integer,String> t1 = t.add(500, "Aa500");
+        FTree<Integer,String> t2 = t1.add(500, "BB500");
+        assertFalse(t1.equals(t2));
+        assertEquals(Arrays.asList(Change.changed(500, "Aa500", "BB500")),
+                     t1.reconcile(t2).collect(Collectors.toList()));
+    }
+
+    // reconcile with an FMap of another kind is diff
+    @Test
+    public void reconcileWithAnotherKindIsDiff() {
+        FTree<Integer,String> t = (FTree<Integer,String>) FMap.<Integer,String>emptyMap(Comparator.<Integer>naturalOrder());
+        FMap<Integer,String> trie = FMap.emptyMap();
+        for (int i = 0; i < 100; i++) {
+            t = t.add(i, "v" + i);
+            trie = trie.add(i + 50, "v" + i);
+        }
+        assertEquals(t.diff(trie).collect(Collectors.toSet()),
+                     t.reconcile(trie).collect(Collectors.toSet()));
+    }
+
+    // The fingerprint of a range is the same for trees of the same pairs
+    // built in different orders, and with fingerprints off asking for one
+    // is an error
+    @Test
+    public void rangeFingerprintsDoNotDependOnShape() {
+        Random r = new Random(FMapContract.SEED + 51);
+        TreeMap<Integer,String> model = new TreeMap<Integer,String>();
+        for (int i = 0; i < 1000; i++) {
+            model.put(r.nextInt(5000), "v" + i);
+        }
+        List<Map.Entry<Integer,String>> pairs = new ArrayList<Map.Entry<Integer,String>>(model.entrySet());
+        FTree<Integer,String> t1 = tree(pairs);
+        Collections.shuffle(pairs, r);
+        FTree<Integer,String> t2 = tree(pairs);
+        if (!FTree.FINGERPRINTS) {
+            try {
+                t1.fingerprint();
+                fail("A fingerprint was read with fingerprints off");
+            } catch (RuntimeException e) {
+                // expected
+            }
+            return;
+        }
+        assertEquals(t1.fingerprint(), t2.fingerprint());
+        for (int i = 0; i < 200; i++) {
+            int from = r.nextInt(5000);
+            int to = from + r.nextInt(1000);
+            long print = t1.fingerprint(from, to);
+            assertEquals(print, t2.fingerprint(from, to));
+            assertEquals(print, tree(new ArrayList<Map.Entry<Integer,String>>
+                                     (model.subMap(from, to).entrySet())).fingerprint());
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/* A 64 bit FNV-1a hash of the strings of a pair, the FTree.PairHash the
+   tests run with fingerprints on, so that a change to a value with the
+   same hashCode still changes the fingerprint */
+
+public class TestPairHash implements FTree.PairHash {
+
+    public long hash(Object key, Object value) {
+        String s = key + "\u0000" + value;
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+}